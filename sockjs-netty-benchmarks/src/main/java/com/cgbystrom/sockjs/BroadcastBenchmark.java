@@ -0,0 +1,76 @@
+package com.cgbystrom.sockjs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.benchmarks.IdleReceiver;
+import com.cgbystrom.sockjs.benchmarks.NoopSessionCallback;
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+
+/**
+ * Measures {@link Service#broadcast(PreparedMessage)} to open sessions, each
+ * one connected to a receiver discarding the frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"1000", "100000"})
+    private int sessionCount;
+
+    @Param({"1", "4"})
+    private int parallelism;
+
+    private ExecutorService broadcastExecutor;
+    private Service service;
+    private PreparedMessage message;
+
+    @Setup
+    public void setUp() throws Exception {
+        broadcastExecutor = Executors.newFixedThreadPool(parallelism);
+
+        ServiceBuilder builder;
+        builder = new ServiceBuilder();
+        builder.setUrl("/broadcast");
+        builder.setFactory(NoopSessionCallback.FACTORY);
+        builder.setBroadcastExecutor(broadcastExecutor);
+        builder.setBroadcastParallelism(parallelism);
+        service = builder.build();
+
+        for(int i = 0; i < sessionCount; i++) {
+            service.getOrCreateSession("session" + i).registerReceiver(new IdleReceiver());
+        }
+
+        message = service.prepareMessage(Payloads.message(128, 0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        broadcastExecutor.shutdown();
+        service.stop();
+    }
+
+    @Benchmark
+    public BroadcastResult broadcast() {
+        return service.broadcast(message);
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.cgbystrom.sockjs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.benchmarks.NoopSessionCallback;
+import com.cgbystrom.sockjs.handlers.SessionConfig;
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+
+/**
+ * Compares {@link ShardedSessionStore} with a store over a
+ * ConcurrentHashMap, as the sessions were kept before, looking up existing
+ * sessions and adding then removing sessions. Run with -t to measure
+ * several threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SessionStoreBenchmark {
+
+    private static final int CHURN_IDS = 1 << 16;
+
+    @Param({"sharded", "concurrentHashMap"})
+    private String store;
+
+    @Param({"1000", "1000000"})
+    private int sessionCount;
+
+    private ScheduledExecutorService scheduledExecutor;
+    private SessionStore sessions;
+    private SessionStore.Factory factory;
+    private String[] ids;
+    private String[] churnIds;
+
+    @Setup
+    public void setUp() {
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        final SessionConfig config;
+        config = new SessionConfig(scheduledExecutor, new ScheduledExecutorTimer(scheduledExecutor), 5000, 25000, NOOP);
+        factory = new SessionStore.Factory() {
+            @Override
+            public SimpleSessionHandler create(String sessionId) {
+                return new SimpleSessionHandler(sessionId, NoopSessionCallback.FACTORY.createSessionCallback(sessionId), config);
+            }
+        };
+
+        if(store.equals("sharded")) {
+            sessions = new ShardedSessionStore();
+        } else if(store.equals("concurrentHashMap")) {
+            sessions = new ConcurrentMapSessionStore();
+        } else {
+            throw new IllegalArgumentException("unknown store " + store);
+        }
+
+        // random ids like those of the clients, looked up in another order
+        Random random = new Random(42);
+        List<String> allIds = new ArrayList<String>(sessionCount);
+        for(int i = 0; i < sessionCount; i++) {
+            String id = randomId(random);
+            sessions.getOrCreate(id, factory);
+            allIds.add(id);
+        }
+        Collections.shuffle(allIds, random);
+        ids = allIds.subList(0, Integer.highestOneBit(sessionCount)).toArray(new String[0]);
+
+        churnIds = new String[CHURN_IDS];
+        for(int i = 0; i < CHURN_IDS; i++) {
+            churnIds[i] = randomId(random);
+        }
+    }
+
+    private static String randomId(Random random) {
+        return Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduledExecutor.shutdownNow();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        int next = THREADS.getAndIncrement() * 7919;
+
+    }
+
+    @Benchmark
+    public SimpleSessionHandler get(Cursor cursor) {
+        return sessions.get(ids[cursor.next++ & (ids.length - 1)]);
+    }
+
+    @Benchmark
+    public boolean createAndRemove(Cursor cursor) {
+        SimpleSessionHandler session;
+        session = sessions.getOrCreate(churnIds[cursor.next++ & (CHURN_IDS - 1)], factory);
+        return sessions.remove(session);
+    }
+
+    private static final SessionConfig.Disposer NOOP = new SessionConfig.Disposer() {
+        @Override
+        public void dispose(SimpleSessionHandler session) {
+        }
+    };
+
+    private static final class ConcurrentMapSessionStore implements SessionStore {
+
+        private final ConcurrentMap<String, SimpleSessionHandler> sessions = new ConcurrentHashMap<String, SimpleSessionHandler>();
+
+        @Override
+        public SimpleSessionHandler get(String sessionId) {
+            return sessions.get(sessionId);
+        }
+
+        @Override
+        public SimpleSessionHandler getOrCreate(String sessionId, Factory factory) {
+            SimpleSessionHandler session;
+            session = sessions.get(sessionId);
+            if(session == null) {
+                SimpleSessionHandler newSession;
+                newSession = factory.create(sessionId);
+                session = sessions.putIfAbsent(sessionId, newSession);
+                if(session == null) {
+                    session = newSession;
+                }
+            }
+            return session;
+        }
+
+        @Override
+        public boolean remove(SimpleSessionHandler session) {
+            return sessions.remove(session.getId(), session);
+        }
+
+        @Override
+        public int size() {
+            return sessions.size();
+        }
+
+        @Override
+        public Iterator<SimpleSessionHandler> iterator() {
+            return sessions.values().iterator();
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.cgbystrom.sockjs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scale test of the session timers: schedules a million timeouts, as many
+ * sessions do between two flushes, and cancels them all. The timeouts are
+ * spread over the shards like {@link ServiceBuilder#setTimers(Timer...)}
+ * does by session id.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimerBenchmark {
+
+    private static final int TIMEOUT_COUNT = 1000000;
+
+    private static final TimerTask NOOP_TASK = new TimerTask() {
+        @Override
+        public void run(Timeout timeout) {
+        }
+    };
+
+    @Param({"wheel", "netty_hashed_wheel", "scheduled_executor"})
+    private String timer;
+
+    @Param({"1", "4"})
+    private int shardCount;
+
+    private ScheduledExecutorService[] executors;
+    private Timer[] timers;
+    private Timeout[] timeouts;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        executors = new ScheduledExecutorService[shardCount];
+        timers = new Timer[shardCount];
+        for(int i = 0; i < shardCount; i++) {
+            if("wheel".equals(timer)) {
+                timers[i] = new WheelTimer(100, TimeUnit.MILLISECONDS);
+            } else if("netty_hashed_wheel".equals(timer)) {
+                timers[i] = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+            } else if("scheduled_executor".equals(timer)) {
+                executors[i] = Executors.newSingleThreadScheduledExecutor();
+                timers[i] = new ScheduledExecutorTimer(executors[i]);
+            } else {
+                throw new IllegalArgumentException("unknown timer: " + timer);
+            }
+        }
+        timeouts = new Timeout[TIMEOUT_COUNT];
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        for(int i = 0; i < shardCount; i++) {
+            timers[i].stop();
+            if(executors[i] != null) {
+                executors[i].shutdownNow();
+            }
+        }
+        timeouts = null;
+    }
+
+    @Benchmark
+    public int scheduleAndCancel() {
+        for(int i = 0; i < TIMEOUT_COUNT; i++) {
+            timeouts[i] = timers[i % shardCount].newTimeout(NOOP_TASK, 25000 + i % 5000, TimeUnit.MILLISECONDS);
+        }
+        int cancelled = 0;
+        for(int i = 0; i < TIMEOUT_COUNT; i++) {
+            timeouts[i].cancel();
+            if(timeouts[i].isCancelled()) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+}
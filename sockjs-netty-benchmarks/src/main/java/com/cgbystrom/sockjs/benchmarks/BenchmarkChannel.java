@@ -0,0 +1,100 @@
+package com.cgbystrom.sockjs.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * In-memory channel used to drive handlers and receivers without any socket.
+ * Every write completes immediately and the last written message is kept so
+ * that benchmarks can hand it to a blackhole.
+ */
+public final class BenchmarkChannel extends AbstractChannel {
+
+    private static final SocketAddress LOCAL_ADDRESS = new InetSocketAddress("127.0.0.1", 8090);
+    private static final SocketAddress REMOTE_ADDRESS = new InetSocketAddress("127.0.0.1", 50000);
+
+    private final ChannelConfig config = new DefaultChannelConfig();
+
+    private Object lastWrittenMessage;
+    private long writtenMessages;
+
+    public BenchmarkChannel(ChannelPipeline pipeline) {
+        super(null, null, pipeline, new BenchmarkChannelSink());
+    }
+
+    public Object getLastWrittenMessage() {
+        return lastWrittenMessage;
+    }
+
+    public long getWrittenMessages() {
+        return writtenMessages;
+    }
+
+    /**
+     * Drops the reference to the last written message, so that it is not
+     * counted in the heap retained by the channel.
+     */
+    public void forgetLastWrittenMessage() {
+        lastWrittenMessage = null;
+    }
+
+    @Override
+    public ChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isBound() {
+        return isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isOpen();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return LOCAL_ADDRESS;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return REMOTE_ADDRESS;
+    }
+
+    private static final class BenchmarkChannelSink extends AbstractChannelSink {
+
+        @Override
+        public void eventSunk(ChannelPipeline pipeline, ChannelEvent event) throws Exception {
+            BenchmarkChannel channel;
+            channel = (BenchmarkChannel) event.getChannel();
+
+            if(event instanceof MessageEvent) {
+                channel.lastWrittenMessage = ((MessageEvent) event).getMessage();
+                channel.writtenMessages++;
+
+            } else if(event instanceof ChannelStateEvent) {
+                ChannelStateEvent stateEvent;
+                stateEvent = (ChannelStateEvent) event;
+                if(stateEvent.getState() == ChannelState.OPEN && Boolean.FALSE.equals(stateEvent.getValue())) {
+                    channel.setClosed();
+                }
+            }
+
+            event.getFuture().setSuccess();
+        }
+
+    }
+
+}
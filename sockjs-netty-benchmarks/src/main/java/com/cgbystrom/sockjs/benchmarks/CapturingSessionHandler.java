@@ -0,0 +1,48 @@
+package com.cgbystrom.sockjs.benchmarks;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.cgbystrom.sockjs.handlers.SessionHandler;
+
+/**
+ * Session handler that only remembers the last registered receiver, which
+ * lets benchmarks get hold of the receivers created by the transports.
+ */
+public final class CapturingSessionHandler implements SessionHandler {
+
+    private Receiver receiver;
+
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public void registerReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void unregisterReceiver(Receiver receiver) {
+        if(this.receiver == receiver) {
+            this.receiver = null;
+        }
+    }
+
+    @Override
+    public void writabilityChanged(Receiver receiver) {
+    }
+
+    @Override
+    public void messageReceived(String message) {
+    }
+
+    @Override
+    public void messageReceived(ChannelBuffer message) {
+    }
+
+    @Override
+    public void exceptionCaught(Throwable throwable) {
+        throw new IllegalStateException(throwable);
+    }
+
+}
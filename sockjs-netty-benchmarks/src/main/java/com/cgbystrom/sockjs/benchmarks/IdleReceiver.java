@@ -0,0 +1,75 @@
+package com.cgbystrom.sockjs.benchmarks;
+
+import java.net.SocketAddress;
+
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.handlers.SessionHandler.Receiver;
+import com.cgbystrom.sockjs.transports.TransportType;
+
+/**
+ * Keeps a benchmarked session open, discarding everything written to it.
+ */
+public final class IdleReceiver implements Receiver {
+
+    @Override
+    public boolean doOpen() {
+        return true;
+    }
+
+    @Override
+    public boolean doWrite(PreparedMessage[] messages) {
+        return true;
+    }
+
+    @Override
+    public boolean doHeartbeat() {
+        return true;
+    }
+
+    @Override
+    public boolean doClose(int status, String reason) {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public boolean isBinarySupported() {
+        return false;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public void setReadable(boolean readable) {
+    }
+
+    @Override
+    public TransportType getTransportType() {
+        // so that the sampled latencies are recorded
+        return TransportType.WEBSOCKET;
+    }
+
+    @Override
+    public void setWriteListener(ChannelFutureListener listener) {
+    }
+
+}
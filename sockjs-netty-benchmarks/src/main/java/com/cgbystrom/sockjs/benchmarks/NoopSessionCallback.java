@@ -0,0 +1,36 @@
+package com.cgbystrom.sockjs.benchmarks;
+
+import com.cgbystrom.sockjs.Session;
+import com.cgbystrom.sockjs.SessionCallback;
+import com.cgbystrom.sockjs.SessionCallbackFactory;
+
+/**
+ * Session callback doing nothing, so that only the library code is measured.
+ */
+public final class NoopSessionCallback implements SessionCallback {
+
+    public static final SessionCallbackFactory FACTORY = new SessionCallbackFactory() {
+        @Override
+        public SessionCallback createSessionCallback(String id) {
+            return new NoopSessionCallback();
+        }
+    };
+
+    @Override
+    public void onOpen(Session session) {
+    }
+
+    @Override
+    public void onClose(Session session) {
+    }
+
+    @Override
+    public void onMessage(Session session, String message) {
+    }
+
+    @Override
+    public boolean onError(Session session, Throwable exception) {
+        return false;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.cgbystrom.sockjs.benchmarks;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+
+/**
+ * Generates the message payloads used by the benchmarks. Messages look like
+ * the JSON documents applications usually push through SockJS, so that the
+ * escaping code sees a realistic share of quotes.
+ */
+public final class Payloads {
+
+    private static final String FILLER = "The quick brown fox jumps over the lazy dog. ";
+
+    private Payloads() {
+    }
+
+    public static String message(int size, int seed) {
+        StringBuilder builder;
+        builder = new StringBuilder(size + 64);
+        builder.append("{\"id\":").append(seed).append(",\"type\":\"update\",\"text\":\"");
+        while(builder.length() < size - 2) {
+            builder.append(FILLER, 0, Math.min(FILLER.length(), size - 2 - builder.length()));
+        }
+        builder.append("\"}");
+        return builder.toString();
+    }
+
+    public static String[] messages(int size, int count) {
+        String[] messages;
+        messages = new String[count];
+        for(int i = 0; i < count; i++) {
+            messages[i] = message(size, i);
+        }
+        return messages;
+    }
+
+    /**
+     * @param prepared true to prepare the messages once, as a broadcast would
+     */
+    public static PreparedMessage[] preparedMessages(String[] messages, boolean prepared) {
+        ServiceBuilder builder;
+        builder = new ServiceBuilder();
+        builder.setUrl("/benchmark");
+        builder.setFactory(NoopSessionCallback.FACTORY);
+
+        Service service;
+        service = builder.build();
+
+        PreparedMessage[] preparedMessages;
+        preparedMessages = new PreparedMessage[messages.length];
+        for(int i = 0; i < messages.length; i++) {
+            if(prepared) {
+                preparedMessages[i] = service.prepareMessage(messages[i]);
+            } else {
+                preparedMessages[i] = PreparedMessage.wrap(messages[i]);
+            }
+        }
+        service.stop();
+        return preparedMessages;
+    }
+
+    /**
+     * @return the body a client would post to xhr_send for these messages
+     */
+    public static String sendBody(String[] messages) {
+        StringBuilder builder;
+        builder = new StringBuilder();
+        builder.append('[');
+        for(int i = 0; i < messages.length; i++) {
+            if(i > 0) {
+                builder.append(',');
+            }
+            builder.append('"');
+            builder.append(messages[i].replace("\\", "\\\\").replace("\"", "\\\""));
+            builder.append('"');
+        }
+        builder.append(']');
+        return builder.toString();
+    }
+
+}
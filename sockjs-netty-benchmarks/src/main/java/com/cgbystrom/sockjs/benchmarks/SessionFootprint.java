@@ -0,0 +1,142 @@
+package com.cgbystrom.sockjs.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+import com.cgbystrom.sockjs.handlers.PreflightHandler;
+import com.cgbystrom.sockjs.handlers.ServiceRouterHandler;
+
+/**
+ * Opens idle sessions on in-memory channels, one transport at a time, and
+ * prints the heap retained per session: the session, its receiver and the
+ * handlers and objects the transport leaves in the pipeline. The channels
+ * are created with the HTTP handlers of a server before the heap is first
+ * measured, so they are not counted. The websocket handshake replaces the
+ * HTTP codecs with lighter frame codecs, which lowers its figure.
+ *
+ * Usage: <code>java -cp benchmarks.jar com.cgbystrom.sockjs.benchmarks.SessionFootprint [sessions]</code>
+ */
+public final class SessionFootprint {
+
+    /** A transport and the requests which leave a session idle on it */
+    private enum Scenario {
+
+        WEBSOCKET("websocket", "GET", "websocket"),
+
+        XHR_POLLING("xhr polling", "POST", "xhr", "xhr"),
+
+        XHR_BETWEEN_POLLS("xhr between polls", "POST", "xhr"),
+
+        XHR_STREAMING("xhr_streaming", "POST", "xhr_streaming"),
+
+        EVENTSOURCE("eventsource", "GET", "eventsource"),
+
+        HTMLFILE("htmlfile", "GET", "htmlfile?c=callback"),
+
+        JSONP_POLLING("jsonp polling", "GET", "jsonp?c=callback", "jsonp?c=callback");
+
+        final String   name;
+        final String   method;
+        final String[] paths;
+
+        private Scenario(String name, String method, String... paths) {
+            this.name = name;
+            this.method = method;
+            this.paths = paths;
+        }
+
+    }
+
+    private SessionFootprint() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessionCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        System.out.println(String.format("%-20s %10s", "transport", "bytes/session"));
+        for(Scenario scenario : Scenario.values()) {
+            long bytes = measure(scenario, sessionCount);
+            System.out.println(String.format("%-20s %10d", scenario.name, bytes / sessionCount));
+        }
+        System.exit(0);
+    }
+
+    private static long measure(Scenario scenario, int sessionCount) throws Exception {
+        ServiceBuilder builder;
+        builder = new ServiceBuilder();
+        builder.setUrl("/footprint");
+        builder.setFactory(NoopSessionCallback.FACTORY);
+        // idle sessions must neither time out nor get heartbeats while measured
+        builder.setTimeoutDelay(Integer.MAX_VALUE);
+        builder.setHreatbeatDelay(Integer.MAX_VALUE);
+        Service service = builder.build();
+
+        ServiceRouterHandler router;
+        router = new ServiceRouterHandler(Collections.singletonList(service));
+
+        BenchmarkChannel[] channels;
+        channels = new BenchmarkChannel[sessionCount];
+        for(int i = 0; i < sessionCount; i++) {
+            ChannelPipeline pipeline;
+            pipeline = Channels.pipeline();
+            pipeline.addLast("decoder", new HttpRequestDecoder());
+            pipeline.addLast("aggregator", new HttpChunkAggregator(65536));
+            pipeline.addLast("encoder", new HttpResponseEncoder());
+            pipeline.addLast("preflight", new PreflightHandler());
+            pipeline.addLast("router", router);
+            channels[i] = new BenchmarkChannel(pipeline);
+        }
+
+        long before = usedHeap();
+
+        for(int i = 0; i < sessionCount; i++) {
+            String sessionId = Integer.toString(i, 36);
+            for(String path : scenario.paths) {
+                HttpRequest request;
+                request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(scenario.method),
+                        "/footprint/000/" + sessionId + "/" + path);
+                request.setHeader(HttpHeaders.Names.HOST, "localhost");
+                if(scenario == Scenario.WEBSOCKET) {
+                    request.setHeader(HttpHeaders.Names.UPGRADE, HttpHeaders.Values.WEBSOCKET);
+                    request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.UPGRADE);
+                    request.setHeader(HttpHeaders.Names.SEC_WEBSOCKET_KEY, "dGhlIHNhbXBsZSBub25jZQ==");
+                    request.setHeader(HttpHeaders.Names.SEC_WEBSOCKET_VERSION, "13");
+                }
+                Channels.fireMessageReceived(channels[i], request);
+            }
+            channels[i].forgetLastWrittenMessage();
+        }
+
+        long after = usedHeap();
+
+        for(BenchmarkChannel channel : channels) {
+            channel.close();
+        }
+        service.stop();
+        return after - before;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for(int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+}
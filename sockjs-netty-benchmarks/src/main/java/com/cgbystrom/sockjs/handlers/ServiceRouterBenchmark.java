@@ -0,0 +1,108 @@
+package com.cgbystrom.sockjs.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+import com.cgbystrom.sockjs.benchmarks.BenchmarkChannel;
+import com.cgbystrom.sockjs.benchmarks.IdleReceiver;
+import com.cgbystrom.sockjs.benchmarks.NoopSessionCallback;
+
+/**
+ * Measures the dispatch of a request from {@link ServiceRouterHandler} through
+ * {@link TransportRouterHandler} to the final handler, on a keep-alive
+ * channel which is reused between requests.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceRouterBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+
+    @Param({"1", "10", "100", "1000"})
+    private int serviceCount;
+
+    @Param({"welcome", "info", "iframe", "xhr_send"})
+    private String route;
+
+    private List<Service> services;
+    private BenchmarkChannel channel;
+    private HttpRequest request;
+
+    @Setup
+    public void setUp() throws Exception {
+        services = new ArrayList<Service>();
+        for(int i = 1; i < serviceCount; i++) {
+            services.add(buildService("/service" + i));
+        }
+
+        // the benchmarked service is registered last, the worst case for a linear lookup
+        Service echoService;
+        echoService = buildService("/echo");
+        services.add(echoService);
+
+        if(route.equals("welcome")) {
+            request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/echo");
+        } else if(route.equals("info")) {
+            request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/echo/info");
+        } else if(route.equals("iframe")) {
+            request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/echo/iframe.html");
+        } else if(route.equals("xhr_send")) {
+            echoService.getOrCreateSession(SESSION_ID).registerReceiver(new IdleReceiver());
+            request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/echo/000/" + SESSION_ID + "/xhr_send");
+            request.setContent(ChannelBuffers.copiedBuffer("[\"hello\"]", CharsetUtil.UTF_8));
+        } else {
+            throw new IllegalArgumentException("unknown route " + route);
+        }
+
+        channel = new BenchmarkChannel(Channels.pipeline(new ServiceRouterHandler(services)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        for(Service service : services) {
+            service.stop();
+        }
+    }
+
+    @Benchmark
+    public Object dispatch() {
+        Channels.fireMessageReceived(channel, request);
+        return channel.getLastWrittenMessage();
+    }
+
+    private static Service buildService(String url) {
+        ServiceBuilder builder;
+        builder = new ServiceBuilder();
+        builder.setUrl(url);
+        builder.setFactory(NoopSessionCallback.FACTORY);
+        return builder.build();
+    }
+
+}
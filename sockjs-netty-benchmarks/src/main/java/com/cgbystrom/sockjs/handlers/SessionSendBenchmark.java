@@ -0,0 +1,90 @@
+package com.cgbystrom.sockjs.handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.OverflowPolicy;
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+import com.cgbystrom.sockjs.benchmarks.IdleReceiver;
+import com.cgbystrom.sockjs.benchmarks.NoopSessionCallback;
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+
+/**
+ * Measures {@link SimpleSessionHandler#offer(PreparedMessage)} to a single
+ * open session from 1, 4 and 16 producer threads. The queue is bounded, so
+ * that producers outpacing the flushing thread get their messages dropped
+ * instead of exhausting the heap. The latencies are sampled as by default,
+ * or not at all.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionSendBenchmark {
+
+    @Param({"0", "1024"})
+    private int latencySampleInterval;
+
+    private Service service;
+    private SimpleSessionHandler session;
+    private PreparedMessage message;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServiceBuilder builder;
+        builder = new ServiceBuilder();
+        builder.setUrl("/send");
+        builder.setFactory(NoopSessionCallback.FACTORY);
+        builder.setMaxQueuedMessages(65536);
+        builder.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        builder.setLatencySampleInterval(latencySampleInterval);
+
+        service = builder.build();
+
+        session = (SimpleSessionHandler) service.getOrCreateSession("hot");
+        session.registerReceiver(new IdleReceiver());
+
+        message = service.prepareMessage(Payloads.message(128, 0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SimpleSessionHandler.Delivery send1() {
+        return session.offer(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SimpleSessionHandler.Delivery send4() {
+        return session.offer(message);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public SimpleSessionHandler.Delivery send16() {
+        return session.offer(message);
+    }
+
+}
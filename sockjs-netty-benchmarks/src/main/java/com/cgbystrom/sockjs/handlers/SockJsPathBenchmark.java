@@ -0,0 +1,99 @@
+package com.cgbystrom.sockjs.handlers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cgbystrom.sockjs.transports.TransportType;
+import com.cgbystrom.sockjs.transports.TransportUtils;
+
+/**
+ * Compares {@link SockJsPath#parse(String, int)} with the regular
+ * expressions it replaced, on the request URIs of a service at
+ * <code>/echo</code>. Both extract the session id, the transport and, for
+ * the jsonp transport, the callback.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SockJsPathBenchmark {
+
+    private static final String SERVICE_URL = "/echo";
+
+    private static final Pattern SERVER_SESSION = Pattern.compile("^/([^/.]+)/([^/.]+)/([^?.]+)");
+
+    @Param({"xhr", "jsonp", "info"})
+    private String route;
+
+    private String uri;
+
+    @Setup
+    public void setUp() {
+        if(route.equals("xhr")) {
+            uri = SERVICE_URL + "/000/a8d5d2ca0e5d4b9b/xhr";
+        } else if(route.equals("jsonp")) {
+            uri = SERVICE_URL + "/000/a8d5d2ca0e5d4b9b/jsonp?c=_jp.a3ykwwsn";
+        } else if(route.equals("info")) {
+            uri = SERVICE_URL + "/info?t=1364822362123";
+        } else {
+            throw new IllegalArgumentException("unknown route " + route);
+        }
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        String requestUriSuffix = uri.replaceFirst(SERVICE_URL, "");
+        if(requestUriSuffix.startsWith("/info")) {
+            blackhole.consume(requestUriSuffix);
+            return;
+        }
+
+        Matcher m = SERVER_SESSION.matcher(requestUriSuffix);
+        if(m.find()) {
+            String sessionId = m.group(2);
+            String transport = m.group(3);
+            blackhole.consume(sessionId);
+            if(transport.equals("xhr_send") || transport.equals("jsonp_send") || transport.equals("xhr_streaming")
+                    || transport.equals("xhr")) {
+                blackhole.consume(transport);
+            } else if(transport.equals("jsonp")) {
+                List<String> c = new QueryStringDecoder(uri).getParameters().get("c");
+                blackhole.consume(c.get(0));
+            }
+        }
+    }
+
+    @Benchmark
+    public void parser(Blackhole blackhole) {
+        SockJsPath path;
+        path = SockJsPath.parse(uri, SERVICE_URL.length());
+        if(path.getKind() == SockJsPath.Kind.SESSION) {
+            blackhole.consume(path.getSessionId());
+            blackhole.consume(path.getTransport());
+            if(path.getTransport() == TransportType.JSONP) {
+                blackhole.consume(TransportUtils.getCallbackParameter(uri));
+            }
+        } else {
+            blackhole.consume(path);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+
+/**
+ * Measures the {@link FrameEncoder} of each transport, which turns queued
+ * messages into the bytes written on the wire. With <code>prepared</code> the
+ * messages are escaped once up front, as for a broadcast, and only spliced
+ * into the frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameEncoderBenchmark {
+
+    @Param({"xhr", "jsonp", "htmlfile", "eventsource", "xhr_streaming", "websocket"})
+    private String transport;
+
+    @Param({"32", "512", "8192"})
+    private int messageSize;
+
+    @Param({"1", "16", "128"})
+    private int batchSize;
+
+    @Param({"false", "true"})
+    private boolean prepared;
+
+    private PreparedMessage[] messages;
+    private FrameEncoder frameEncoder;
+
+    @Setup
+    public void setUp() {
+        messages = Payloads.preparedMessages(Payloads.messages(messageSize, batchSize), prepared);
+
+        if(transport.equals("xhr")) {
+            frameEncoder = XhrPollingTransport.FRAME_ENCODER;
+        } else if(transport.equals("jsonp")) {
+            frameEncoder = JsonpPollingTransport.FRAME_ENCODER;
+        } else if(transport.equals("htmlfile")) {
+            frameEncoder = HtmlFileTransport.FRAME_ENCODER;
+        } else if(transport.equals("eventsource")) {
+            frameEncoder = EventSourceTransport.FRAME_ENCODER;
+        } else if(transport.equals("xhr_streaming")) {
+            frameEncoder = XhrStreamingTransport.FRAME_ENCODER;
+        } else if(transport.equals("websocket")) {
+            frameEncoder = WebSocketTransport.FRAME_ENCODER;
+        } else {
+            throw new IllegalArgumentException("unknown transport " + transport);
+        }
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeMessageFrame() {
+        return frameEncoder.encodeMessageFrame(messages);
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeHeartbeatFrame() {
+        return frameEncoder.encodeHeartbeatFrame();
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.benchmarks.CapturingSessionHandler;
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+
+/**
+ * Compares the decoding of an xhr_send body by {@link MessageArrayDecoder}
+ * with the former decoding of the body as a string by
+ * {@link TransportUtils#decodeMessage(String)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageArrayDecoderBenchmark {
+
+    @Param({"32", "512", "8192"})
+    private int messageSize;
+
+    @Param({"1", "16", "128"})
+    private int batchSize;
+
+    private ChannelBuffer           body;
+    private CapturingSessionHandler sessionHandler;
+
+    @Setup
+    public void setUp() {
+        body = ChannelBuffers.copiedBuffer(Payloads.sendBody(Payloads.messages(messageSize, batchSize)), CharsetUtil.UTF_8);
+        sessionHandler = new CapturingSessionHandler();
+    }
+
+    @Benchmark
+    public boolean incremental() throws Exception {
+        MessageArrayDecoder decoder;
+        decoder = new MessageArrayDecoder(sessionHandler, false, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        decoder.decode(body);
+        return decoder.finish();
+    }
+
+    @Benchmark
+    public int jackson() throws Exception {
+        String[] messages;
+        messages = TransportUtils.decodeMessage(body.toString(CharsetUtil.UTF_8));
+        for(String message : messages) {
+            sessionHandler.messageReceived(message);
+        }
+        return messages.length;
+    }
+
+}
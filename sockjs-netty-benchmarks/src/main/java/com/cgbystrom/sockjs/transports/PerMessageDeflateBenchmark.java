@@ -0,0 +1,111 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+
+/**
+ * Measures the compression of the messages written to a websocket with
+ * permessage-deflate. Besides the messages per second, the
+ * <code>payloadBytes</code> and <code>wireBytes</code> counters give the
+ * bytes per second before and after the compression: the CPU cost of a MB
+ * is one second over the payload rate, and the bytes saved are the
+ * difference of the two rates. The messages only differ by their id, like
+ * the updates of a feed, which is where the context takeover shines.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PerMessageDeflateBenchmark {
+
+    private static final int DISTINCT_MESSAGES = 64;
+
+    @Param({"128", "1024", "8192"})
+    private int messageSize;
+
+    @Param({"1", "6"})
+    private int compressionLevel;
+
+    @Param({"10", "15"})
+    private int windowBits;
+
+    @Param({"true", "false"})
+    private boolean contextTakeover;
+
+    private ChannelBuffer[]                 payloads;
+    private EncoderEmbedder<WebSocketFrame> embedder;
+    private int                             next;
+
+    /**
+     * Bytes per second before and after the compression.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        public long payloadBytes;
+
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            payloadBytes = 0;
+            wireBytes = 0;
+        }
+
+    }
+
+    @Setup
+    public void setUp() {
+        payloads = new ChannelBuffer[DISTINCT_MESSAGES];
+        for(int i = 0; i < payloads.length; i++) {
+            payloads[i] = ChannelBuffers.copiedBuffer("a[" + Payloads.message(messageSize, i * 7919) + "]", CharsetUtil.UTF_8);
+        }
+
+        PerMessageDeflate perMessageDeflate;
+        perMessageDeflate = new PerMessageDeflate(compressionLevel, windowBits, contextTakeover, 64);
+
+        PerMessageDeflateHandler handler;
+        handler = perMessageDeflate.negotiate(Collections.singletonList("permessage-deflate; client_max_window_bits"), Long.MAX_VALUE);
+        embedder = new EncoderEmbedder<WebSocketFrame>(handler);
+    }
+
+    @Benchmark
+    public WebSocketFrame compress(Bytes bytes) {
+        ChannelBuffer payload = payloads[next];
+        next = (next + 1) % payloads.length;
+
+        embedder.offer(new TextWebSocketFrame(payload));
+
+        WebSocketFrame frame;
+        frame = embedder.poll();
+        bytes.payloadBytes += payload.readableBytes();
+        bytes.wireBytes += frame.getBinaryData().readableBytes();
+        return frame;
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.benchmarks.BenchmarkChannel;
+import com.cgbystrom.sockjs.benchmarks.CapturingSessionHandler;
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+import com.cgbystrom.sockjs.transports.AbstractReceiverTransport.ResponseReceiver;
+
+/**
+ * Measures {@link ResponseReceiver#doWrite(PreparedMessage[])}, i.e. the encoding of
+ * the <code>a[...]</code> frame for a batch of queued messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseReceiverBenchmark {
+
+    @Param({"32", "512", "8192"})
+    private int messageSize;
+
+    @Param({"1", "16", "128"})
+    private int batchSize;
+
+    private PreparedMessage[] messages;
+    private ResponseReceiver receiver;
+    private ChannelBuffer lastFrame;
+
+    @Setup
+    public void setUp() {
+        messages = Payloads.preparedMessages(Payloads.messages(messageSize, batchSize), false);
+
+        receiver = new ResponseReceiver(new CapturingSessionHandler(), new BenchmarkChannel(Channels.pipeline()), XhrPollingTransport.FRAME_ENCODER) {
+            @Override
+            protected boolean doSend(ChannelBuffer frame) {
+                lastFrame = frame;
+                return true;
+            }
+
+            @Override
+            public TransportType getTransportType() {
+                return TransportType.XHR;
+            }
+        };
+    }
+
+    @Benchmark
+    public ChannelBuffer doWrite() {
+        receiver.doWrite(messages);
+        return lastFrame;
+    }
+
+}
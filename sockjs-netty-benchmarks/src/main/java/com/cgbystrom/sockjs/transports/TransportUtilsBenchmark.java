@@ -0,0 +1,66 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.benchmarks.Payloads;
+
+/**
+ * Measures the inbound decoding ({@link TransportUtils#decodeMessage(String)})
+ * and {@link TransportUtils#escapeJson(ChannelBuffer, ChannelBuffer)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransportUtilsBenchmark {
+
+    @Param({"32", "512", "8192"})
+    private int messageSize;
+
+    @Param({"1", "16", "128"})
+    private int batchSize;
+
+    private String sendBody;
+    private ChannelBuffer escapeInput;
+    private ChannelBuffer escapeOutput;
+
+    @Setup
+    public void setUp() {
+        String[] messages;
+        messages = Payloads.messages(messageSize, batchSize);
+
+        sendBody = Payloads.sendBody(messages);
+        escapeInput = ChannelBuffers.copiedBuffer(messages[0], CharsetUtil.UTF_8);
+        escapeOutput = ChannelBuffers.dynamicBuffer(messageSize * 2);
+    }
+
+    @Benchmark
+    public String[] decodeMessage() throws Exception {
+        return TransportUtils.decodeMessage(sendBody);
+    }
+
+    @Benchmark
+    public ChannelBuffer escapeJson() {
+        escapeOutput.clear();
+        TransportUtils.escapeJson(escapeInput, escapeOutput);
+        return escapeOutput;
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.cgbystrom.sockjs.blocking;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.Session;
+
+/**
+ * Pull-style view of a session, used by {@link BlockingSessionHandler}s.
+ *
+ * Received messages are queued until the handler takes them with
+ * {@link #receive()}. Sending blocks while the session is reported
+ * unwritable, so a handler producing faster than its client reads is slowed
+ * down instead of filling the outbound queue.
+ */
+public final class BlockingSession {
+
+    /** Put in the queue once the session is closed, compared by identity */
+    private static final String CLOSED = new String("closed");
+
+    /** Bound once the session opens, before the thread of the handler starts */
+    private Session                           session;
+    private final LinkedBlockingQueue<String> inbox;
+    private final ReentrantLock               writabilityLock = new ReentrantLock();
+    private final Condition                   writableCondition = writabilityLock.newCondition();
+
+    private volatile boolean                  writable = true;
+    private volatile boolean                  closed;
+
+    /**
+     * Created with the callback of the session, so that the messages
+     * received before the session opens are queued.
+     */
+    BlockingSession(int maxReceivedMessages) {
+        // one more slot for the closed marker
+        this.inbox = new LinkedBlockingQueue<String>(maxReceivedMessages < Integer.MAX_VALUE ? maxReceivedMessages + 1 : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return the message, or null once the session is closed
+     */
+    public String receive() throws InterruptedException {
+        return unlessClosed(inbox.take());
+    }
+
+    /**
+     * Waits for the next message at most the given time.
+     *
+     * @return the message, or null once the session is closed
+     * @throws TimeoutException if no message was received in time
+     */
+    public String receive(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        String message;
+        message = inbox.poll(timeout, unit);
+        if(message == null) {
+            throw new TimeoutException("no message received in " + timeout + " " + unit);
+        }
+        return unlessClosed(message);
+    }
+
+    /**
+     * Sends a message, waiting first while the session is unwritable.
+     *
+     * @throws IllegalStateException if the session is closed
+     */
+    public void send(String message) throws InterruptedException {
+        awaitWritable();
+        session.send(message);
+    }
+
+    public void send(PreparedMessage message) throws InterruptedException {
+        awaitWritable();
+        session.send(message);
+    }
+
+    public void close() {
+        session.close();
+    }
+
+    public void close(int code, String reason) {
+        session.close(code, reason);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the underlying session, for instance to subscribe it to topics
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    void bind(Session session) {
+        if(session == null) {
+            throw new NullPointerException("session");
+        }
+        this.session = session;
+    }
+
+    /**
+     * @return false if the message was dropped as too many are queued
+     */
+    boolean messageReceived(String message) {
+        return inbox.remainingCapacity() > 1 && inbox.offer(message);
+    }
+
+    void writabilityChanged(boolean writable) {
+        writabilityLock.lock();
+        try {
+            this.writable = writable;
+            if(writable) {
+                writableCondition.signalAll();
+            }
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    void closed() {
+        closed = true;
+        // only full if messages were received concurrently, make room for the marker
+        while (!inbox.offer(CLOSED)) {
+            inbox.poll();
+        }
+        writabilityChanged(true);
+    }
+
+    private void awaitWritable() throws InterruptedException {
+        if(writable || closed) {
+            return;
+        }
+        writabilityLock.lock();
+        try {
+            while (!writable && !closed) {
+                writableCondition.await();
+            }
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    private String unlessClosed(String message) {
+        if(message == CLOSED) {
+            // left for the next receive
+            inbox.offer(CLOSED);
+            return null;
+        }
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockingSession [session=" + session + ", closed=" + closed + "]";
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.cgbystrom.sockjs.blocking;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+import com.cgbystrom.sockjs.Session;
+import com.cgbystrom.sockjs.SessionCallback;
+import com.cgbystrom.sockjs.SessionCallbackFactory;
+import com.cgbystrom.sockjs.WritabilitySessionCallback;
+
+/**
+ * Runs a {@link BlockingSessionHandler} on a virtual thread per session.
+ *
+ * The callbacks only hand the received messages over to the
+ * {@link BlockingSession}, so the Netty workers never wait on the handlers.
+ * A session receiving more messages than its handler takes is closed.
+ */
+public final class BlockingSessionCallbackFactory implements SessionCallbackFactory {
+
+    private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(BlockingSessionCallbackFactory.class);
+
+    private final BlockingSessionHandler handler;
+    private final ThreadFactory          threadFactory;
+    private final int                    maxReceivedMessages;
+
+    /**
+     * Runs the handler on virtual threads named sockjs-session-N, with an
+     * unbounded queue of received messages.
+     */
+    public BlockingSessionCallbackFactory(BlockingSessionHandler handler) {
+        this(handler, Thread.ofVirtual().name("sockjs-session-", 0).factory(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param threadFactory creates the thread of each session
+     * @param maxReceivedMessages messages queued at most until the handler
+     *        receives them, the session is closed beyond
+     */
+    public BlockingSessionCallbackFactory(BlockingSessionHandler handler, ThreadFactory threadFactory, int maxReceivedMessages) {
+        if(handler == null) {
+            throw new NullPointerException("handler");
+        }
+        if(threadFactory == null) {
+            throw new NullPointerException("threadFactory");
+        }
+        if(maxReceivedMessages < 1) {
+            throw new IllegalArgumentException("maxReceivedMessages must be positive");
+        }
+        this.handler = handler;
+        this.threadFactory = threadFactory;
+        this.maxReceivedMessages = maxReceivedMessages;
+    }
+
+    @Override
+    public SessionCallback createSessionCallback(String id) {
+        return new BlockingSessionCallback();
+    }
+
+    /**
+     * The blocking session is created with the callback, as a message may be
+     * received before the session opens: the open frame is written first.
+     */
+    private final class BlockingSessionCallback implements WritabilitySessionCallback {
+
+        private final BlockingSession blockingSession = new BlockingSession(maxReceivedMessages);
+
+        @Override
+        public void onOpen(Session session) {
+            blockingSession.bind(session);
+
+            Thread thread;
+            thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runHandler(blockingSession);
+                }
+            });
+            thread.start();
+        }
+
+        @Override
+        public void onClose(Session session) {
+            blockingSession.closed();
+        }
+
+        @Override
+        public void onMessage(Session session, String message) {
+            if(!blockingSession.messageReceived(message)) {
+                LOGGER.warn("Session " + session + " received more than " + maxReceivedMessages + " messages, closing");
+                session.close(1008, "Too many messages");
+            }
+        }
+
+        @Override
+        public boolean onError(Session session, Throwable exception) {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Session " + session + " failed", exception);
+            return true;
+        }
+
+        @Override
+        public void onWritabilityChanged(Session session, boolean writable) {
+            blockingSession.writabilityChanged(writable);
+        }
+
+    }
+
+    private void runHandler(BlockingSession session) {
+        try {
+            handler.handle(session);
+        } catch (InterruptedException e) {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Handler of " + session + " interrupted");
+        } catch (Exception e) {
+            LOGGER.warn("Handler of " + session + " failed", e);
+        } finally {
+            session.close();
+        }
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.cgbystrom.sockjs.blocking;
+
+/**
+ * Handles a session with straight-line blocking code, on a thread of its own.
+ *
+ * The handler is called once the session is open and may block freely, in
+ * {@link BlockingSession#receive()} or on any backend, since it runs on a
+ * virtual thread rather than a Netty worker. The session is closed when the
+ * handler returns or throws.
+ */
+public interface BlockingSessionHandler {
+
+    void handle(BlockingSession session) throws Exception;
+
+}
@@ -0,0 +1,226 @@
+package com.cgbystrom.sockjs.blocking;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+import com.cgbystrom.sockjs.Session;
+import com.cgbystrom.sockjs.SessionCallback;
+import com.cgbystrom.sockjs.SessionCallbackFactory;
+import com.cgbystrom.sockjs.handlers.SessionHandler;
+import com.cgbystrom.sockjs.handlers.SessionHandler.Receiver;
+import com.cgbystrom.sockjs.transports.TransportType;
+
+/**
+ * One request/response round over 100k concurrent sessions: each session
+ * receives a message, calls a backend taking <code>backendMillis</code> and
+ * replies. The callback model handles the messages on a pool of platform
+ * threads through the ordered callback executor, the blocking model on a
+ * virtual thread per session.
+ *
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class BlockingSessionBenchmark {
+
+    private static final int SESSION_COUNT = 100000;
+
+    /** Platform threads running the callbacks of the callback model */
+    private static final int CALLBACK_THREADS = 64;
+
+    @Param({"callback", "blocking"})
+    private String model;
+
+    @Param({"0", "1"})
+    private int backendMillis;
+
+    private final AtomicLong replies = new AtomicLong();
+
+    private ExecutorService  callbackExecutor;
+    private SessionHandler[] sessions;
+    private long             expectedReplies;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServiceBuilder builder;
+        builder = new ServiceBuilder();
+        builder.setUrl("/echo");
+
+        if("callback".equals(model)) {
+            callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREADS);
+            builder.setCallbackExecutor(callbackExecutor);
+            builder.setFactory(new SessionCallbackFactory() {
+                @Override
+                public SessionCallback createSessionCallback(String id) {
+                    return new EchoCallback();
+                }
+            });
+        } else if("blocking".equals(model)) {
+            builder.setFactory(new BlockingSessionCallbackFactory(new BlockingSessionHandler() {
+                @Override
+                public void handle(BlockingSession session) throws Exception {
+                    String message;
+                    while ((message = session.receive()) != null) {
+                        callBackend();
+                        session.send(message);
+                    }
+                }
+            }));
+        } else {
+            throw new IllegalArgumentException("unknown model: " + model);
+        }
+
+        Service service;
+        service = builder.build();
+
+        sessions = new SessionHandler[SESSION_COUNT];
+        for(int i = 0; i < SESSION_COUNT; i++) {
+            sessions[i] = service.getOrCreateSession("session" + i);
+            sessions[i].registerReceiver(new CountingReceiver());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for(SessionHandler session : sessions) {
+            ((Session) session).close();
+        }
+        if(callbackExecutor != null) {
+            callbackExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long roundTrip() {
+        expectedReplies += SESSION_COUNT;
+        for(SessionHandler session : sessions) {
+            session.messageReceived("ping");
+        }
+        while (replies.get() < expectedReplies) {
+            LockSupport.parkNanos(100000);
+        }
+        return expectedReplies;
+    }
+
+    private void callBackend() throws InterruptedException {
+        if(backendMillis > 0) {
+            Thread.sleep(backendMillis);
+        }
+    }
+
+    private final class EchoCallback implements SessionCallback {
+
+        @Override
+        public void onOpen(Session session) {
+        }
+
+        @Override
+        public void onClose(Session session) {
+        }
+
+        @Override
+        public void onMessage(Session session, String message) {
+            try {
+                callBackend();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            session.send(message);
+        }
+
+        @Override
+        public boolean onError(Session session, Throwable exception) {
+            return false;
+        }
+
+    }
+
+    private final class CountingReceiver implements Receiver {
+
+        @Override
+        public boolean doOpen() {
+            return true;
+        }
+
+        @Override
+        public boolean doWrite(PreparedMessage[] messages) {
+            replies.addAndGet(messages.length);
+            return true;
+        }
+
+        @Override
+        public boolean doHeartbeat() {
+            return true;
+        }
+
+        @Override
+        public boolean doClose(int status, String reason) {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public boolean isBinarySupported() {
+            return false;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public void setReadable(boolean readable) {
+        }
+
+        @Override
+        public TransportType getTransportType() {
+            return null;
+        }
+
+        @Override
+        public void setWriteListener(ChannelFutureListener listener) {
+        }
+
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.cgbystrom.sockjs;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Session callback also receiving the binary messages of the raw websocket
+ * sessions. A session whose callback does not implement this interface is
+ * closed with 1003 once it receives a binary message.
+ */
+public interface BinarySessionCallback extends SessionCallback {
+
+    /**
+     * @param session
+     * @param message the whole message, its fragments gathered if it was
+     *        sent in several frames
+     */
+    public void onMessage(Session session, ChannelBuffer message);
+
+}
@@ -0,0 +1,51 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * Summary of a broadcast.
+ *
+ * A message is delivered when it was written to the receiver connected to
+ * the session, queued when it is left in the session queue for the next
+ * receiver or for the linger flush, and skipped when the session was not open,
+ * rejected by the filter or when its queue overflowed.
+ */
+public final class BroadcastResult {
+
+    private final int delivered;
+    private final int queued;
+    private final int skipped;
+
+    BroadcastResult(int delivered, int queued, int skipped) {
+        this.delivered = delivered;
+        this.queued = queued;
+        this.skipped = skipped;
+    }
+
+    public int getDelivered() {
+        return delivered;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of sessions the broadcast went through
+     */
+    public int getTotal() {
+        return delivered + queued + skipped;
+    }
+
+    BroadcastResult add(BroadcastResult other) {
+        return new BroadcastResult(delivered + other.delivered, queued + other.queued, skipped + other.skipped);
+    }
+
+    @Override
+    public String toString() {
+        return "BroadcastResult [delivered=" + delivered + ", queued=" + queued + ", skipped=" + skipped + "]";
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.cgbystrom.sockjs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with a fixed memory, in the manner
+ * of HdrHistogram. Each power of two is split in {@link #SUB_BUCKETS}
+ * linear buckets, so a recorded value is known within about 3%, up to
+ * 2^({@link #MAX_EXPONENT} + 1) nanoseconds (over two minutes). The higher
+ * values are counted in the last bucket.
+ *
+ * Recording is a single atomic increment and may be done by any thread.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    public static final int MAX_EXPONENT = 36;
+
+    /** The values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS buckets per power of two */
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Snapshot of a histogram nothing was recorded in */
+    static final Snapshot EMPTY_SNAPSHOT = new Snapshot(new long[BUCKETS]);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(nanos));
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for(int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    static int bucketIndex(long nanos) {
+        if(nanos < SUB_BUCKETS) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the lowest value counted in a bucket
+     */
+    static long bucketLowestValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return subBucket << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return the highest value counted in a bucket
+     */
+    static long bucketHighestValue(int index) {
+        if(index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return bucketLowestValue(index + 1) - 1;
+    }
+
+    /**
+     * Counts of a histogram at a point in time. The values it gives are
+     * the highest of their bucket, so they may be a few percent above the
+     * recorded ones.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long   totalCount;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for(long count : counts) {
+                total += count;
+            }
+            this.totalCount = total;
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value below which the percentile of the recorded
+         *         values are, 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if(percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if(totalCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= rank) {
+                    return bucketHighestValue(i);
+                }
+            }
+            return getMaxValue();
+        }
+
+        /**
+         * @return the highest recorded value, 0 if nothing was recorded
+         */
+        public long getMaxValue() {
+            for(int i = counts.length - 1; i >= 0; i--) {
+                if(counts[i] > 0) {
+                    return bucketHighestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the mean of the recorded values, taking the middle of
+         *         each bucket, 0 if nothing was recorded
+         */
+        public double getMean() {
+            if(totalCount == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for(int i = 0; i < counts.length - 1; i++) {
+                if(counts[i] > 0) {
+                    sum += counts[i] * ((bucketLowestValue(i) + bucketHighestValue(i)) / 2.0);
+                }
+            }
+            sum += counts[counts.length - 1] * (double) bucketLowestValue(counts.length - 1);
+            return sum / totalCount;
+        }
+
+        @Override
+        public String toString() {
+            return "LatencyHistogram.Snapshot [count=" + totalCount + ", p50=" + getValueAtPercentile(50) + ", p99="
+                    + getValueAtPercentile(99) + ", max=" + getMaxValue() + "]";
+        }
+
+    }
+
+}
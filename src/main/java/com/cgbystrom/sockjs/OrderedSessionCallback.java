@@ -0,0 +1,330 @@
+package com.cgbystrom.sockjs;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+import com.cgbystrom.sockjs.handlers.SessionHandler.Receiver;
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+
+/**
+ * Calls a session callback on an executor instead of the I/O thread, one
+ * event at a time and in the order the events occurred, like Netty's
+ * <code>OrderedMemoryAwareThreadPoolExecutor</code> does per channel.
+ *
+ * Received messages count toward a per-session and a per-service limit
+ * until the callback has handled them. A message going over a limit is
+ * still accepted, but the channel of the receiver of the session stops
+ * reading until enough pending messages are handled, which slows down the
+ * clients flooding the service without blocking the I/O thread. The
+ * websockets receive their messages on that channel, the sends of the
+ * HTTP transports arrive on their own requests and are not held back.
+ */
+final class OrderedSessionCallback implements BinarySessionCallback, WritabilitySessionCallback, Runnable {
+
+    private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(OrderedSessionCallback.class);
+
+    private static final AtomicIntegerFieldUpdater<OrderedSessionCallback> SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(OrderedSessionCallback.class, "scheduled");
+
+    /** Events run before the session yields the executor thread to other sessions */
+    private static final int MAX_EVENTS_PER_RUN = 64;
+
+    private final SessionCallback                 delegate;
+    private final Executor                        executor;
+    private final MemoryLimit                     memoryLimit;
+    private final long                            maxPendingSize;
+    private final AtomicLong                      pendingSize = new AtomicLong();
+    private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile int                          scheduled;
+
+    /** Receiver which stopped reading, guarded by the lock of this callback */
+    private volatile Receiver                     pausedReceiver;
+    /** True while in the paused callbacks of the memory limit, guarded by the lock of this callback */
+    private boolean                               waitingForTotal;
+
+    /**
+     * @param memoryLimit shared by the sessions of the service, null if
+     *        receiving never blocks
+     * @param maxPendingSize estimated size of the messages of the session
+     *        waiting for the callback above which receiving stops
+     */
+    public OrderedSessionCallback(SessionCallback delegate, Executor executor, MemoryLimit memoryLimit, long maxPendingSize) {
+        if(delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.memoryLimit = memoryLimit;
+        this.maxPendingSize = maxPendingSize;
+    }
+
+    @Override
+    public void onOpen(final Session session) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onOpen(session);
+            }
+        });
+    }
+
+    @Override
+    public void onClose(final Session session) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onClose(session);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(final Session session, final String message) {
+        final long size = MemoryLimit.estimateSize(message);
+        reserve(session, size);
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    delegate.onMessage(session, message);
+                } finally {
+                    release(size);
+                }
+            }
+        });
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the callback does not receive
+     *         binary messages
+     */
+    @Override
+    public void onMessage(final Session session, final ChannelBuffer message) {
+        if(!(delegate instanceof BinarySessionCallback)) {
+            throw new UnsupportedOperationException("Binary messages not supported by " + delegate);
+        }
+        final long size = MemoryLimit.estimateSize(message);
+        reserve(session, size);
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ((BinarySessionCallback) delegate).onMessage(session, message);
+                } finally {
+                    release(size);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return always true, the callback returns its own value on the executor
+     */
+    @Override
+    public boolean onError(final Session session, final Throwable exception) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onError(session, exception);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void onWritabilityChanged(final Session session, final boolean writable) {
+        if(!(delegate instanceof WritabilitySessionCallback)) {
+            return;
+        }
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                ((WritabilitySessionCallback) delegate).onWritabilityChanged(session, writable);
+            }
+        });
+    }
+
+    /**
+     * Runs the pending events of the session, must only be called by the
+     * executor.
+     */
+    @Override
+    public void run() {
+        for(int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+            Runnable event;
+            event = events.poll();
+            if(event == null) {
+                break;
+            }
+            try {
+                event.run();
+            } catch (Throwable t) {
+                LOGGER.warn("An exception was thrown by the session callback " + delegate, t);
+            }
+        }
+
+        if(!events.isEmpty()) {
+            execute();
+            return;
+        }
+
+        scheduled = 0;
+        // an event may have been added before the flag was cleared
+        if(!events.isEmpty() && SCHEDULED.compareAndSet(this, 0, 1)) {
+            execute();
+        }
+    }
+
+    private void dispatch(Runnable event) {
+        events.add(event);
+        if(SCHEDULED.compareAndSet(this, 0, 1)) {
+            execute();
+        }
+    }
+
+    private void execute() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            run();
+        }
+    }
+
+    /**
+     * Counts the message as pending, and stops reading from the receiver of
+     * the session once over a limit.
+     */
+    private void reserve(Session session, long size) {
+        if(memoryLimit == null) {
+            return;
+        }
+        long pending = pendingSize.addAndGet(size);
+        long totalPending = memoryLimit.totalPendingSize.addAndGet(size);
+        if(pending <= maxPendingSize && totalPending <= memoryLimit.maxTotalPendingSize) {
+            return;
+        }
+
+        Receiver receiver = null;
+        if(session instanceof SimpleSessionHandler) {
+            receiver = ((SimpleSessionHandler) session).getReceiver();
+        }
+        if(receiver == null) {
+            return;
+        }
+        synchronized (this) {
+            // the callback may have caught up meanwhile
+            if(pausedReceiver != null || !isOverLimit()) {
+                return;
+            }
+            if(LOGGER.isDebugEnabled())
+                LOGGER.debug("Session " + session + " stops reading, " + pendingSize + " bytes pending");
+            pausedReceiver = receiver;
+            receiver.setReadable(false);
+            waitForTotal();
+        }
+    }
+
+    private void release(long size) {
+        if(memoryLimit == null) {
+            return;
+        }
+        pendingSize.addAndGet(-size);
+        memoryLimit.totalPendingSize.addAndGet(-size);
+        if(pausedReceiver != null) {
+            resume();
+        }
+        if(!memoryLimit.pausedCallbacks.isEmpty()) {
+            memoryLimit.resumePaused();
+        }
+    }
+
+    /**
+     * Resumes reading from the paused receiver once under both limits.
+     */
+    private synchronized void resume() {
+        if(pausedReceiver == null || isOverLimit()) {
+            waitForTotal();
+            return;
+        }
+        pausedReceiver.setReadable(true);
+        pausedReceiver = null;
+    }
+
+    /**
+     * Must be called under the lock of the callback. Leaves the callback to
+     * the other sessions releasing their messages if only the limit of the
+     * service holds it, as it may have nothing pending left.
+     */
+    private void waitForTotal() {
+        if(pausedReceiver != null && !waitingForTotal && pendingSize.get() <= maxPendingSize) {
+            waitingForTotal = true;
+            memoryLimit.pausedCallbacks.add(this);
+        }
+    }
+
+    private boolean isOverLimit() {
+        return pendingSize.get() > maxPendingSize || memoryLimit.totalPendingSize.get() > memoryLimit.maxTotalPendingSize;
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedSessionCallback [delegate=" + delegate + ", pendingSize=" + pendingSize + "]";
+    }
+
+    /**
+     * Size of the messages of all the sessions of a service waiting for
+     * their callback.
+     */
+    static final class MemoryLimit {
+
+        private final long       maxTotalPendingSize;
+        private final AtomicLong totalPendingSize = new AtomicLong();
+
+        /** Callbacks whose receiver stopped reading until the service is under its limit */
+        private final ConcurrentLinkedQueue<OrderedSessionCallback> pausedCallbacks =
+                new ConcurrentLinkedQueue<OrderedSessionCallback>();
+
+        public MemoryLimit(long maxTotalPendingSize) {
+            this.maxTotalPendingSize = maxTotalPendingSize;
+        }
+
+        /**
+         * @return two bytes per character, the message being a string
+         */
+        public static long estimateSize(String message) {
+            return 2L * message.length();
+        }
+
+        public static long estimateSize(ChannelBuffer message) {
+            return message.readableBytes();
+        }
+
+        /**
+         * Resumes the paused callbacks while the service is under its limit,
+         * those still over it wait again.
+         */
+        void resumePaused() {
+            while(totalPendingSize.get() <= maxTotalPendingSize) {
+                OrderedSessionCallback callback;
+                callback = pausedCallbacks.poll();
+                if(callback == null) {
+                    break;
+                }
+                synchronized (callback) {
+                    callback.waitingForTotal = false;
+                    callback.resume();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * What a session does with a message sent while its outbound queue is full.
+ *
+ * @see ServiceBuilder#setMaxQueuedMessages(int)
+ * @see ServiceBuilder#setMaxQueuedBytes(long)
+ */
+public enum OverflowPolicy {
+
+    /** Drops the oldest queued messages until the new one fits, or the new one if it cannot fit */
+    DROP_OLDEST,
+
+    /** Drops the new message */
+    DROP_NEWEST,
+
+    /** Drops the new message and closes the session, see {@link ServiceBuilder#setOverflowCloseStatus(int, String)} */
+    CLOSE,
+
+    /** Throws {@link Session.QueueFull} to the sender */
+    REJECT
+
+}
@@ -0,0 +1,151 @@
+package com.cgbystrom.sockjs;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.cgbystrom.sockjs.transports.FrameEncoder;
+
+/**
+ * A message encoded once and shared by every session it is sent to.
+ *
+ * Prepared messages are created by {@link Service#prepareMessage(String)},
+ * which escapes and UTF-8 encodes the message eagerly. Receivers splice the
+ * shared read-only content into their frames instead of escaping the message
+ * again, so broadcasting a prepared message costs one encoding whatever the
+ * number of sessions.
+ *
+ * Binary messages, wrapped by {@link #wrap(ChannelBuffer)}, are only sent
+ * by the sessions of the raw websocket endpoint, in binary frames.
+ *
+ * The size of a message is the same whether it is prepared or not, the
+ * bytes of its escaped content, so that the queue limits and the metrics
+ * count every message alike.
+ */
+public final class PreparedMessage {
+
+    private final String        message;
+    private final ChannelBuffer content;
+    private final ChannelBuffer binaryContent;
+    private final int           size;
+
+    private volatile ChannelBuffer quotedContent;
+    private volatile ChannelBuffer rawContent;
+
+    PreparedMessage(String message) {
+        this(message, FrameEncoder.escape(message, false));
+    }
+
+    private PreparedMessage(String message, ChannelBuffer content) {
+        if(message == null) {
+            throw new NullPointerException("message");
+        }
+        this.message = message;
+        this.content = content;
+        this.binaryContent = null;
+        this.size = content != null ? content.readableBytes() : FrameEncoder.escapedLength(message);
+    }
+
+    private PreparedMessage(ChannelBuffer binaryContent) {
+        if(binaryContent == null) {
+            throw new NullPointerException("binaryContent");
+        }
+        this.message = null;
+        this.content = null;
+        this.binaryContent = binaryContent;
+        this.size = binaryContent.readableBytes();
+    }
+
+    /**
+     * Wraps a message which is not prepared, each receiver escapes it when
+     * it is written. Used for messages sent with {@link Session#send(String)}.
+     */
+    public static PreparedMessage wrap(String message) {
+        return new PreparedMessage(message, null);
+    }
+
+    /**
+     * Wraps a binary message, without copying it. The buffer must not be
+     * modified once sent, its indexes are left untouched.
+     */
+    public static PreparedMessage wrap(ChannelBuffer message) {
+        return new PreparedMessage(message);
+    }
+
+    /**
+     * @return the message, null if binary
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isPrepared() {
+        return content != null;
+    }
+
+    public boolean isBinary() {
+        return binaryContent != null;
+    }
+
+    /**
+     * @return the number of bytes of the message once JSON escaped and UTF-8
+     *         encoded, or of a binary message
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the JSON escaped message, without the surrounding quotes
+     */
+    public ChannelBuffer getContent() {
+        checkPrepared();
+        return content.duplicate();
+    }
+
+    /**
+     * @return the JSON escaped message, escaped again for a JavaScript string
+     */
+    public ChannelBuffer getQuotedContent() {
+        checkPrepared();
+        ChannelBuffer encoded = quotedContent;
+        if(encoded == null) {
+            quotedContent = encoded = FrameEncoder.escape(message, true);
+        }
+        return encoded.duplicate();
+    }
+
+    /**
+     * @return the message as is, for raw websocket frames
+     */
+    public ChannelBuffer getRawContent() {
+        checkPrepared();
+        ChannelBuffer encoded = rawContent;
+        if(encoded == null) {
+            rawContent = encoded = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8));
+        }
+        return encoded.duplicate();
+    }
+
+    /**
+     * @return the binary message, sharing its content
+     */
+    public ChannelBuffer getBinaryContent() {
+        if(binaryContent == null) {
+            throw new IllegalStateException("not binary");
+        }
+        return binaryContent.duplicate();
+    }
+
+    private void checkPrepared() {
+        if(content == null) {
+            throw new IllegalStateException("not prepared");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return message != null ? message : binaryContent.toString();
+    }
+
+}
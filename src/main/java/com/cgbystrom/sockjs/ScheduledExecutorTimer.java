@@ -0,0 +1,113 @@
+package com.cgbystrom.sockjs;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * {@link Timer} running its tasks on a {@link ScheduledExecutorService}.
+ *
+ * This is the timer of a service unless {@link ServiceBuilder#setTimers(Timer...)}
+ * is used. Stopping it does not shut down the executor, which belongs to the
+ * caller.
+ */
+public final class ScheduledExecutorTimer implements Timer {
+
+    private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(ScheduledExecutorTimer.class);
+
+    private final ScheduledExecutorService executor;
+
+    public ScheduledExecutorTimer(ScheduledExecutorService executor) {
+        if(executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+        if(task == null) {
+            throw new NullPointerException("task");
+        }
+        if(unit == null) {
+            throw new NullPointerException("unit");
+        }
+
+        ScheduledTimeout timeout;
+        timeout = new ScheduledTimeout(task);
+        timeout.future = executor.schedule(timeout, delay, unit);
+        return timeout;
+    }
+
+    @Override
+    public Set<Timeout> stop() {
+        return Collections.emptySet();
+    }
+
+    private final class ScheduledTimeout implements Timeout, Runnable {
+
+        private final TimerTask   task;
+        private volatile Future<?> future;
+        private volatile boolean  cancelled;
+        private volatile boolean  expired;
+
+        public ScheduledTimeout(TimerTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if(cancelled) {
+                return;
+            }
+            expired = true;
+            try {
+                task.run(this);
+            } catch (Throwable t) {
+                LOGGER.warn("An exception was thrown by " + TimerTask.class.getSimpleName() + '.', t);
+            }
+        }
+
+        @Override
+        public Timer getTimer() {
+            return ScheduledExecutorTimer.this;
+        }
+
+        @Override
+        public TimerTask getTask() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void cancel() {
+            if(expired) {
+                return;
+            }
+            cancelled = true;
+            Future<?> scheduled = future;
+            if(scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+    }
+
+}
@@ -5,6 +5,8 @@ package com.cgbystrom.sockjs;
 
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+import com.cgbystrom.sockjs.transports.PerMessageDeflate;
+import com.cgbystrom.sockjs.transports.StreamingCompression;
 
 public interface Service {
 
@@ -14,12 +16,57 @@ public interface Service {
 
     public boolean isWebSocketEnabled();
 
+    /**
+     * @return the settings of the permessage-deflate extension offered to the
+     *         websockets, null if they are not compressed
+     */
+    public PerMessageDeflate getWebSocketCompression();
+
+    /**
+     * @return the settings of the gzip compression of the streaming
+     *         responses, null if they are not compressed
+     */
+    public StreamingCompression getStreamingCompression();
+
     public int getResponseSizeLimit();
 
+    /**
+     * @return the maximum number of bytes of a message received by
+     *         xhr_send or jsonp_send, JSON escaped and UTF-8 encoded
+     */
+    public int getMessageSizeLimit();
+
+    /**
+     * @return the maximum number of bytes of the body of an xhr_send or
+     *         jsonp_send request
+     */
+    public int getRequestSizeLimit();
+
     public boolean isJsessionidEnabled();
 
     public String getJavascriptLibraryUrl();
 
+    /**
+     * @return the number of messages sent to a session of this service while
+     *         its outbound queue was full
+     */
+    public long getQueueOverflowCount();
+
+    /**
+     * Takes a snapshot of the metrics of this service, going through its
+     * sessions, with the sampled latencies of the messages. Meant to be
+     * polled by an exporter or a JMX bean every few seconds, rather than on
+     * each request.
+     */
+    public ServiceMetrics.Snapshot getMetrics();
+
+    /**
+     * Stops the heartbeat sweeps of the service, so that nothing keeps a
+     * service no longer routed to reachable. Its open sessions get no more
+     * heartbeats. Called by {@link ServiceRouterHandler#removeService(Service)}.
+     */
+    public void stop();
+
     public SessionHandler getOrCreateSession(String sessionId) throws SessionNotFound;
 
     public SessionHandler getSession(String sessionId) throws SessionNotFound;
@@ -28,6 +75,83 @@ public interface Service {
 
     public SessionHandler removeSession(SimpleSessionHandler aSessionHandler);
 
+    /**
+     * Escapes and encodes a message once, for sending it to many sessions.
+     *
+     * @param message
+     * @return the prepared message
+     */
+    public PreparedMessage prepareMessage(String message);
+
+    /**
+     * Sends a message to every open session of this service.
+     *
+     * @param message
+     * @return how many sessions got the message
+     */
+    public BroadcastResult broadcast(String message);
+
+    /**
+     * @see #broadcast(String)
+     */
+    public BroadcastResult broadcast(PreparedMessage message);
+
+    /**
+     * Sends a message to the open sessions of this service accepted by the
+     * filter.
+     *
+     * @param filter
+     * @param message
+     * @return how many sessions got the message
+     */
+    public BroadcastResult broadcast(SessionFilter filter, String message);
+
+    /**
+     * @see #broadcast(SessionFilter, String)
+     */
+    public BroadcastResult broadcast(SessionFilter filter, PreparedMessage message);
+
+    /**
+     * Subscribes a session of this service to a topic, the retained message
+     * of the topic is sent to new subscribers. Subscriptions are dropped when
+     * the session is closed.
+     *
+     * @param session
+     * @param topic
+     * @return true if the session was not subscribed yet
+     */
+    public boolean subscribe(Session session, String topic);
+
+    /**
+     * @param session
+     * @param topic
+     * @return true if the session was subscribed
+     */
+    public boolean unsubscribe(Session session, String topic);
+
+    /**
+     * Sends a message to the subscribers of a topic.
+     *
+     * @param topic
+     * @param message
+     * @return how many subscribers got the message
+     */
+    public BroadcastResult publish(String topic, String message);
+
+    /**
+     * @param retain true to keep the message for the next subscribers, in
+     *        place of the previously retained one
+     * @see #publish(String, String)
+     */
+    public BroadcastResult publish(String topic, PreparedMessage message, boolean retain);
+
+    /**
+     * Drops the message retained for a topic.
+     *
+     * @param topic
+     */
+    public void clearRetainedMessage(String topic);
+
     public class SessionNotFound extends Exception {
 
         private static final long serialVersionUID = 3716968509374998804L;
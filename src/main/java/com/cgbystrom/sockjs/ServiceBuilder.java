@@ -3,17 +3,48 @@
  */
 package com.cgbystrom.sockjs;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import com.cgbystrom.sockjs.handlers.SessionConfig;
 import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+import com.cgbystrom.sockjs.transports.PerMessageDeflate;
+import com.cgbystrom.sockjs.transports.StreamingCompression;
 
 public final class ServiceBuilder {
 
+    private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(ServiceBuilder.class);
+
     private final static ScheduledExecutorService DEFAULT_SCHEDULED_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
 
+    /** Broadcasts to fewer sessions than this per partition are not split further */
+    private final static int MIN_BROADCAST_PARTITION_SIZE = 1024;
+
+    /** Sessions are swept for heartbeats this many times per heartbeat delay */
+    private final static int HEARTBEAT_SWEEPS_PER_DELAY = 10;
+
+    /** Sweeps the heartbeats of sessions written to at the same time are spread over */
+    private final static int HEARTBEAT_JITTER_SWEEPS = 3;
+
+    /** Sessions a sweep hands over at once to the timer they belong to */
+    private final static int HEARTBEAT_BATCH_SIZE = 256;
+
     private String                   url;
     private SessionCallbackFactory   factory;
     private boolean                  isWebSocketEnabled = true;
@@ -21,8 +52,28 @@ public final class ServiceBuilder {
     private boolean                  jsessionidEnabled = false;
     private String                   javascriptLibraryUrl = "http://cdn.sockjs.org/sockjs-0.3.4.min.js";
     private ScheduledExecutorService scheduledExecutor = DEFAULT_SCHEDULED_EXECUTOR;
+    private Timer[]                  timers;
     private Integer                  timeoutDelay = 5000;
     private Integer                  hreatbeatDelay = 25000;
+    private Executor                 broadcastExecutor;
+    private int                      broadcastParallelism = 1;
+    private int                      maxQueuedMessages = Integer.MAX_VALUE;
+    private long                     maxQueuedBytes = Long.MAX_VALUE;
+    private OverflowPolicy           overflowPolicy = OverflowPolicy.REJECT;
+    private int                      overflowCloseStatus = 1008;
+    private String                   overflowCloseReason = "Outbound queue overflow";
+    private long                     flushLingerNanos = 0;
+    private long                     lowWaterMark = 0;
+    private long                     highWaterMark = Long.MAX_VALUE;
+    private Executor                 callbackExecutor;
+    private long                     maxSessionPendingCallbackSize = Long.MAX_VALUE;
+    private long                     maxTotalPendingCallbackSize = Long.MAX_VALUE;
+    private SessionStore             sessionStore;
+    private int                      latencySampleInterval = 1024;
+    private PerMessageDeflate        webSocketCompression;
+    private StreamingCompression     streamingCompression;
+    private int                      messageSizeLimit = 64 * 1024;
+    private int                      requestSizeLimit = 64 * 1024;
 
     public void setUrl(String url) {
         this.url = url;
@@ -48,6 +99,19 @@ public final class ServiceBuilder {
         this.scheduledExecutor = scheduledExecutor;
     }
 
+    /**
+     * Timers scheduling the timeouts of the sessions, each session uses the
+     * timer picked by the hash of its id. Each timer also sweeps its sessions
+     * for heartbeats. By default they are scheduled on the scheduled executor.
+     *
+     * A few {@link WheelTimer}s scale better with many sessions, as
+     * scheduling and cancelling are constant time and spread over several
+     * threads. The timers are not stopped by the service.
+     */
+    public void setTimers(Timer... timers) {
+        this.timers = timers;
+    }
+
     public void setTimeoutDelay(int timeoutDelay) {
         this.timeoutDelay = timeoutDelay;
     }
@@ -60,6 +124,161 @@ public final class ServiceBuilder {
         javascriptLibraryUrl = aJavascriptLibraryUrl;
     }
 
+    /**
+     * Executor running the partitions of a broadcast, the calling thread runs
+     * one partition itself.
+     */
+    public void setBroadcastExecutor(Executor broadcastExecutor) {
+        this.broadcastExecutor = broadcastExecutor;
+    }
+
+    /**
+     * Number of partitions a broadcast is split into, 1 (the default) sends
+     * from the calling thread only. Usually the number of cores.
+     */
+    public void setBroadcastParallelism(int broadcastParallelism) {
+        this.broadcastParallelism = broadcastParallelism;
+    }
+
+    /**
+     * Maximum number of messages a session queues while no receiver takes
+     * them, unbounded by default.
+     */
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    /**
+     * Maximum size of the messages a session queues, unbounded by default.
+     *
+     * @see PreparedMessage#getSize()
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Policy applied when a session queue is full, {@link OverflowPolicy#REJECT} by default.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Close frame sent with the {@link OverflowPolicy#CLOSE} policy, 1008
+     * "Outbound queue overflow" by default.
+     */
+    public void setOverflowCloseStatus(int overflowCloseStatus, String overflowCloseReason) {
+        this.overflowCloseStatus = overflowCloseStatus;
+        this.overflowCloseReason = overflowCloseReason;
+    }
+
+    /**
+     * Delay a session waits after a send before flushing, so that the
+     * messages sent meanwhile are written in the same frame. Disabled by
+     * default, each send is flushed at once.
+     */
+    public void setFlushLinger(long flushLinger, TimeUnit unit) {
+        this.flushLingerNanos = unit.toNanos(flushLinger);
+    }
+
+    /**
+     * Queued bytes above which a session is reported unwritable to its
+     * callback, and below which it is reported writable again. Disabled by
+     * default.
+     *
+     * @see WritabilitySessionCallback#onWritabilityChanged(Session, boolean)
+     */
+    public void setQueueWaterMarks(long lowWaterMark, long highWaterMark) {
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Executor calling the session callbacks instead of the I/O threads, the
+     * events of a session are still handled one at a time and in order. By
+     * default the callbacks are called by the I/O threads.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Estimated size of the received messages waiting for the callback
+     * executor, per session and for the whole service, above which the
+     * channels of the receivers stop reading until the callbacks catch up,
+     * without blocking the I/O threads. Unbounded by default.
+     */
+    public void setCallbackMemoryLimits(long maxSessionPendingSize, long maxTotalPendingSize) {
+        this.maxSessionPendingCallbackSize = maxSessionPendingSize;
+        this.maxTotalPendingCallbackSize = maxTotalPendingSize;
+    }
+
+    /**
+     * Store of the sessions of the service, which must not be shared with
+     * another service. By default each service gets a new
+     * {@link ShardedSessionStore}.
+     */
+    public void setSessionStore(SessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+    }
+
+    /**
+     * One message in this many sent by a session has its latencies recorded
+     * in the metrics of the service, 1024 by default. 0 disables the
+     * sampling, 1 records every message. A histogram of about 8 KB is
+     * created for each stage of each transport the service samples.
+     *
+     * @see ServiceMetrics.Latency
+     */
+    public void setLatencySampleInterval(int latencySampleInterval) {
+        this.latencySampleInterval = latencySampleInterval;
+    }
+
+    /**
+     * Compression of the messages of the websockets which offer the
+     * permessage-deflate extension, null to disable it as by default.
+     * Compressing costs CPU on each message, and memory on each websocket
+     * with the context takeover.
+     */
+    public void setWebSocketCompression(PerMessageDeflate webSocketCompression) {
+        this.webSocketCompression = webSocketCompression;
+    }
+
+    /**
+     * Gzip compression of the xhr_streaming, eventsource and htmlfile
+     * responses to the clients which accept it, null to disable it as by
+     * default. Each chunk is flushed, so that the frames are not delayed,
+     * and the response size limit then applies to the compressed bytes.
+     */
+    public void setStreamingCompression(StreamingCompression streamingCompression) {
+        this.streamingCompression = streamingCompression;
+    }
+
+    /**
+     * Maximum number of bytes of a message received by xhr_send or
+     * jsonp_send, JSON escaped and UTF-8 encoded as in the body, 64 KiB by
+     * default. The request is answered with a 413 once a message goes
+     * over, the messages before it are delivered.
+     *
+     * @see PreparedMessage#getSize()
+     */
+    public void setMessageSizeLimit(int messageSizeLimit) {
+        this.messageSizeLimit = messageSizeLimit;
+    }
+
+    /**
+     * Maximum number of bytes of the body of an xhr_send or jsonp_send
+     * request, and of the payload of a frame received by a websocket once
+     * decompressed, 64 KiB by default. The bodies are decoded as they are
+     * received, so this limit also holds for the pipelines without an
+     * <code>HttpChunkAggregator</code>. Keep it finite when the websockets
+     * are compressed, a small compressed frame can inflate to gigabytes.
+     */
+    public void setRequestSizeLimit(int requestSizeLimit) {
+        this.requestSizeLimit = requestSizeLimit;
+    }
+
     public Service build() {
         if(url == null) {
             throw new NullPointerException("url");
@@ -70,38 +289,162 @@ public final class ServiceBuilder {
         if(scheduledExecutor == null) {
             throw new NullPointerException("scheduledExecutor");
         }
+        Timer[] sessionTimers;
+        if(timers == null) {
+            sessionTimers = new Timer[] { new ScheduledExecutorTimer(scheduledExecutor) };
+        } else {
+            if(timers.length == 0) {
+                throw new IllegalArgumentException("timers must not be empty");
+            }
+            sessionTimers = timers.clone();
+            for(Timer timer : sessionTimers) {
+                if(timer == null) {
+                    throw new NullPointerException("timer");
+                }
+            }
+        }
         if(javascriptLibraryUrl == null) {
             throw new NullPointerException("javascriptLibraryUrl");
         }
+        if(broadcastParallelism < 1) {
+            throw new IllegalArgumentException("broadcastParallelism must be positive");
+        }
+        if(broadcastParallelism > 1 && broadcastExecutor == null) {
+            throw new NullPointerException("broadcastExecutor");
+        }
+        if(maxQueuedMessages < 1) {
+            throw new IllegalArgumentException("maxQueuedMessages must be positive");
+        }
+        if(maxQueuedBytes < 1) {
+            throw new IllegalArgumentException("maxQueuedBytes must be positive");
+        }
+        if(overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        if(overflowCloseReason == null) {
+            throw new NullPointerException("overflowCloseReason");
+        }
+        if(flushLingerNanos < 0) {
+            throw new IllegalArgumentException("flushLinger must not be negative");
+        }
+        if(lowWaterMark < 0 || lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark must be between 0 and highWaterMark");
+        }
+        if(maxSessionPendingCallbackSize < 1 || maxTotalPendingCallbackSize < 1) {
+            throw new IllegalArgumentException("callback memory limits must be positive");
+        }
+        if(latencySampleInterval < 0) {
+            throw new IllegalArgumentException("latencySampleInterval must not be negative");
+        }
+        if(messageSizeLimit < 1 || requestSizeLimit < 1) {
+            throw new IllegalArgumentException("send size limits must be positive");
+        }
 
-        return new ServiceImpl(url, factory, javascriptLibraryUrl, isWebSocketEnabled, maxResponseSize, jsessionidEnabled, scheduledExecutor, timeoutDelay, hreatbeatDelay);
+        SessionStore serviceSessionStore;
+        serviceSessionStore = sessionStore != null ? sessionStore : new ShardedSessionStore();
+
+        ServiceImpl service;
+        service = new ServiceImpl(url, factory, javascriptLibraryUrl, isWebSocketEnabled, maxResponseSize, jsessionidEnabled, scheduledExecutor, sessionTimers, timeoutDelay, hreatbeatDelay,
+                broadcastExecutor, broadcastParallelism, maxQueuedMessages, maxQueuedBytes, overflowPolicy, overflowCloseStatus, overflowCloseReason,
+                flushLingerNanos, lowWaterMark, highWaterMark, callbackExecutor, maxSessionPendingCallbackSize,
+                maxTotalPendingCallbackSize, serviceSessionStore, latencySampleInterval, webSocketCompression,
+                streamingCompression, messageSizeLimit, requestSizeLimit);
+        service.scheduleHeartbeatSweeps();
+        return service;
     }
 
-    private static class ServiceImpl implements Service {
+    private static class ServiceImpl implements Service, SessionStore.Factory, SessionConfig.Disposer {
 
         private final String                                      url;
         private final String                                      javascriptLibraryUrl;
-        private final ConcurrentMap<String, SimpleSessionHandler> sessions;
+        private final SessionStore                                sessions;
         private final SessionCallbackFactory                      factory;
         private final boolean                                     isWebSocketEnabled;
         private final int                                         responseSizeLimit;
         private final boolean                                     jsessionidEnabled;
-        private final ScheduledExecutorService                    scheduledExecutor;
+        private final Timer[]                                     timers;
         private final Integer                                     timeoutDelay;
         private final Integer                                      hreatbeatDelay;
+        private final Executor                                    broadcastExecutor;
+        private final int                                         broadcastParallelism;
+        private final TopicRegistry                               topics;
+        private final AtomicLong                                  queueOverflowCount;
+        private final SessionConfig                               sessionConfig;
+        private final ServiceMetrics                              metrics;
+        private final long                                        heartbeatSweepPeriod;
+        /** The next heartbeat sweep, null once stopped */
+        private volatile Timeout                                  heartbeatSweep;
+        private volatile boolean                                  stopped;
+        private final Executor                                    callbackExecutor;
+        private final OrderedSessionCallback.MemoryLimit          callbackMemoryLimit;
+        private final long                                        maxSessionPendingCallbackSize;
+        private final PerMessageDeflate                           webSocketCompression;
+        private final StreamingCompression                        streamingCompression;
+        private final int                                         messageSizeLimit;
+        private final int                                         requestSizeLimit;
 
         public ServiceImpl(String url, SessionCallbackFactory factory, String javascriptLibraryUrl, boolean isWebSocketEnabled, int responseSizeLimit,
-                           boolean jsessionid, ScheduledExecutorService scheduledExecutor, Integer timeoutDelay, Integer hreatbeatDelay) {
+                           boolean jsessionid, ScheduledExecutorService scheduledExecutor, Timer[] timers, Integer timeoutDelay, Integer hreatbeatDelay,
+                           Executor broadcastExecutor, int broadcastParallelism, int maxQueuedMessages, long maxQueuedBytes,
+                           OverflowPolicy overflowPolicy, int overflowCloseStatus, String overflowCloseReason,
+                           long flushLingerNanos, long lowWaterMark, long highWaterMark, Executor callbackExecutor,
+                           long maxSessionPendingCallbackSize, long maxTotalPendingCallbackSize, SessionStore sessions,
+                           int latencySampleInterval, PerMessageDeflate webSocketCompression,
+                           StreamingCompression streamingCompression, int messageSizeLimit, int requestSizeLimit) {
             this.url = url;
             this.factory = factory;
             this.javascriptLibraryUrl = javascriptLibraryUrl;
             this.isWebSocketEnabled = isWebSocketEnabled;
+            this.webSocketCompression = webSocketCompression;
+            this.streamingCompression = streamingCompression;
             this.responseSizeLimit = responseSizeLimit;
+            this.messageSizeLimit = messageSizeLimit;
+            this.requestSizeLimit = requestSizeLimit;
             this.jsessionidEnabled = jsessionid;
-            this.scheduledExecutor = scheduledExecutor;
+            this.timers = timers;
             this.timeoutDelay = timeoutDelay;
             this.hreatbeatDelay = hreatbeatDelay;
-            this.sessions = new ConcurrentHashMap<String, SimpleSessionHandler>();
+            this.broadcastExecutor = broadcastExecutor;
+            this.broadcastParallelism = broadcastParallelism;
+            this.sessions = sessions;
+            this.topics = new TopicRegistry();
+            this.queueOverflowCount = new AtomicLong();
+            this.metrics = new ServiceMetrics(latencySampleInterval);
+            this.sessionConfig = new SessionConfig(scheduledExecutor, timers, timeoutDelay, hreatbeatDelay, this, maxQueuedMessages,
+                    maxQueuedBytes, overflowPolicy, overflowCloseStatus, overflowCloseReason, queueOverflowCount, flushLingerNanos,
+                    lowWaterMark, highWaterMark, metrics);
+            this.heartbeatSweepPeriod = Math.max(1, hreatbeatDelay / HEARTBEAT_SWEEPS_PER_DELAY);
+            this.callbackExecutor = callbackExecutor;
+            if(maxSessionPendingCallbackSize != Long.MAX_VALUE || maxTotalPendingCallbackSize != Long.MAX_VALUE) {
+                this.callbackMemoryLimit = new OrderedSessionCallback.MemoryLimit(maxTotalPendingCallbackSize);
+            } else {
+                this.callbackMemoryLimit = null;
+            }
+            this.maxSessionPendingCallbackSize = maxSessionPendingCallbackSize;
+        }
+
+        public void scheduleHeartbeatSweeps() {
+            scheduleHeartbeatSweep(new HeartbeatSweep());
+        }
+
+        private void scheduleHeartbeatSweep(HeartbeatSweep sweep) {
+            Timeout timeout;
+            timeout = timers[0].newTimeout(sweep, heartbeatSweepPeriod, TimeUnit.MILLISECONDS);
+            heartbeatSweep = timeout;
+            // stop() may have missed the new sweep
+            if(stopped) {
+                timeout.cancel();
+            }
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+            Timeout timeout = heartbeatSweep;
+            if(timeout != null) {
+                timeout.cancel();
+            }
+            heartbeatSweep = null;
         }
 
         @Override
@@ -124,32 +467,58 @@ public final class ServiceBuilder {
             return isWebSocketEnabled;
         }
 
+        @Override
+        public PerMessageDeflate getWebSocketCompression() {
+            return webSocketCompression;
+        }
+
+        @Override
+        public StreamingCompression getStreamingCompression() {
+            return streamingCompression;
+        }
+
         @Override
         public int getResponseSizeLimit() {
             return responseSizeLimit;
         }
 
+        @Override
+        public int getMessageSizeLimit() {
+            return messageSizeLimit;
+        }
+
+        @Override
+        public int getRequestSizeLimit() {
+            return requestSizeLimit;
+        }
+
         @Override
         public boolean isJsessionidEnabled() {
             return jsessionidEnabled;
         }
 
         @Override
-        public SimpleSessionHandler getOrCreateSession(String sessionId) {
-            SimpleSessionHandler session;
+        public long getQueueOverflowCount() {
+            return queueOverflowCount.get();
+        }
 
-            session = sessions.get(sessionId);
-            if (session == null) {
-                SimpleSessionHandler newSession;
+        @Override
+        public ServiceMetrics.Snapshot getMetrics() {
+            return metrics.snapshot(sessions);
+        }
 
-                newSession = newSession(sessionId);
-                session = sessions.putIfAbsent(sessionId, newSession);
-                if (session == null) {
-                    session = newSession;
-                }
-            }
+        @Override
+        public SimpleSessionHandler getOrCreateSession(String sessionId) {
+            return sessions.getOrCreate(sessionId, this);
+        }
 
-            return session;
+        /**
+         * Called by the session store for the ids it is missing only.
+         */
+        @Override
+        public SimpleSessionHandler create(String sessionId) {
+            metrics.increment(ServiceMetrics.Counter.SESSIONS_CREATED);
+            return newSession(sessionId);
         }
 
         @Override
@@ -171,15 +540,21 @@ public final class ServiceBuilder {
          */
         @Override
         public SimpleSessionHandler forceCreateSession(String sessionId) {
-            SimpleSessionHandler newSession;
+            final SimpleSessionHandler newSession;
             newSession = newSession(sessionId);
 
-            SimpleSessionHandler oldSession;
-            oldSession = sessions.replace(sessionId, newSession);
+            SimpleSessionHandler session;
+            session = sessions.getOrCreate(sessionId, new SessionStore.Factory() {
+                @Override
+                public SimpleSessionHandler create(String sessionId) {
+                    return newSession;
+                }
+            });
 
-            if (oldSession != null) {
-                throw new IllegalStateException("this is a bug");
+            if (session != newSession) {
+                throw new IllegalStateException("session " + sessionId + " already exists");
             }
+            metrics.increment(ServiceMetrics.Counter.SESSIONS_CREATED);
 
             return newSession;
         }
@@ -190,7 +565,177 @@ public final class ServiceBuilder {
          */
         @Override
         public SimpleSessionHandler removeSession(SimpleSessionHandler aSessionHandler) {
-            return sessions.remove(aSessionHandler);
+            return sessions.remove(aSessionHandler) ? aSessionHandler : null;
+        }
+
+        @Override
+        public PreparedMessage prepareMessage(String message) {
+            return new PreparedMessage(message);
+        }
+
+        @Override
+        public BroadcastResult broadcast(String message) {
+            return broadcast(null, prepareMessage(message));
+        }
+
+        @Override
+        public BroadcastResult broadcast(PreparedMessage message) {
+            return broadcast(null, message);
+        }
+
+        @Override
+        public BroadcastResult broadcast(SessionFilter filter, String message) {
+            return broadcast(filter, prepareMessage(message));
+        }
+
+        @Override
+        public BroadcastResult broadcast(SessionFilter filter, PreparedMessage message) {
+            if(message == null) {
+                throw new NullPointerException("message");
+            }
+
+            List<SimpleSessionHandler> snapshot;
+            snapshot = new ArrayList<SimpleSessionHandler>(sessions.size());
+            for(SimpleSessionHandler session : sessions) {
+                snapshot.add(session);
+            }
+
+            return broadcast(snapshot.toArray(new SimpleSessionHandler[snapshot.size()]), filter, message);
+        }
+
+        @Override
+        public boolean subscribe(Session session, String topic) {
+            if(topic == null) {
+                throw new NullPointerException("topic");
+            }
+
+            SimpleSessionHandler sessionHandler;
+            sessionHandler = getOwnSession(session);
+
+            boolean subscribed;
+            subscribed = topics.subscribe(sessionHandler, topic);
+            if(subscribed) {
+                PreparedMessage retainedMessage;
+                retainedMessage = topics.getRetainedMessage(topic);
+                if(retainedMessage != null) {
+                    sessionHandler.offer(retainedMessage);
+                }
+            }
+            return subscribed;
+        }
+
+        @Override
+        public boolean unsubscribe(Session session, String topic) {
+            if(topic == null) {
+                throw new NullPointerException("topic");
+            }
+
+            return topics.unsubscribe(getOwnSession(session).getId(), topic);
+        }
+
+        @Override
+        public BroadcastResult publish(String topic, String message) {
+            return publish(topic, prepareMessage(message), false);
+        }
+
+        @Override
+        public BroadcastResult publish(String topic, PreparedMessage message, boolean retain) {
+            if(topic == null) {
+                throw new NullPointerException("topic");
+            }
+            if(message == null) {
+                throw new NullPointerException("message");
+            }
+
+            if(retain) {
+                topics.retain(topic, message);
+            }
+            return broadcast(topics.getSubscribers(topic), null, message);
+        }
+
+        @Override
+        public void clearRetainedMessage(String topic) {
+            if(topic == null) {
+                throw new NullPointerException("topic");
+            }
+
+            topics.retain(topic, null);
+        }
+
+        private SimpleSessionHandler getOwnSession(Session session) {
+            if(session == null) {
+                throw new NullPointerException("session");
+            }
+            if(!(session instanceof SimpleSessionHandler) || sessions.get(((SimpleSessionHandler) session).getId()) != session) {
+                throw new IllegalArgumentException("not a session of " + url);
+            }
+            return (SimpleSessionHandler) session;
+        }
+
+        /**
+         * Splits a snapshot of sessions into partitions, all but the first
+         * one run on the broadcast executor while the calling thread runs the
+         * first one.
+         */
+        private BroadcastResult broadcast(SimpleSessionHandler[] snapshot, SessionFilter filter, PreparedMessage message) {
+            int partitionCount;
+            partitionCount = (snapshot.length + MIN_BROADCAST_PARTITION_SIZE - 1) / MIN_BROADCAST_PARTITION_SIZE;
+            partitionCount = Math.max(1, Math.min(broadcastParallelism, partitionCount));
+
+            List<FutureTask<BroadcastResult>> forkedPartitions;
+            forkedPartitions = new ArrayList<FutureTask<BroadcastResult>>(partitionCount - 1);
+            for(int i = 1; i < partitionCount; i++) {
+                FutureTask<BroadcastResult> partition;
+                partition = new FutureTask<BroadcastResult>(new BroadcastPartition(snapshot, partitionStart(snapshot, i, partitionCount),
+                        partitionStart(snapshot, i + 1, partitionCount), filter, message));
+                try {
+                    broadcastExecutor.execute(partition);
+                } catch (RejectedExecutionException e) {
+                    partition.run();
+                }
+                forkedPartitions.add(partition);
+            }
+
+            BroadcastResult result;
+            result = new BroadcastPartition(snapshot, 0, partitionStart(snapshot, 1, partitionCount), filter, message).call();
+            for(FutureTask<BroadcastResult> partition : forkedPartitions) {
+                result = result.add(awaitPartition(partition));
+            }
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Broadcast on " + url + " in " + partitionCount + " partitions: " + result);
+
+            return result;
+        }
+
+        private static int partitionStart(SimpleSessionHandler[] snapshot, int partition, int partitionCount) {
+            return (int) ((long) snapshot.length * partition / partitionCount);
+        }
+
+        private static BroadcastResult awaitPartition(FutureTask<BroadcastResult> partition) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return partition.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        }
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
 
         /**
@@ -198,16 +743,139 @@ public final class ServiceBuilder {
          * @return
          * @throws Exception
          */
-        private SimpleSessionHandler newSession(final String sessionId) {
-            Runnable disposer;
-            disposer = new Runnable() {
-                @Override
-                public void run() {
-                    sessions.remove(sessionId);
+        private SimpleSessionHandler newSession(String sessionId) {
+            SessionCallback callback;
+            callback = factory.createSessionCallback(sessionId);
+            if(callbackExecutor != null) {
+                callback = new OrderedSessionCallback(callback, callbackExecutor, callbackMemoryLimit, maxSessionPendingCallbackSize);
+            }
+
+            return new SimpleSessionHandler(sessionId, callback, sessionConfig);
+        }
+
+        /**
+         * Removes a closed session from the store, unless a new session took
+         * its id, and drops its subscriptions.
+         */
+        @Override
+        public void dispose(SimpleSessionHandler session) {
+            if(sessions.remove(session)) {
+                metrics.increment(ServiceMetrics.Counter.SESSIONS_CLOSED);
+            }
+            topics.unsubscribeAll(session.getId());
+        }
+
+        /**
+         * @return a delay within a few sweep periods, derived from the
+         *         session id so it does not change between two sweeps
+         */
+        private long heartbeatJitterNanos(String sessionId) {
+            int mixed;
+            mixed = sessionId.hashCode() * 0x9E3779B9;
+            return (long) ((mixed >>> 1) / (double) (1L << 31)
+                    * TimeUnit.MILLISECONDS.toNanos(heartbeatSweepPeriod * HEARTBEAT_JITTER_SWEEPS));
+        }
+
+        /**
+         * Sends a heartbeat to the sessions nothing was written to during the
+         * heartbeat delay, then schedules the next sweep. Sessions written to
+         * at the same time get jitters of up to a few sweep periods, so that
+         * their heartbeats are spread over as many sweeps, sent that much
+         * before the heartbeat delay.
+         *
+         * The sessions are iterated once per sweep, on the first timer. With
+         * several timers they are handed over in batches to their own timer,
+         * so that the heartbeats are written from the thread of the timer.
+         */
+        private final class HeartbeatSweep implements TimerTask {
+
+            @Override
+            public void run(Timeout timeout) {
+                if(stopped) {
+                    return;
                 }
-            };
-            return new SimpleSessionHandler(sessionId, factory.createSessionCallback(sessionId), scheduledExecutor,
-                    timeoutDelay, hreatbeatDelay, disposer);
+                try {
+                    sweep();
+                } finally {
+                    try {
+                        scheduleHeartbeatSweep(this);
+                    } catch (IllegalStateException e) {
+                        if (LOGGER.isDebugEnabled())
+                            LOGGER.debug("Heartbeat sweep of " + url + " stopped: " + e.getMessage());
+                    }
+                }
+            }
+
+            private void sweep() {
+                if(timers.length == 1) {
+                    heartbeat(sessions.iterator(), Integer.MAX_VALUE);
+                    return;
+                }
+
+                HeartbeatBatch[] batches;
+                batches = new HeartbeatBatch[timers.length];
+                for(SimpleSessionHandler session : sessions) {
+                    int timerIndex = sessionConfig.timerIndex(session.getId());
+                    HeartbeatBatch batch = batches[timerIndex];
+                    if(batch == null) {
+                        batch = batches[timerIndex] = new HeartbeatBatch();
+                    }
+                    batch.sessions.add(session);
+                    if(batch.sessions.size() == HEARTBEAT_BATCH_SIZE) {
+                        dispatch(timerIndex, batch);
+                        batches[timerIndex] = null;
+                    }
+                }
+                for(int i = 0; i < batches.length; i++) {
+                    if(batches[i] != null) {
+                        dispatch(i, batches[i]);
+                    }
+                }
+            }
+
+            private void dispatch(int timerIndex, HeartbeatBatch batch) {
+                try {
+                    timers[timerIndex].newTimeout(batch, 0, TimeUnit.MILLISECONDS);
+                } catch (IllegalStateException e) {
+                    if (LOGGER.isDebugEnabled())
+                        LOGGER.debug("Heartbeats of " + url + " skipped: " + e.getMessage());
+                }
+            }
+
+        }
+
+        /**
+         * Sessions of a timer handed over by a sweep.
+         */
+        private final class HeartbeatBatch implements TimerTask {
+
+            private final List<SimpleSessionHandler> sessions = new ArrayList<SimpleSessionHandler>(HEARTBEAT_BATCH_SIZE);
+
+            @Override
+            public void run(Timeout timeout) {
+                heartbeat(sessions.iterator(), sessions.size());
+            }
+
+        }
+
+        private void heartbeat(Iterator<SimpleSessionHandler> iterator, int count) {
+            long now;
+            now = System.nanoTime();
+
+            int heartbeats = 0;
+            for(int i = 0; i < count && iterator.hasNext(); i++) {
+                SimpleSessionHandler session = iterator.next();
+                try {
+                    if(session.heartbeatIfIdle(now, heartbeatJitterNanos(session.getId()))) {
+                        heartbeats++;
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Heartbeat to " + session + " failed", e);
+                }
+            }
+
+            if (LOGGER.isDebugEnabled() && heartbeats > 0)
+                LOGGER.debug("Heartbeat sweep of " + url + " sent " + heartbeats + " heartbeats");
         }
 
         @Override
@@ -219,4 +887,57 @@ public final class ServiceBuilder {
 
     }
 
+    /**
+     * Sends a message to a range of a sessions snapshot.
+     */
+    private static final class BroadcastPartition implements Callable<BroadcastResult> {
+
+        private final SimpleSessionHandler[] sessions;
+        private final int                    from;
+        private final int                    to;
+        private final SessionFilter          filter;
+        private final PreparedMessage        message;
+
+        public BroadcastPartition(SimpleSessionHandler[] sessions, int from, int to, SessionFilter filter, PreparedMessage message) {
+            this.sessions = sessions;
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+            this.message = message;
+        }
+
+        @Override
+        public BroadcastResult call() {
+            int delivered = 0;
+            int queued = 0;
+            int skipped = 0;
+
+            for(int i = from; i < to; i++) {
+                SimpleSessionHandler session = sessions[i];
+
+                if(filter != null && !filter.accept(session)) {
+                    skipped++;
+                    continue;
+                }
+
+                SimpleSessionHandler.Delivery delivery;
+                try {
+                    delivery = session.offer(message);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Broadcast to " + session + " failed", e);
+                    delivery = SimpleSessionHandler.Delivery.SKIPPED;
+                }
+
+                switch (delivery) {
+                    case DELIVERED: delivered++; break;
+                    case QUEUED:    queued++; break;
+                    default:        skipped++; break;
+                }
+            }
+
+            return new BroadcastResult(delivered, queued, skipped);
+        }
+
+    }
+
 }
@@ -0,0 +1,308 @@
+package com.cgbystrom.sockjs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.cgbystrom.sockjs.handlers.SessionHandler.Receiver;
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+import com.cgbystrom.sockjs.transports.TransportType;
+
+/**
+ * Metrics of a service, read through {@link Service#getMetrics()}.
+ *
+ * The events are counted by {@link StripedCounter}s as they happen, so that
+ * the sessions of several threads do not contend on them. The sessions by
+ * state and by transport and the depths of the queues are not maintained,
+ * they are computed by going through the sessions when a snapshot is taken.
+ *
+ * The latencies of the messages are sampled, one message in
+ * {@link #getLatencySampleInterval()} sent by a session is timed, and
+ * recorded in a {@link LatencyHistogram} per stage and transport.
+ */
+public final class ServiceMetrics {
+
+    /**
+     * Events counted since the service was built. The sizes of the messages
+     * are given in bytes by {@link PreparedMessage#getSize()}, the received
+     * ones are measured alike.
+     */
+    public enum Counter {
+
+        SESSIONS_CREATED,
+
+        SESSIONS_CLOSED,
+
+        MESSAGES_RECEIVED,
+
+        BYTES_RECEIVED,
+
+        MESSAGES_SENT,
+
+        BYTES_SENT,
+
+        HEARTBEATS,
+
+        TIMEOUTS,
+
+        /** Receivers refused as another one was still connected to the session */
+        RECEIVER_COLLISIONS
+
+    }
+
+    /**
+     * Stages of the delivery of a message, timed from the send.
+     */
+    public enum Latency {
+
+        /** From the send to the write to the receiver, when a receiver was connected */
+        ENQUEUE_TO_FLUSH,
+
+        /**
+         * From the send to the write to the receiver, when no receiver was
+         * connected: for the polling transports, the wait for the next poll
+         */
+        POLL_WAIT,
+
+        /** From the write to the receiver to the completion of its channel future */
+        FLUSH_TO_WRITE
+
+    }
+
+    /**
+     * The queue depths are counted in buckets of powers of two: bucket 0
+     * holds the empty queues, bucket i the depths from 2^(i-1) to 2^i - 1.
+     */
+    public static final int QUEUE_DEPTH_BUCKETS = 18;
+
+    private static final Counter[]          COUNTERS = Counter.values();
+    private static final Latency[]          LATENCIES = Latency.values();
+    private static final TransportType[]    TRANSPORTS = TransportType.values();
+    private static final SimpleSessionHandler.State[] STATES = SimpleSessionHandler.State.values();
+
+    private final StripedCounter[]     counters;
+    private final int                  latencySampleInterval;
+    /**
+     * By latency then transport, each histogram created by its first
+     * sample, null when the latencies are not sampled
+     */
+    private final AtomicReferenceArray<LatencyHistogram> latencies;
+
+    /**
+     * Metrics without latencies.
+     */
+    public ServiceMetrics() {
+        this(0);
+    }
+
+    /**
+     * @param latencySampleInterval one message in this many sent by a
+     *        session has its latencies recorded, 0 to record none
+     */
+    public ServiceMetrics(int latencySampleInterval) {
+        if(latencySampleInterval < 0) {
+            throw new IllegalArgumentException("latencySampleInterval must not be negative");
+        }
+        counters = new StripedCounter[COUNTERS.length];
+        for(int i = 0; i < counters.length; i++) {
+            counters[i] = new StripedCounter();
+        }
+        this.latencySampleInterval = latencySampleInterval;
+        if(latencySampleInterval > 0) {
+            latencies = new AtomicReferenceArray<LatencyHistogram>(LATENCIES.length * TRANSPORTS.length);
+        } else {
+            latencies = null;
+        }
+    }
+
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public void add(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    /**
+     * @return one message in this many sent by a session has its latencies
+     *         recorded, 0 if none has
+     */
+    public int getLatencySampleInterval() {
+        return latencySampleInterval;
+    }
+
+    /**
+     * Records the latency of a sampled message, ignored if the latencies are
+     * not sampled.
+     */
+    public void recordLatency(Latency latency, TransportType transport, long nanos) {
+        if(latencies == null) {
+            return;
+        }
+        int index = latency.ordinal() * TRANSPORTS.length + transport.ordinal();
+        LatencyHistogram histogram = latencies.get(index);
+        if(histogram == null) {
+            // a service uses a few transports, most histograms stay empty
+            latencies.compareAndSet(index, null, new LatencyHistogram());
+            histogram = latencies.get(index);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Sums the counters and goes through the sessions. The snapshot is not
+     * atomic, sessions and events may be counted or not while it is taken.
+     */
+    public Snapshot snapshot(Iterable<SimpleSessionHandler> sessions) {
+        long[] counts = new long[COUNTERS.length];
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] = counters[i].sum();
+        }
+
+        int[] sessionsByState = new int[STATES.length];
+        int[] sessionsByTransport = new int[TRANSPORTS.length];
+        long[] queueDepths = new long[QUEUE_DEPTH_BUCKETS];
+        for(SimpleSessionHandler session : sessions) {
+            sessionsByState[session.getState().ordinal()]++;
+
+            Receiver receiver = session.getReceiver();
+            TransportType transport = receiver != null ? receiver.getTransportType() : null;
+            if(transport != null) {
+                sessionsByTransport[transport.ordinal()]++;
+            }
+
+            int depth = session.getQueuedMessages();
+            queueDepths[Math.min(QUEUE_DEPTH_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(Math.max(0, depth)))]++;
+        }
+
+        LatencyHistogram.Snapshot[][] latencySnapshots = null;
+        if(latencies != null) {
+            latencySnapshots = new LatencyHistogram.Snapshot[LATENCIES.length][TRANSPORTS.length];
+            for(int i = 0; i < latencySnapshots.length; i++) {
+                for(int j = 0; j < latencySnapshots[i].length; j++) {
+                    LatencyHistogram histogram = latencies.get(i * TRANSPORTS.length + j);
+                    latencySnapshots[i][j] = histogram != null ? histogram.snapshot() : LatencyHistogram.EMPTY_SNAPSHOT;
+                }
+            }
+        }
+
+        return new Snapshot(System.nanoTime(), counts, sessionsByState, sessionsByTransport, queueDepths, latencySnapshots);
+    }
+
+    /**
+     * Metrics of a service at a point in time. Two snapshots give the rates
+     * of the counters over the time between them.
+     */
+    public static final class Snapshot {
+
+        private final long   time;
+        private final long[] counts;
+        private final int[]  sessionsByState;
+        private final int[]  sessionsByTransport;
+        private final long[] queueDepths;
+        private final LatencyHistogram.Snapshot[][] latencies;
+
+        Snapshot(long time, long[] counts, int[] sessionsByState, int[] sessionsByTransport, long[] queueDepths,
+                 LatencyHistogram.Snapshot[][] latencies) {
+            this.time = time;
+            this.counts = counts;
+            this.sessionsByState = sessionsByState;
+            this.sessionsByTransport = sessionsByTransport;
+            this.queueDepths = queueDepths;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} the snapshot was taken at
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getCount(Counter counter) {
+            return counts[counter.ordinal()];
+        }
+
+        /**
+         * @param previous a snapshot of the same service taken before this one
+         * @return the average number of events per second between the snapshots
+         */
+        public double getRate(Counter counter, Snapshot previous) {
+            if(previous == null) {
+                throw new NullPointerException("previous");
+            }
+            long elapsed = time - previous.time;
+            if(elapsed <= 0) {
+                return 0;
+            }
+            return (getCount(counter) - previous.getCount(counter)) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+
+        /**
+         * @return the number of sessions in the store
+         */
+        public int getSessions() {
+            int total = 0;
+            for(int count : sessionsByState) {
+                total += count;
+            }
+            return total;
+        }
+
+        public int getSessions(SimpleSessionHandler.State state) {
+            return sessionsByState[state.ordinal()];
+        }
+
+        /**
+         * @return the number of sessions with a receiver of this transport
+         *         connected, the others are waiting for their next request
+         */
+        public int getConnectedSessions(TransportType transport) {
+            return sessionsByTransport[transport.ordinal()];
+        }
+
+        /**
+         * @return the number of sessions with their queue depth in each bucket
+         * @see ServiceMetrics#QUEUE_DEPTH_BUCKETS
+         */
+        public long[] getQueueDepthHistogram() {
+            return queueDepths.clone();
+        }
+
+        /**
+         * @return the sampled latencies of a stage on a transport, null if
+         *         the latencies are not sampled
+         */
+        public LatencyHistogram.Snapshot getLatency(Latency latency, TransportType transport) {
+            return latencies != null ? latencies[latency.ordinal()][transport.ordinal()] : null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("ServiceMetrics.Snapshot [sessions=").append(getSessions());
+            for(SimpleSessionHandler.State state : STATES) {
+                builder.append(", ").append(state).append('=').append(getSessions(state));
+            }
+            for(TransportType transport : TRANSPORTS) {
+                if(getConnectedSessions(transport) > 0) {
+                    builder.append(", ").append(transport.getPath()).append('=').append(getConnectedSessions(transport));
+                }
+            }
+            for(Counter counter : COUNTERS) {
+                builder.append(", ").append(counter).append('=').append(getCount(counter));
+            }
+            if(latencies != null) {
+                for(Latency latency : LATENCIES) {
+                    for(TransportType transport : TRANSPORTS) {
+                        LatencyHistogram.Snapshot histogram = getLatency(latency, transport);
+                        if(histogram.getTotalCount() > 0) {
+                            builder.append(", ").append(latency).append(' ').append(transport.getPath()).append('=').append(histogram);
+                        }
+                    }
+                }
+            }
+            return builder.append(']').toString();
+        }
+
+    }
+
+}
@@ -2,10 +2,55 @@ package com.cgbystrom.sockjs;
 
 import java.net.SocketAddress;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 public interface Session {
 
     public void send(String message);
 
+    /**
+     * Sends a message prepared by {@link Service#prepareMessage(String)}
+     */
+    public void send(PreparedMessage message);
+
+    /**
+     * Sends a binary message, in a binary frame. The buffer is written as
+     * is and must not be modified once sent.
+     *
+     * @throws UnsupportedOperationException if the session is not a raw
+     *         websocket session
+     */
+    public void send(ChannelBuffer message);
+
+    /**
+     * Sends a binary message wrapping the array, which must not be modified
+     * once sent.
+     *
+     * @see #send(ChannelBuffer)
+     */
+    public void send(byte[] message);
+
+    /**
+     * Holds the messages sent from now on until {@link #uncork()} is called,
+     * so that they are written as a single frame. Calls can be nested.
+     *
+     * The cork holds the whole session, not the calling thread: while it is
+     * corked the messages sent by other threads and the broadcasts are held
+     * as well. Closing the session flushes them anyway.
+     */
+    public void cork();
+
+    /**
+     * Flushes the messages held since the outermost {@link #cork()}.
+     */
+    public void uncork();
+
+    /**
+     * @return the size of the messages queued and not written yet, as given
+     *         by {@link PreparedMessage#getSize()}
+     */
+    public long getQueuedBytes();
+
     public void close();
 
     public void close(int code, String message);
@@ -14,4 +59,18 @@ public interface Session {
 
     public SocketAddress getRemoteAddress();
 
+    /**
+     * Thrown by send() when the outbound queue of the session is full and its
+     * overflow policy is {@link OverflowPolicy#REJECT}.
+     */
+    public class QueueFull extends IllegalStateException {
+
+        private static final long serialVersionUID = -6001939574520914213L;
+
+        public QueueFull(String message) {
+            super(message);
+        }
+
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * Selects the sessions a broadcast is sent to.
+ *
+ * @see Service#broadcast(SessionFilter, PreparedMessage)
+ */
+public interface SessionFilter {
+
+    /**
+     * Called concurrently by the broadcast partitions.
+     *
+     * @param session
+     * @return true to send the message to this session
+     */
+    public boolean accept(Session session);
+
+}
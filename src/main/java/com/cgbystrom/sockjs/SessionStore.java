@@ -0,0 +1,66 @@
+package com.cgbystrom.sockjs;
+
+import java.util.Iterator;
+
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+
+/**
+ * The sessions of a service, by id. A store belongs to a single service.
+ *
+ * All the methods are called concurrently, by the I/O threads, the timers
+ * and the threads broadcasting.
+ *
+ * @see ServiceBuilder#setSessionStore(SessionStore)
+ * @see ShardedSessionStore
+ */
+public interface SessionStore extends Iterable<SimpleSessionHandler> {
+
+    /**
+     * Creates the session of an id missing from the store.
+     */
+    public interface Factory {
+
+        public SimpleSessionHandler create(String sessionId);
+
+    }
+
+    /**
+     * @param sessionId
+     * @return the session, or null if none has this id
+     */
+    public SimpleSessionHandler get(String sessionId);
+
+    /**
+     * Returns the session of an id, creating it if it is missing. This is
+     * atomic: the factory is only called when the id is missing, and at most
+     * once for all the threads asking for the same id.
+     *
+     * @param sessionId
+     * @param factory
+     * @return the existing or created session
+     */
+    public SimpleSessionHandler getOrCreate(String sessionId, Factory factory);
+
+    /**
+     * Removes a session, unless its id is now mapped to another session.
+     *
+     * @param session
+     * @return true if the session was removed
+     */
+    public boolean remove(SimpleSessionHandler session);
+
+    /**
+     * @return the number of sessions, which may be stale if sessions are
+     *         added or removed concurrently
+     */
+    public int size();
+
+    /**
+     * Iterates the sessions without blocking the other methods. The iterator
+     * does not throw ConcurrentModificationException, sessions added or
+     * removed while iterating may or may not be returned.
+     */
+    @Override
+    public Iterator<SimpleSessionHandler> iterator();
+
+}
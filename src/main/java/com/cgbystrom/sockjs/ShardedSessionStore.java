@@ -0,0 +1,321 @@
+package com.cgbystrom.sockjs;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+
+/**
+ * The default {@link SessionStore}, split into shards picked by the hash of
+ * the session ids.
+ *
+ * Each shard is an open addressing table with linear probing, so a session
+ * only costs an int and two references instead of the node of a map, and
+ * the collector has no nodes to trace. Lookups do not lock: a slot is only
+ * emptied when no lookup probes past it, and a resized table is published
+ * as a whole. Insertions and removals lock their shard, the other
+ * tombstones are purged when the shard is resized.
+ */
+public final class ShardedSessionStore implements SessionStore {
+
+    private static final Object TOMBSTONE = new Object();
+
+    private static final int    MIN_CAPACITY = 8;
+    private static final int    MAX_SHARDS = 1 << 16;
+
+    private final Shard[]       shards;
+    private final int           shardBits;
+
+    /**
+     * A store with four shards per core.
+     */
+    public ShardedSessionStore() {
+        this(Runtime.getRuntime().availableProcessors() * 4, 0);
+    }
+
+    /**
+     * @param concurrency the number of shards, rounded up to a power of two
+     * @param expectedSessions the number of sessions to size the shards for
+     */
+    public ShardedSessionStore(int concurrency, int expectedSessions) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        if(expectedSessions < 0) {
+            throw new IllegalArgumentException("expectedSessions must not be negative");
+        }
+        int shardCount = powerOfTwo(Math.min(concurrency, MAX_SHARDS));
+        shardBits = Integer.numberOfTrailingZeros(shardCount);
+        shards = new Shard[shardCount];
+        for(int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(shardBits, capacityFor(expectedSessions / shardCount));
+        }
+    }
+
+    @Override
+    public SimpleSessionHandler get(String sessionId) {
+        int hash = hash(sessionId);
+        return shardFor(hash).get(sessionId, hash);
+    }
+
+    @Override
+    public SimpleSessionHandler getOrCreate(String sessionId, Factory factory) {
+        int hash = hash(sessionId);
+        Shard shard = shardFor(hash);
+
+        SimpleSessionHandler session;
+        session = shard.get(sessionId, hash);
+        if(session != null) {
+            return session;
+        }
+
+        synchronized (shard) {
+            session = shard.get(sessionId, hash);
+            if(session == null) {
+                session = factory.create(sessionId);
+                if(session == null || !session.getId().equals(sessionId)) {
+                    throw new IllegalStateException("factory did not create session " + sessionId);
+                }
+                shard.insert(session, hash);
+            }
+        }
+        return session;
+    }
+
+    @Override
+    public boolean remove(SimpleSessionHandler session) {
+        int hash = hash(session.getId());
+        Shard shard = shardFor(hash);
+        synchronized (shard) {
+            return shard.remove(session, hash);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<SimpleSessionHandler> iterator() {
+        return new SessionIterator();
+    }
+
+    private Shard shardFor(int hash) {
+        return shards[hash & (shards.length - 1)];
+    }
+
+    private static int hash(String sessionId) {
+        int hash = sessionId.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int powerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * @return a capacity keeping the table at most half full
+     */
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, powerOfTwo(size * 2));
+    }
+
+    /**
+     * The low bits of the hashes pick the shard, the slots of a shard are
+     * picked by the next bits.
+     */
+    private static final class Shard {
+
+        private final int     shardBits;
+
+        private volatile Table table;
+        private volatile int   size;
+
+        /** The slots holding a session or a tombstone, the table is resized at 3/4 */
+        private int            used;
+
+        Shard(int shardBits, int capacity) {
+            this.shardBits = shardBits;
+            table = new Table(capacity);
+        }
+
+        SimpleSessionHandler get(String sessionId, int hash) {
+            Table t = table;
+            for(int i = (hash >>> shardBits) & t.mask;; i = (i + 1) & t.mask) {
+                Object id = t.entries.get(i << 1);
+                if(id == null) {
+                    return null;
+                }
+                if(t.hashes[i] == hash && (id == sessionId || id.equals(sessionId))) {
+                    SimpleSessionHandler session = (SimpleSessionHandler) t.entries.get((i << 1) + 1);
+                    // the slot may have been emptied, or reused, since its id was read
+                    return session != null && session.getId() == id ? session : null;
+                }
+            }
+        }
+
+        /**
+         * Inserts a session whose id is missing, under the lock. The id and
+         * the session are published after the hash, the id last.
+         */
+        void insert(SimpleSessionHandler session, int hash) {
+            Table t = table;
+            if((used + 1) * 4 > t.capacity() * 3) {
+                t = resize(t);
+            }
+            int i = (hash >>> shardBits) & t.mask;
+            Object id;
+            while ((id = t.entries.get(i << 1)) != null && id != TOMBSTONE) {
+                i = (i + 1) & t.mask;
+            }
+            if(id == null) {
+                used++;
+            }
+            t.hashes[i] = hash;
+            t.entries.set((i << 1) + 1, session);
+            t.entries.set(i << 1, session.getId());
+            size = size + 1;
+        }
+
+        /**
+         * Removes a session under the lock. Its slot is emptied rather than
+         * marked if it ends a run of slots, as no lookup goes past it then,
+         * and so are the tombstones before it.
+         */
+        boolean remove(SimpleSessionHandler session, int hash) {
+            Table t = table;
+            for(int i = (hash >>> shardBits) & t.mask;; i = (i + 1) & t.mask) {
+                Object id = t.entries.get(i << 1);
+                if(id == null) {
+                    return false;
+                }
+                if(t.entries.get((i << 1) + 1) == session) {
+                    if(t.entries.get(((i + 1) & t.mask) << 1) == null) {
+                        t.entries.set(i << 1, null);
+                        used--;
+                        for(int j = (i - 1) & t.mask; t.entries.get(j << 1) == TOMBSTONE; j = (j - 1) & t.mask) {
+                            t.entries.set(j << 1, null);
+                            used--;
+                        }
+                    } else {
+                        t.entries.set(i << 1, TOMBSTONE);
+                    }
+                    t.entries.set((i << 1) + 1, null);
+                    size = size - 1;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Copies the sessions to a table sized for them, without the
+         * tombstones, and publishes it. The sessions are not read, their
+         * hashes are kept with them.
+         */
+        private Table resize(Table t) {
+            Table resized;
+            resized = new Table(capacityFor(size + 1));
+            for(int i = 0; i < t.capacity(); i++) {
+                Object id = t.entries.get(i << 1);
+                if(id != null && id != TOMBSTONE) {
+                    int j = (t.hashes[i] >>> shardBits) & resized.mask;
+                    while (resized.entries.get(j << 1) != null) {
+                        j = (j + 1) & resized.mask;
+                    }
+                    resized.hashes[j] = t.hashes[i];
+                    resized.entries.set((j << 1) + 1, t.entries.get((i << 1) + 1));
+                    resized.entries.set(j << 1, id);
+                }
+            }
+            used = size;
+            table = resized;
+            return resized;
+        }
+
+    }
+
+    /**
+     * The slots of a shard. The id and the session of a slot are next to each
+     * other, so a lookup reads a single line of the array once the hash
+     * matches.
+     */
+    private static final class Table {
+
+        final int[]                        hashes;
+
+        /** The id at 2i, empty, a tombstone or the id of the session at 2i + 1 */
+        final AtomicReferenceArray<Object> entries;
+        final int                          mask;
+
+        Table(int capacity) {
+            hashes = new int[capacity];
+            entries = new AtomicReferenceArray<Object>(capacity * 2);
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return hashes.length;
+        }
+
+    }
+
+    private final class SessionIterator implements Iterator<SimpleSessionHandler> {
+
+        private int                  shard = -1;
+        private Table                table;
+        private int                  index;
+        private SimpleSessionHandler next;
+
+        SessionIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                if(table != null) {
+                    while (index < table.capacity()) {
+                        Object session = table.entries.get((index++ << 1) + 1);
+                        if(session != null) {
+                            next = (SimpleSessionHandler) session;
+                            return;
+                        }
+                    }
+                }
+                if(++shard == shards.length) {
+                    return;
+                }
+                table = shards[shard].table;
+                index = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public SimpleSessionHandler next() {
+            if(next == null) {
+                throw new NoSuchElementException();
+            }
+            SimpleSessionHandler session = next;
+            advance();
+            return session;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.cgbystrom.sockjs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells, so that threads adding concurrently
+ * rarely update the same cache line. Adding is cheap, reading sums the
+ * cells and is only consistent if nothing is added meanwhile.
+ *
+ * The cell of a thread is picked by the hash of its id, like the cells of
+ * LongAdder which is not available on Java 6.
+ */
+public final class StripedCounter {
+
+    /** Longs between two cells, a cache line of 64 bytes */
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripeCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray((STRIPES + 1) * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    /**
+     * @return the sum of the cells
+     */
+    public long sum() {
+        long sum = 0;
+        for(int i = 1; i <= STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * The first cell is left empty, so that no cell shares its line with the
+     * header of the array.
+     */
+    private static int cellIndex() {
+        int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPES - 1)) * PADDING + PADDING;
+    }
+
+    private static int stripeCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, cores * 2 - 1)) << 1;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.cgbystrom.sockjs;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+
+/**
+ * Subscriptions of the sessions of a service to topics.
+ *
+ * Subscribers of a topic are kept in a concurrent map, so publishing only
+ * iterates it without locking. Subscribing and unsubscribing lock the topic
+ * itself, which is removed once it has neither subscribers nor retained
+ * message. The topics of each session are indexed as well, to drop all its
+ * subscriptions when the session is disposed. The index is updated under
+ * the lock of the topic too, so that a subscriber is never left out of it.
+ */
+final class TopicRegistry {
+
+    private static final SimpleSessionHandler[] NO_SUBSCRIBERS = new SimpleSessionHandler[0];
+
+    private final ConcurrentMap<String, Topic>       topics;
+    private final ConcurrentMap<String, Set<String>> topicsBySession;
+
+    public TopicRegistry() {
+        this.topics = new ConcurrentHashMap<String, Topic>();
+        this.topicsBySession = new ConcurrentHashMap<String, Set<String>>();
+    }
+
+    /**
+     * @return true if the session was not subscribed to the topic yet
+     */
+    public boolean subscribe(SimpleSessionHandler session, String topicName) {
+        boolean subscribed;
+        while (true) {
+            Topic topic;
+            topic = getOrCreateTopic(topicName);
+            synchronized (topic) {
+                if(topic.removed) {
+                    continue;
+                }
+                getOrCreateSessionTopics(session.getId()).add(topicName);
+                subscribed = topic.subscribers.put(session.getId(), session) != session;
+                break;
+            }
+        }
+
+        // the disposer may have run before the session was indexed
+        if(session.getState() == SimpleSessionHandler.State.CLOSED) {
+            unsubscribeAll(session.getId());
+            return false;
+        }
+
+        return subscribed;
+    }
+
+    public boolean unsubscribe(String sessionId, String topicName) {
+        Set<String> sessionTopics;
+        sessionTopics = topicsBySession.get(sessionId);
+        if(sessionTopics == null || !sessionTopics.contains(topicName)) {
+            return false;
+        }
+
+        while (true) {
+            // the topic is created again if it was removed meanwhile, and
+            // removed once unused
+            Topic topic;
+            topic = getOrCreateTopic(topicName);
+            synchronized (topic) {
+                if(topic.removed) {
+                    continue;
+                }
+                sessionTopics = topicsBySession.get(sessionId);
+                if(sessionTopics != null) {
+                    sessionTopics.remove(topicName);
+                }
+                boolean removed;
+                removed = topic.subscribers.remove(sessionId) != null;
+                removeIfUnused(topicName, topic);
+                return removed;
+            }
+        }
+    }
+
+    public void unsubscribeAll(String sessionId) {
+        Set<String> sessionTopics;
+        sessionTopics = topicsBySession.remove(sessionId);
+        if(sessionTopics != null) {
+            for(String topicName : sessionTopics) {
+                removeSubscriber(sessionId, topicName);
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the subscribers of the topic
+     */
+    public SimpleSessionHandler[] getSubscribers(String topicName) {
+        Topic topic;
+        topic = topics.get(topicName);
+        if(topic == null) {
+            return NO_SUBSCRIBERS;
+        }
+        return topic.subscribers.values().toArray(NO_SUBSCRIBERS);
+    }
+
+    public PreparedMessage getRetainedMessage(String topicName) {
+        Topic topic;
+        topic = topics.get(topicName);
+        return topic != null ? topic.retainedMessage : null;
+    }
+
+    /**
+     * @param message the message sent to new subscribers, null to clear it
+     */
+    public void retain(String topicName, PreparedMessage message) {
+        while (true) {
+            Topic topic;
+            topic = message != null ? getOrCreateTopic(topicName) : topics.get(topicName);
+            if(topic == null) {
+                return;
+            }
+            synchronized (topic) {
+                if(topic.removed) {
+                    continue;
+                }
+                topic.retainedMessage = message;
+                removeIfUnused(topicName, topic);
+                return;
+            }
+        }
+    }
+
+    private boolean removeSubscriber(String sessionId, String topicName) {
+        Topic topic;
+        topic = topics.get(topicName);
+        if(topic == null) {
+            return false;
+        }
+        synchronized (topic) {
+            boolean removed;
+            removed = topic.subscribers.remove(sessionId) != null;
+            removeIfUnused(topicName, topic);
+            return removed;
+        }
+    }
+
+    private void removeIfUnused(String topicName, Topic topic) {
+        if(topic.subscribers.isEmpty() && topic.retainedMessage == null) {
+            topic.removed = true;
+            topics.remove(topicName, topic);
+        }
+    }
+
+    private Set<String> getOrCreateSessionTopics(String sessionId) {
+        Set<String> sessionTopics;
+        sessionTopics = topicsBySession.get(sessionId);
+        if(sessionTopics == null) {
+            Set<String> newSessionTopics;
+            newSessionTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            sessionTopics = topicsBySession.putIfAbsent(sessionId, newSessionTopics);
+            if(sessionTopics == null) {
+                sessionTopics = newSessionTopics;
+            }
+        }
+        return sessionTopics;
+    }
+
+    private Topic getOrCreateTopic(String topicName) {
+        Topic topic;
+        topic = topics.get(topicName);
+        if(topic == null) {
+            Topic newTopic;
+            newTopic = new Topic();
+            topic = topics.putIfAbsent(topicName, newTopic);
+            if(topic == null) {
+                topic = newTopic;
+            }
+        }
+        return topic;
+    }
+
+    private static final class Topic {
+
+        private final ConcurrentMap<String, SimpleSessionHandler> subscribers = new ConcurrentHashMap<String, SimpleSessionHandler>();
+
+        private volatile PreparedMessage retainedMessage;
+
+        /** Set under the topic lock once it is no longer in the registry */
+        private boolean removed;
+
+    }
+
+}
@@ -0,0 +1,425 @@
+package com.cgbystrom.sockjs;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Hashed wheel {@link Timer} for the timeouts and heartbeats of many
+ * sessions.
+ *
+ * Scheduling and cancelling only add the timeout to a lock-free queue, a
+ * single worker thread moves the new timeouts into the buckets of the wheel
+ * and unlinks the cancelled ones on each tick, then runs the timeouts of the
+ * current bucket. Timeouts run up to a tick late, which is fine for session
+ * timeouts and heartbeats of several seconds.
+ *
+ * One worker thread runs the tasks of a timer. Services with many sessions
+ * can shard them over a few timers with {@link ServiceBuilder#setTimers(Timer...)}.
+ */
+public final class WheelTimer implements Timer {
+
+    private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(WheelTimer.class);
+
+    private static final AtomicIntegerFieldUpdater<WheelTimer> WORKER_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(WheelTimer.class, "workerState");
+    private static final AtomicIntegerFieldUpdater<WheelTimeout> TIMEOUT_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+    private static final int WORKER_INIT = 0;
+    private static final int WORKER_STARTED = 1;
+    private static final int WORKER_SHUTDOWN = 2;
+
+    private static final int TIMEOUT_INIT = 0;
+    private static final int TIMEOUT_CANCELLED = 1;
+    private static final int TIMEOUT_EXPIRED = 2;
+
+    /** New timeouts moved into the wheel per tick at most, so a burst does not stall the wheel */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final Thread                              workerThread;
+    private final long                                tickNanos;
+    private final Bucket[]                            wheel;
+    private final int                                 mask;
+    private final ConcurrentLinkedQueue<WheelTimeout> pendingTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final ConcurrentLinkedQueue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final CountDownLatch                      startLatch = new CountDownLatch(1);
+
+    private volatile int                              workerState;
+    private volatile long                             startTime;
+    /** Timeouts neither run nor cancelled when stopped, set by the worker thread */
+    private Set<Timeout>                              unprocessedTimeouts;
+
+    /**
+     * Creates a timer ticking every 100 milliseconds with 512 buckets.
+     */
+    public WheelTimer() {
+        this(100, TimeUnit.MILLISECONDS);
+    }
+
+    public WheelTimer(long tickDuration, TimeUnit unit) {
+        this(Executors.defaultThreadFactory(), tickDuration, unit, 512);
+    }
+
+    /**
+     * @param threadFactory creates the worker thread
+     * @param tickDuration time between two ticks, the precision of the timer
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public WheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if(threadFactory == null) {
+            throw new NullPointerException("threadFactory");
+        }
+        if(unit == null) {
+            throw new NullPointerException("unit");
+        }
+        if(tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        if(ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30");
+        }
+
+        int wheelSize = 1;
+        while (wheelSize < ticksPerWheel) {
+            wheelSize <<= 1;
+        }
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[wheelSize];
+        for(int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+        this.workerThread = threadFactory.newThread(new Worker());
+    }
+
+    @Override
+    public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+        if(task == null) {
+            throw new NullPointerException("task");
+        }
+        if(unit == null) {
+            throw new NullPointerException("unit");
+        }
+
+        start();
+
+        long deadline;
+        deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        if(delay > 0 && deadline < 0) {
+            deadline = Long.MAX_VALUE;
+        }
+
+        WheelTimeout timeout;
+        timeout = new WheelTimeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the worker thread, the timer cannot be used anymore.
+     *
+     * @return the timeouts neither run nor cancelled
+     */
+    @Override
+    public Set<Timeout> stop() {
+        if(Thread.currentThread() == workerThread) {
+            throw new IllegalStateException("cannot be stopped by one of its tasks");
+        }
+
+        if(!WORKER_STATE.compareAndSet(this, WORKER_STARTED, WORKER_SHUTDOWN)) {
+            WORKER_STATE.set(this, WORKER_SHUTDOWN);
+            return Collections.emptySet();
+        }
+
+        boolean interrupted = false;
+        while (workerThread.isAlive()) {
+            workerThread.interrupt();
+            try {
+                workerThread.join(100);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return Collections.unmodifiableSet(unprocessedTimeouts);
+    }
+
+    private void start() {
+        switch (WORKER_STATE.get(this)) {
+            case WORKER_INIT:
+                if(WORKER_STATE.compareAndSet(this, WORKER_INIT, WORKER_STARTED)) {
+                    workerThread.start();
+                }
+                break;
+            case WORKER_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("cannot be started once stopped");
+        }
+
+        boolean interrupted = false;
+        while (startTime == 0) {
+            try {
+                startLatch.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private long tick;
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            // 0 means not started yet
+            startTime = now != 0 ? now : 1;
+            startLatch.countDown();
+
+            do {
+                long deadline;
+                deadline = waitForNextTick();
+                if(deadline > 0) {
+                    removeCancelledTimeouts();
+                    transferPendingTimeouts();
+                    wheel[(int) (tick & mask)].expireTimeouts(deadline);
+                    tick++;
+                }
+            } while (workerState == WORKER_STARTED);
+
+            Set<Timeout> unprocessed;
+            unprocessed = new HashSet<Timeout>();
+            for(Bucket bucket : wheel) {
+                bucket.clearTimeouts(unprocessed);
+            }
+            WheelTimeout timeout;
+            while ((timeout = pendingTimeouts.poll()) != null) {
+                if(!timeout.isCancelled()) {
+                    unprocessed.add(timeout);
+                }
+            }
+            unprocessedTimeouts = unprocessed;
+        }
+
+        /**
+         * @return the time of the tick relative to the start time, or a
+         *         negative value once the timer is stopped
+         */
+        private long waitForNextTick() {
+            long deadline;
+            deadline = tickNanos * (tick + 1);
+
+            while (true) {
+                long current;
+                current = System.nanoTime() - startTime;
+
+                long sleepMillis;
+                sleepMillis = (deadline - current + 999999) / 1000000;
+                if(sleepMillis <= 0) {
+                    return current;
+                }
+
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if(workerState == WORKER_SHUTDOWN) {
+                        return Long.MIN_VALUE;
+                    }
+                }
+            }
+        }
+
+        private void transferPendingTimeouts() {
+            for(int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                WheelTimeout timeout;
+                timeout = pendingTimeouts.poll();
+                if(timeout == null) {
+                    break;
+                }
+                if(timeout.isCancelled()) {
+                    continue;
+                }
+
+                long calculated;
+                calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+                // already expired timeouts run on the current tick
+                wheel[(int) (Math.max(calculated, tick) & mask)].addTimeout(timeout);
+            }
+        }
+
+        private void removeCancelledTimeouts() {
+            WheelTimeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if(timeout.bucket != null) {
+                    timeout.bucket.removeTimeout(timeout);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Doubly linked list of the timeouts of a tick, only accessed by the
+     * worker thread.
+     */
+    private static final class Bucket {
+
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        public void addTimeout(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if(head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        public void expireTimeouts(long deadline) {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if(timeout.remainingRounds <= 0) {
+                    removeTimeout(timeout);
+                    if(timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        throw new IllegalStateException("timeout deadline " + timeout.deadline + " > " + deadline);
+                    }
+                } else if(timeout.isCancelled()) {
+                    removeTimeout(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        public void removeTimeout(WheelTimeout timeout) {
+            if(timeout.bucket != this) {
+                return;
+            }
+            WheelTimeout next = timeout.next;
+            if(timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if(next != null) {
+                next.prev = timeout.prev;
+            }
+            if(timeout == head) {
+                head = next;
+            }
+            if(timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        public void clearTimeouts(Set<Timeout> unprocessed) {
+            WheelTimeout timeout;
+            while ((timeout = head) != null) {
+                removeTimeout(timeout);
+                if(!timeout.isExpired() && !timeout.isCancelled()) {
+                    unprocessed.add(timeout);
+                }
+            }
+        }
+
+    }
+
+    private final class WheelTimeout implements Timeout {
+
+        private final TimerTask task;
+        /** Relative to the start time of the timer */
+        private final long      deadline;
+
+        /** Not private for {@link WheelTimer#TIMEOUT_STATE} */
+        volatile int            state;
+
+        /** Only accessed by the worker thread */
+        private long            remainingRounds;
+        private WheelTimeout    next;
+        private WheelTimeout    prev;
+        private Bucket          bucket;
+
+        public WheelTimeout(TimerTask task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Timer getTimer() {
+            return WheelTimer.this;
+        }
+
+        @Override
+        public TimerTask getTask() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == TIMEOUT_EXPIRED;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == TIMEOUT_CANCELLED;
+        }
+
+        @Override
+        public void cancel() {
+            if(TIMEOUT_STATE.compareAndSet(this, TIMEOUT_INIT, TIMEOUT_CANCELLED)) {
+                // unlinked from its bucket by the worker thread on the next tick
+                cancelledTimeouts.add(this);
+            }
+        }
+
+        public void expire() {
+            if(!TIMEOUT_STATE.compareAndSet(this, TIMEOUT_INIT, TIMEOUT_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run(this);
+            } catch (Throwable t) {
+                LOGGER.warn("An exception was thrown by " + TimerTask.class.getSimpleName() + '.', t);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "WheelTimeout [task=" + task + ", deadline=" + deadline + ", state=" + state + "]";
+        }
+
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * Session callback also told when its session should stop sending, once the
+ * queue water marks of the service are set.
+ *
+ * @see ServiceBuilder#setQueueWaterMarks(long, long)
+ */
+public interface WritabilitySessionCallback extends SessionCallback {
+
+    /**
+     * Called when the queued bytes of the session go above the high water
+     * mark, and when they fall below the low water mark again. The calls
+     * alternate and the last one gives the current state of the session.
+     *
+     * @param session
+     * @param writable false while producers should stop sending
+     */
+    public void onWritabilityChanged(Session session, boolean writable);
+
+}
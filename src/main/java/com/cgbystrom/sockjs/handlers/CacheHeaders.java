@@ -0,0 +1,73 @@
+package com.cgbystrom.sockjs.handlers;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * The headers of the responses which may be cached for a year, the iframe
+ * page and the answers to preflight requests.
+ *
+ * The Expires date only changes once a second, so it is formatted at most
+ * once a second whatever the number of responses.
+ */
+public final class CacheHeaders {
+
+    public static final int MAX_AGE = 31536000;
+
+    public static final String CACHE_CONTROL = "max-age=" + MAX_AGE + ", public";
+
+    private static final SimpleDateFormat FORMAT;
+    static {
+        FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    private static volatile Expires expires = new Expires(0, null);
+
+    private CacheHeaders() {
+    }
+
+    /**
+     * Sets Cache-Control and Expires so that the response is cached for
+     * {@link #MAX_AGE} seconds.
+     */
+    public static void setCacheable(HttpResponse response) {
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, CACHE_CONTROL);
+        response.setHeader(HttpHeaders.Names.EXPIRES, getExpires());
+    }
+
+    /**
+     * @return the HTTP date {@link #MAX_AGE} seconds from now
+     */
+    public static String getExpires() {
+        long second = System.currentTimeMillis() / 1000;
+        Expires current = expires;
+        if(current.second != second) {
+            String value;
+            synchronized (FORMAT) {
+                value = FORMAT.format(new Date((second + MAX_AGE) * 1000));
+            }
+            current = new Expires(second, value);
+            expires = current;
+        }
+        return current.value;
+    }
+
+    private static final class Expires {
+
+        final long   second;
+        final String value;
+
+        Expires(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -34,24 +34,33 @@ public class JsessionidCookieHandler extends SimpleChannelHandler {
             request = (HttpRequest) event.getMessage();
 
             // FIXME: Check if cookies are enabled in the server
-            cookie = DEFAULT_COOKIE;
-            String cookieHeader = request.getHeader(COOKIE);
-            if (cookieHeader != null) {
-                Set<Cookie> cookies = COOKIE_DECODER.decode(cookieHeader);
-                for (Cookie c : cookies) {
-                    if (c.getName().equals(JSESSIONID)) {
-                        c.setPath("/");
-                        CookieEncoder cookieEncoder = new CookieEncoder(true);
-                        cookieEncoder.addCookie(c);
-                        cookie = cookieEncoder.encode();
-                    }
-                }
-            }
+            cookie = formatCookie(request);
         }
 
         super.messageReceived(context, event);
     }
 
+    /**
+     * @return the JSESSIONID cookie of the request for the whole site, or a
+     *         dummy one if the request has none
+     */
+    public static String formatCookie(HttpRequest request) {
+        String cookie = DEFAULT_COOKIE;
+        String cookieHeader = request.getHeader(COOKIE);
+        if (cookieHeader != null) {
+            Set<Cookie> cookies = COOKIE_DECODER.decode(cookieHeader);
+            for (Cookie c : cookies) {
+                if (c.getName().equals(JSESSIONID)) {
+                    c.setPath("/");
+                    CookieEncoder cookieEncoder = new CookieEncoder(true);
+                    cookieEncoder.addCookie(c);
+                    cookie = cookieEncoder.encode();
+                }
+            }
+        }
+        return cookie;
+    }
+
     @Override
     public void writeRequested(ChannelHandlerContext context, MessageEvent event) throws Exception {
         if(event.getMessage() instanceof HttpResponse) {
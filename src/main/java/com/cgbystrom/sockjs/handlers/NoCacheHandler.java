@@ -3,19 +3,23 @@
  */
 package com.cgbystrom.sockjs.handlers;
 
+import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
+@Sharable
 public class NoCacheHandler extends SimpleChannelDownstreamHandler {
 
+    public static final String CACHE_CONTROL = "no-store, no-cache, must-revalidate, max-age=0";
+
     @Override
     public void writeRequested(ChannelHandlerContext context, MessageEvent event) throws Exception {
         if(event.getMessage() instanceof HttpResponse) {
             HttpResponse response = (HttpResponse)event.getMessage();
-            response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
+            response.setHeader(HttpHeaders.Names.CACHE_CONTROL, CACHE_CONTROL);
         }
         super.writeRequested(context, event);
     }
@@ -30,8 +30,8 @@ public class PreflightHandler extends SimpleChannelHandler {
             if (request.getMethod().equals(HttpMethod.OPTIONS)) {
                 HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.NO_CONTENT);
                 response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
-                response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=31536000, public");
-                response.setHeader("Access-Control-Max-Age", "31536000");
+                CacheHeaders.setCacheable(response);
+                response.setHeader("Access-Control-Max-Age", CacheHeaders.MAX_AGE);
 
                 // FIXME: Dirty, handle per transport?
                 if (request.getUri().contains("/xhr")) {
@@ -42,7 +42,6 @@ public class PreflightHandler extends SimpleChannelHandler {
 
                 response.setHeader("Access-Control-Allow-Headers", "Content-Type");
                 response.setHeader("Access-Control-Allow-Credentials", "true");
-                response.setHeader(HttpHeaders.Names.EXPIRES, "FIXME"); // FIXME: Fix this
                 response.setHeader(HttpHeaders.Names.SET_COOKIE, "JSESSIONID=dummy; path=/");
                 ctx.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
                 return;
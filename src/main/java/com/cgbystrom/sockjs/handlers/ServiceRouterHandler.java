@@ -9,9 +9,10 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
@@ -29,7 +30,16 @@ import org.jboss.netty.util.CharsetUtil;
 
 import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.Service.SessionNotFound;
+import com.cgbystrom.sockjs.transports.AbstractReceiverTransport;
+import com.cgbystrom.sockjs.transports.AbstractReceiverTransport.GenericReceiver;
 
+/**
+ * Routes the requests to the services by URL. A single instance can be
+ * shared by all the channels: requests are handled without adding handlers
+ * to the pipeline, and the receiver waiting for the messages of a session
+ * is attached to its channel.
+ */
+@Sharable
 public class ServiceRouterHandler extends IdleStateAwareChannelHandler {
 
     private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(ServiceRouterHandler.class);
@@ -37,14 +47,56 @@ public class ServiceRouterHandler extends IdleStateAwareChannelHandler {
     private final static String SERVICE_ATTRIBUTE_NAME = "service";
     private final static String HTTP_REQUEST_ATTRIBUTE_NAME = "httpRequest";
 
-    private final List<Service> services;
+    private volatile ServiceTrie services;
 
+    /**
+     * @throws IllegalArgumentException if two services have the same URL
+     */
     public ServiceRouterHandler(List<Service> services) {
-        this.services = services;
+        this.services = new ServiceTrie(services);
+    }
+
+    /**
+     * Starts routing requests to the given service, without disturbing the
+     * requests being routed.
+     *
+     * @throws IllegalArgumentException if a service has the same URL
+     */
+    public synchronized void addService(Service service) {
+        if(service == null) {
+            throw new NullPointerException("service");
+        }
+        services = services.with(service);
+    }
+
+    /**
+     * Stops routing new requests to the given service, the requests already
+     * routed are not affected. The heartbeats of the service are stopped.
+     *
+     * @return false if the service was not registered
+     */
+    public synchronized boolean removeService(Service service) {
+        ServiceTrie newServices;
+        newServices = services.without(service);
+        if(newServices == services) {
+            return false;
+        }
+        services = newServices;
+        service.stop();
+        return true;
+    }
+
+    public List<Service> getServices() {
+        return services.getServices();
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        if(!(event.getMessage() instanceof HttpRequest)) {
+            // the chunks of a body, for the handler the transport added
+            context.sendUpstream(event);
+            return;
+        }
         HttpRequest request = (HttpRequest) event.getMessage();
 
         ChannelPipeline pipeline;
@@ -65,26 +117,45 @@ public class ServiceRouterHandler extends IdleStateAwareChannelHandler {
             }
         }
 
-        for (Service service : services) {
-            // Check if there's a service registered with this URL
-            if (requestUri.startsWith(service.getUrl())) {
-                if (LOGGER.isDebugEnabled())
-                    LOGGER.debug("Found matching service for " + requestUri + " to " + service);
+        TransportRouterHandler router;
+        router = services.lookup(requestUri);
+        if (router != null) {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Found matching service for " + requestUri + " to " + router.getService());
 
-                pipeline.addLast("sockjs-service-router", new TransportRouterHandler(service));
-                Channels.fireMessageReceived(context, request);
-                return;
-            }
+            router.route(context, request);
+            return;
         }
 
         writeNotFoundResponse(context.getChannel(), "No service found");
 
     }
 
+    @Override
+    public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        GenericReceiver receiver;
+        receiver = AbstractReceiverTransport.getReceiver(event.getChannel());
+        if(receiver != null) {
+            receiver.unregister();
+        }
+        super.channelClosed(context, event);
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        GenericReceiver receiver;
+        receiver = AbstractReceiverTransport.getReceiver(event.getChannel());
+        if(receiver != null) {
+            receiver.writabilityChanged();
+        }
+        super.channelInterestChanged(context, event);
+    }
+
     @Override
     public void channelIdle(ChannelHandlerContext context, IdleStateEvent event) throws Exception {
-        // disconnect HTTP keep-alive connection when idle
-        if(event.getState() == IdleState.ALL_IDLE && context.getPipeline().getLast() == ServiceRouterHandler.this) {
+        // disconnect HTTP keep-alive connection when idle, unless a response is pending
+        if(event.getState() == IdleState.ALL_IDLE && context.getPipeline().getLast() == ServiceRouterHandler.this
+                && AbstractReceiverTransport.getReceiver(context.getChannel()) == null) {
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("Closing idle connection for" + context.getChannel() + ".");
 
@@ -104,6 +175,11 @@ public class ServiceRouterHandler extends IdleStateAwareChannelHandler {
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("Exception caught for " + context.getChannel() + ":", event.getCause());
 
+            GenericReceiver receiver;
+            receiver = AbstractReceiverTransport.getReceiver(context.getChannel());
+            if(receiver != null) {
+                receiver.getSessionHandler().exceptionCaught(event.getCause());
+            }
             context.getChannel().close();
 
         } else {
@@ -0,0 +1,223 @@
+package com.cgbystrom.sockjs.handlers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cgbystrom.sockjs.Service;
+
+/**
+ * Immutable index of the routers of the services by URL, keyed by path
+ * segment.
+ *
+ * A request URI is routed to the service with the longest URL made of whole
+ * leading segments of its path, so <code>/echo/info</code> goes to
+ * <code>/echo</code> while <code>/echo2/info</code> never does. A lookup
+ * walks at most one node per segment of the request and does not allocate,
+ * whatever the number of services. Changes build a new index, which lets
+ * the router swap it under concurrent lookups.
+ */
+final class ServiceTrie {
+
+    private final List<Service> services;
+    private final Node          root;
+
+    public ServiceTrie(Collection<Service> services) {
+        this.services = Collections.unmodifiableList(new ArrayList<Service>(services));
+
+        NodeBuilder rootBuilder;
+        rootBuilder = new NodeBuilder();
+        for(Service service : this.services) {
+            NodeBuilder builder;
+            builder = rootBuilder;
+            for(String segment : segments(service.getUrl())) {
+                builder = builder.child(segment);
+            }
+            if(builder.router != null) {
+                throw new IllegalArgumentException("Services " + builder.router.getService() + " and " + service + " have the same URL");
+            }
+            builder.router = new TransportRouterHandler(service);
+        }
+        this.root = rootBuilder.build();
+    }
+
+    /**
+     * @return the router of the service with the longest URL prefixing the
+     *         path of the given URI, or null if none
+     */
+    public TransportRouterHandler lookup(String uri) {
+        int end;
+        end = pathEnd(uri);
+
+        TransportRouterHandler match;
+        match = root.router;
+
+        Node node;
+        node = root;
+        int start = 0;
+        while (start < end && uri.charAt(start) == '/') {
+            int segmentStart = start + 1;
+            int segmentEnd = segmentStart;
+            int hash = 0;
+            char c;
+            while (segmentEnd < end && (c = uri.charAt(segmentEnd)) != '/') {
+                hash = 31 * hash + c;
+                segmentEnd++;
+            }
+
+            node = node.child(uri, segmentStart, segmentEnd, hash);
+            if(node == null) {
+                break;
+            }
+            if(node.router != null) {
+                match = node.router;
+            }
+            start = segmentEnd;
+        }
+        return match;
+    }
+
+    /**
+     * @return a copy of this index with the given service added
+     * @throws IllegalArgumentException if a service has the same URL
+     */
+    public ServiceTrie with(Service service) {
+        List<Service> newServices;
+        newServices = new ArrayList<Service>(services);
+        newServices.add(service);
+        return new ServiceTrie(newServices);
+    }
+
+    /**
+     * @return a copy of this index without the given service, or this index
+     *         if the service is not registered
+     */
+    public ServiceTrie without(Service service) {
+        List<Service> newServices;
+        newServices = new ArrayList<Service>(services);
+        if(!newServices.remove(service)) {
+            return this;
+        }
+        return new ServiceTrie(newServices);
+    }
+
+    public List<Service> getServices() {
+        return services;
+    }
+
+    /**
+     * @return the URL as its requests start, with a leading and no trailing
+     *         slash, or an empty string for the root
+     */
+    static String canonicalUrl(String url) {
+        StringBuilder canonicalUrl = new StringBuilder(url.length() + 1);
+        for(String segment : segments(url)) {
+            canonicalUrl.append('/').append(segment);
+        }
+        return canonicalUrl.toString();
+    }
+
+    private static List<String> segments(String url) {
+        List<String> segments;
+        segments = new ArrayList<String>();
+        for(String segment : url.split("/")) {
+            if(segment.length() > 0) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private static int pathEnd(String uri) {
+        for(int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if(c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return uri.length();
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Node {
+
+        private final TransportRouterHandler router;
+
+        /** Open addressing table of the child segments, null for a leaf */
+        private final String[]               keys;
+        private final Node[]                 children;
+
+        Node(TransportRouterHandler router, String[] keys, Node[] children) {
+            this.router = router;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        /**
+         * @param hash {@link String#hashCode()} of the segment
+         */
+        Node child(String uri, int start, int end, int hash) {
+            if(keys == null) {
+                return null;
+            }
+            int length = end - start;
+            int mask = keys.length - 1;
+            for(int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                String key = keys[i];
+                if(key == null) {
+                    return null;
+                }
+                if(key.length() == length && key.hashCode() == hash && uri.regionMatches(start, key, 0, length)) {
+                    return children[i];
+                }
+            }
+        }
+
+    }
+
+    private static final class NodeBuilder {
+
+        private final Map<String, NodeBuilder> children = new HashMap<String, NodeBuilder>();
+
+        private TransportRouterHandler router;
+
+        NodeBuilder child(String segment) {
+            NodeBuilder child;
+            child = children.get(segment);
+            if(child == null) {
+                child = new NodeBuilder();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        Node build() {
+            if(children.isEmpty()) {
+                return new Node(router, null, null);
+            }
+
+            // at most half full, so that probing stays short
+            int capacity = Integer.highestOneBit(children.size()) << 2;
+            String[] keys = new String[capacity];
+            Node[] nodes = new Node[capacity];
+            for(Map.Entry<String, NodeBuilder> entry : children.entrySet()) {
+                String key = entry.getKey();
+                int i = spread(key.hashCode()) & (capacity - 1);
+                while (keys[i] != null) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                keys[i] = key;
+                nodes[i] = entry.getValue().build();
+            }
+            return new Node(router, keys, nodes);
+        }
+
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.cgbystrom.sockjs.handlers;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.util.Timer;
+
+import com.cgbystrom.sockjs.OverflowPolicy;
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.ServiceMetrics;
+
+/**
+ * Settings shared by all the sessions of a service, so that a session only
+ * keeps a reference to them instead of a copy of each one.
+ */
+public final class SessionConfig {
+
+    /**
+     * Called once a session is closed, shared by the sessions instead of a
+     * closure per session.
+     */
+    public interface Disposer {
+
+        public void dispose(SimpleSessionHandler session);
+
+    }
+
+    private final ScheduledExecutorService scheduledExecutor;
+    private final Timer[]                  timers;
+    private final int                      timeoutDelay;
+    private final long                     heartbeatDelayNanos;
+    private final Disposer                 disposer;
+    private final int                      maxQueuedMessages;
+    private final long                     maxQueuedBytes;
+    private final OverflowPolicy           overflowPolicy;
+    private final int                      overflowCloseStatus;
+    private final String                   overflowCloseReason;
+    private final AtomicLong               overflowCount;
+    private final long                     flushLingerNanos;
+    private final long                     lowWaterMark;
+    private final long                     highWaterMark;
+    private final ServiceMetrics           metrics;
+
+    /**
+     * Settings without queue limits, flush linger or water marks.
+     */
+    public SessionConfig(ScheduledExecutorService scheduledExecutor, Timer timer, int timeoutDelay, int heartbeatDelay, Disposer disposer) {
+        this(scheduledExecutor, new Timer[] { timer }, timeoutDelay, heartbeatDelay, disposer, Integer.MAX_VALUE, Long.MAX_VALUE,
+                OverflowPolicy.REJECT, 0, null, new AtomicLong(), 0, 0, Long.MAX_VALUE, new ServiceMetrics());
+    }
+
+    /**
+     * @param scheduledExecutor runs the linger flushes
+     * @param timers schedule the timeouts, each session uses the timer picked by {@link #timerIndex(String)}
+     * @param timeoutDelay milliseconds a session without receiver is kept
+     * @param heartbeatDelay milliseconds without write after which a heartbeat is sent
+     * @param disposer called once a session is closed
+     * @param maxQueuedMessages messages queued at most while no receiver takes them
+     * @param maxQueuedBytes bytes queued at most, as given by {@link PreparedMessage#getSize()}
+     * @param overflowPolicy applied to messages sent while the queue is full
+     * @param overflowCloseStatus close status of the {@link OverflowPolicy#CLOSE} policy
+     * @param overflowCloseReason close reason of the {@link OverflowPolicy#CLOSE} policy
+     * @param overflowCount incremented on each overflow of any session
+     * @param flushLingerNanos delay before queued messages are flushed, 0 to flush on each send
+     * @param lowWaterMark queued bytes below which an unwritable session is writable again
+     * @param highWaterMark queued bytes above which a session is unwritable
+     * @param metrics counts the events of the sessions
+     */
+    public SessionConfig(ScheduledExecutorService scheduledExecutor, Timer[] timers, int timeoutDelay, int heartbeatDelay,
+                         Disposer disposer, int maxQueuedMessages, long maxQueuedBytes, OverflowPolicy overflowPolicy,
+                         int overflowCloseStatus, String overflowCloseReason, AtomicLong overflowCount,
+                         long flushLingerNanos, long lowWaterMark, long highWaterMark, ServiceMetrics metrics) {
+        if(scheduledExecutor == null) {
+            throw new NullPointerException("scheduledExecutor");
+        }
+        if(timers == null) {
+            throw new NullPointerException("timers");
+        }
+        if(timers.length == 0) {
+            throw new IllegalArgumentException("timers must not be empty");
+        }
+        if(disposer == null) {
+            throw new NullPointerException("disposer");
+        }
+        if(overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        if(overflowCount == null) {
+            throw new NullPointerException("overflowCount");
+        }
+        if(metrics == null) {
+            throw new NullPointerException("metrics");
+        }
+
+        this.scheduledExecutor = scheduledExecutor;
+        this.timers = timers.clone();
+        this.timeoutDelay = timeoutDelay;
+        this.heartbeatDelayNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatDelay);
+        this.disposer = disposer;
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowCloseStatus = overflowCloseStatus;
+        this.overflowCloseReason = overflowCloseReason;
+        this.overflowCount = overflowCount;
+        this.flushLingerNanos = flushLingerNanos;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the index of the timer of a session, picked by the hash of its id
+     */
+    public int timerIndex(String sessionId) {
+        return timers.length == 1 ? 0 : (sessionId.hashCode() & 0x7fffffff) % timers.length;
+    }
+
+    public int getTimerCount() {
+        return timers.length;
+    }
+
+    Timer getTimer(String sessionId) {
+        return timers[timerIndex(sessionId)];
+    }
+
+    ScheduledExecutorService getScheduledExecutor() {
+        return scheduledExecutor;
+    }
+
+    int getTimeoutDelay() {
+        return timeoutDelay;
+    }
+
+    long getHeartbeatDelayNanos() {
+        return heartbeatDelayNanos;
+    }
+
+    Disposer getDisposer() {
+        return disposer;
+    }
+
+    int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    int getOverflowCloseStatus() {
+        return overflowCloseStatus;
+    }
+
+    String getOverflowCloseReason() {
+        return overflowCloseReason;
+    }
+
+    AtomicLong getOverflowCount() {
+        return overflowCount;
+    }
+
+    long getFlushLingerNanos() {
+        return flushLingerNanos;
+    }
+
+    long getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    ServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+}
@@ -5,21 +5,37 @@ package com.cgbystrom.sockjs.handlers;
 
 import java.net.SocketAddress;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.transports.TransportType;
+
 public interface SessionHandler {
 
     void registerReceiver(Receiver receiver);
 
     void unregisterReceiver(Receiver receiver);
 
+    /**
+     * Called when the channel of the receiver becomes writable or unwritable.
+     */
+    void writabilityChanged(Receiver receiver);
+
     void messageReceived(String message);
 
+    /**
+     * Called with the content of the binary frames of raw websockets.
+     */
+    void messageReceived(ChannelBuffer message);
+
     void exceptionCaught(Throwable throwable);
 
     public interface Receiver {
 
         boolean doOpen();
 
-        boolean doWrite(String[] messages);
+        boolean doWrite(PreparedMessage[] messages);
 
         boolean doHeartbeat();
 
@@ -27,6 +43,36 @@ public interface SessionHandler {
 
         boolean isClosed();
 
+        /**
+         * @return false while the frames already written are not sent yet
+         */
+        boolean isWritable();
+
+        /**
+         * @return true if binary messages can be written, false for the
+         *         receivers framing the messages as SockJS does
+         */
+        boolean isBinarySupported();
+
+        /**
+         * @return the transport of the requests this receiver answers, or
+         *         null if it does not answer requests
+         */
+        TransportType getTransportType();
+
+        /**
+         * Sets a listener added to the future of the next message frame
+         * written to the channel, then forgotten. Used to time sampled
+         * messages.
+         */
+        void setWriteListener(ChannelFutureListener listener);
+
+        /**
+         * Stops or resumes reading from the channel of the receiver, while
+         * the callback of the session is behind.
+         */
+        void setReadable(boolean readable);
+
         SocketAddress getLocalAddress();
 
         SocketAddress getRemoteAddress();
@@ -1,65 +1,221 @@
 package com.cgbystrom.sockjs.handlers;
 
 import java.net.SocketAddress;
-import java.util.LinkedList;
-import java.util.concurrent.Future;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
-
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import com.cgbystrom.sockjs.BinarySessionCallback;
+import com.cgbystrom.sockjs.OverflowPolicy;
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.ScheduledExecutorTimer;
+import com.cgbystrom.sockjs.ServiceMetrics;
 import com.cgbystrom.sockjs.Session;
 import com.cgbystrom.sockjs.SessionCallback;
+import com.cgbystrom.sockjs.WritabilitySessionCallback;
+import com.cgbystrom.sockjs.transports.FrameEncoder;
+import com.cgbystrom.sockjs.transports.TransportType;
 
 /**
  * Responsible for handling SockJS sessions. It is a stateful receiver handler
  * and tied to each session. Only session specific logic and is unaware of
  * underlying transport. This is by design and Netty enables a clean way to do
  * this through the pipeline and handlers.
+ *
+ * Outbound messages go through a lock-free queue. Senders only enqueue, the
+ * thread winning the "flushing" flag drains the queue into the receiver and
+ * sends the close frame once the session is closing, while other senders
+ * leave their messages to it.
+ *
+ * With a flush linger, a message does not trigger a flush by itself: the
+ * first one of a burst schedules a flush after the linger so the burst is
+ * written as a single frame. Corking the session holds every flush until it
+ * is uncorked, but the one closing the session.
+ *
+ * Timeouts are scheduled on a {@link Timer} shared with other sessions,
+ * usually a {@link com.cgbystrom.sockjs.WheelTimer}. Heartbeats are not
+ * scheduled per session, the time of the last write is recorded instead and
+ * the service periodically calls {@link #heartbeatIfIdle(long, long)}, so
+ * writing never touches the timer.
+ *
+ * Flushing stops while the receiver is not writable, the messages are kept
+ * in the queue until the receiver reports it is writable again. The session
+ * itself is reported unwritable to a {@link WritabilitySessionCallback}
+ * once its queued bytes go above the high water mark, and writable again
+ * once they fall below the low water mark, so that producers can slow down.
+ *
+ * An idle session is kept small, as a server holds many of them: the
+ * settings are shared through a {@link SessionConfig}, the atomic state is
+ * updated through field updaters rather than atomic objects, the queue is
+ * only allocated by the first message queued, and the session is the timer
+ * task of its own timeout.
+ *
+ * Latencies are sampled without a timestamp per message: one send in the
+ * sample interval of the {@link ServiceMetrics} records its time, and the
+ * drain which takes it from the queue times its flush and the write of its
+ * frame. A single message per session is sampled at a time.
  */
-public final class SimpleSessionHandler implements SessionHandler, Session {
+public final class SimpleSessionHandler implements SessionHandler, Session, TimerTask {
 
     private static final InternalLogger LOGGER = InternalLoggerFactory.getInstance(SimpleSessionHandler.class);
 
+    private static final AtomicIntegerFieldUpdater<SimpleSessionHandler> FLUSHING =
+            AtomicIntegerFieldUpdater.newUpdater(SimpleSessionHandler.class, "flushing");
+    private static final AtomicIntegerFieldUpdater<SimpleSessionHandler> LINGER_FLUSH_SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(SimpleSessionHandler.class, "lingerFlushScheduled");
+    private static final AtomicIntegerFieldUpdater<SimpleSessionHandler> CORKS =
+            AtomicIntegerFieldUpdater.newUpdater(SimpleSessionHandler.class, "corks");
+    private static final AtomicIntegerFieldUpdater<SimpleSessionHandler> QUEUED_MESSAGES =
+            AtomicIntegerFieldUpdater.newUpdater(SimpleSessionHandler.class, "queuedMessages");
+    private static final AtomicLongFieldUpdater<SimpleSessionHandler> QUEUED_BYTES =
+            AtomicLongFieldUpdater.newUpdater(SimpleSessionHandler.class, "queuedBytes");
+    private static final AtomicLongFieldUpdater<SimpleSessionHandler> OVERFLOW_COUNT =
+            AtomicLongFieldUpdater.newUpdater(SimpleSessionHandler.class, "overflowCount");
+    private static final AtomicLongFieldUpdater<SimpleSessionHandler> SAMPLED_SEND_TIME =
+            AtomicLongFieldUpdater.newUpdater(SimpleSessionHandler.class, "sampledSendTime");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SimpleSessionHandler, ConcurrentLinkedQueue> QUEUE =
+            AtomicReferenceFieldUpdater.newUpdater(SimpleSessionHandler.class, ConcurrentLinkedQueue.class, "queue");
+    private static final AtomicReferenceFieldUpdater<SimpleSessionHandler, Receiver> RECEIVER =
+            AtomicReferenceFieldUpdater.newUpdater(SimpleSessionHandler.class, Receiver.class, "receiver");
+    private static final AtomicReferenceFieldUpdater<SimpleSessionHandler, State> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(SimpleSessionHandler.class, State.class, "state");
+
+    private static final PreparedMessage[] NO_MESSAGES = new PreparedMessage[0];
+
+    /** Close status until the session is closed by the server */
+    private static final int NO_CLOSE_STATUS = Integer.MIN_VALUE;
+    /** Status of the close of a session receiving binary messages it cannot handle */
+    private static final int UNSUPPORTED_DATA_STATUS = 1003;
+
     public enum State {
         CONNECTING, OPEN, CLOSING, CLOSED
     }
 
+    /**
+     * Outcome of {@link SimpleSessionHandler#offer(PreparedMessage)}
+     */
+    public enum Delivery {
+        DELIVERED, QUEUED, SKIPPED, DROPPED, REJECTED
+    }
+
     private final String                    id;
-    private final Runnable                  disposer;
     private final SessionCallback           sessionCallback;
-    private final ScheduledExecutorService  scheduledExecutor;
-    private final Integer                   timeoutDelay;
-    private final Integer                   hreatbeatDelay;
-
-    private final LinkedList<String>        queue = new LinkedList<String>();
-    private final AtomicReference<Receiver> receiver;
-    private final AtomicReference<State>    state;
-
-    private Integer                         closeStatus;
-    private String                          closeReason;
+    private final SessionConfig             config;
+    /** Only created with a flush linger */
+    private final Runnable                  lingerFlush;
+
+    /**
+     * Created by the first message queued. Polled by the flushing thread, and
+     * by the senders dropping the oldest messages on overflow.
+     */
+    private volatile ConcurrentLinkedQueue<PreparedMessage> queue;
+    private volatile int                    queuedMessages;
+    private volatile long                   queuedBytes;
+    private volatile long                   overflowCount;
+    private volatile Receiver               receiver;
+    private volatile State                  state = State.CONNECTING;
+    /** Set by the first receiver, the raw websockets are the only receivers of their session */
+    private volatile boolean                binarySupported;
+
+    private volatile int                    flushing;
+    private volatile int                    lingerFlushScheduled;
+    /** Changed while locking the session */
+    private volatile boolean                writable = true;
+    /** Last state given to the callback, guarded by the lock of the session */
+    private boolean                         notifiedWritable = true;
+    /** True while a thread notifies the callback, guarded by the lock of the session */
+    private boolean                         notifyingWritability;
+    private volatile int                    corks;
+    /** Batch the last receiver did not take, only accessed by the flushing thread */
+    private PreparedMessage[]               pendingBatch;
+
+    private volatile int                    closeStatus = NO_CLOSE_STATUS;
+    private volatile String                 closeReason;
     private SocketAddress                   localAddress;
     private SocketAddress                   remoteAddress;
-    private Future<?>                       timeoutFuture;
-    private Future<?>                       heartbeatFuture;
-
+    private Timeout                         timeout;
+    /** {@link System#nanoTime()} of the last write to the receiver */
+    private volatile long                   lastWriteTime;
+    /** Sends left before the next sampled one, updates may be lost under contention */
+    private int                             sendsUntilSample;
+    /**
+     * {@link System#nanoTime()} of the send of the sampled message in the
+     * queue, or 0. The lowest bit is set when no receiver was connected.
+     */
+    private volatile long                   sampledSendTime;
+
+    /**
+     * Session outside of a service, which schedules its own heartbeats on
+     * the executor until it is closed.
+     *
+     * @deprecated a task per session does not scale, use
+     *             {@link #SimpleSessionHandler(String, SessionCallback, SessionConfig)}
+     *             with the sessions of a service, swept for heartbeats by the
+     *             service
+     */
+    @Deprecated
     public SimpleSessionHandler(String id, SessionCallback sessionCallback,
                                 ScheduledExecutorService scheduledExecutor, Integer timeoutDelay,
                                 Integer hreatbeatDelay, Runnable disposer) {
+        this(id, sessionCallback, new SessionConfig(scheduledExecutor, new ScheduledExecutorTimer(scheduledExecutor), timeoutDelay,
+                hreatbeatDelay, new StandaloneHeartbeat(disposer)));
+        ((StandaloneHeartbeat) config.getDisposer()).start(this);
+    }
+
+    /**
+     * @param config the settings, usually shared by the sessions of a service
+     */
+    public SimpleSessionHandler(String id, SessionCallback sessionCallback, SessionConfig config) {
+        if(config == null) {
+            throw new NullPointerException("config");
+        }
 
         if (LOGGER.isDebugEnabled())
             LOGGER.debug("Session " + id + " created");
 
         this.id = id;
         this.sessionCallback = sessionCallback;
-        this.scheduledExecutor = scheduledExecutor;
-        this.timeoutDelay = timeoutDelay;
-        this.hreatbeatDelay = hreatbeatDelay;
-        this.disposer = disposer;
-        this.state = new AtomicReference<State>(State.CONNECTING);
-        this.receiver = new AtomicReference<Receiver>(null);
+        this.config = config;
+        int sampleInterval = config.getMetrics().getLatencySampleInterval();
+        if(sampleInterval > 0) {
+            // so that a broadcast does not sample every session at once
+            this.sendsUntilSample = (id.hashCode() & 0x7fffffff) % sampleInterval + 1;
+        }
+        if(config.getFlushLingerNanos() > 0) {
+            this.lingerFlush = new Runnable() {
+
+                @Override
+                public void run() {
+                    lingerFlushScheduled = 0;
+
+                    Receiver currentReceiver;
+                    currentReceiver = receiver;
+
+                    if(currentReceiver != null) {
+                        tryFlush(currentReceiver);
+                    }
+                }
+
+            };
+        } else {
+            this.lingerFlush = null;
+        }
     }
 
     @Override
@@ -67,14 +223,15 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
         if(newReceiver == null) {
             throw new NullPointerException("newReceiver");
         }
-        if (state.get() == State.CLOSED) {
+        if (state == State.CLOSED) {
             throw new IllegalStateException("Session " + id + " already closed");
         }
 
-        if (!receiver.compareAndSet(null, newReceiver)) {
+        if (!RECEIVER.compareAndSet(this, null, newReceiver)) {
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("Session " + id + " already have a connected receiver.");
 
+            config.getMetrics().increment(ServiceMetrics.Counter.RECEIVER_COLLISIONS);
             newReceiver.doClose(2010, "Another connection still open");
             return;
         }
@@ -85,19 +242,20 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
 
         localAddress = newReceiver.getLocalAddress();
         remoteAddress = newReceiver.getRemoteAddress();
+        if (newReceiver.isBinarySupported()) {
+            binarySupported = true;
+        }
 
         tryCancelTimeout();
 
-        if (state.get() == State.CLOSING) {
-            if(tryFlush(newReceiver) && !newReceiver.isClosed()) {
-                tryClose(newReceiver);
-            }
+        if (state == State.CLOSING) {
+            tryFlush(newReceiver);
             return;
         }
 
-        scheduleHeartbeat(newReceiver);
+        lastWriteTime = System.nanoTime();
 
-        if (state.compareAndSet(State.CONNECTING, State.OPEN)) {
+        if (STATE.compareAndSet(this, State.CONNECTING, State.OPEN)) {
             newReceiver.doOpen();
             sessionCallback.onOpen(this);
         }
@@ -111,25 +269,36 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
             throw new NullPointerException("removedReceiver");
         }
 
-        if(receiver.compareAndSet(removedReceiver, null)) {
+        if(RECEIVER.compareAndSet(this, removedReceiver, null)) {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Session " + id + " disconnected from " + removedReceiver);
             }
 
-            tryCancelHeartbeat();
-
-            if (state.get() == State.OPEN) {
+            if (state == State.OPEN) {
                 scheduleTimeout();
             }
 
-        } else {
-            throw new IllegalStateException("unknown receiver");
+        } else if (LOGGER.isDebugEnabled()) {
+            // a receiver refused by registerReceiver unregisters as it closes
+            LOGGER.debug("Session " + id + " was not connected to " + removedReceiver);
+        }
+    }
+
+    @Override
+    public void writabilityChanged(Receiver changedReceiver) {
+        if (changedReceiver != receiver || !changedReceiver.isWritable()) {
+            return;
         }
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Session " + id + " receiver writable again, flushing");
+
+        tryFlush(changedReceiver);
     }
 
     @Override
     public void messageReceived(String message) {
-        if (state.get() != State.OPEN) {
+        if (state != State.OPEN) {
             throw new IllegalStateException("not opened");
         }
 
@@ -137,19 +306,44 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
             LOGGER.debug("Session " + id + " received message: " + message);
         }
 
+        ServiceMetrics metrics = config.getMetrics();
+        metrics.increment(ServiceMetrics.Counter.MESSAGES_RECEIVED);
+        metrics.add(ServiceMetrics.Counter.BYTES_RECEIVED, FrameEncoder.escapedLength(message));
+
         sessionCallback.onMessage(this, message);
     }
 
+    @Override
+    public void messageReceived(ChannelBuffer message) {
+        if (state != State.OPEN) {
+            throw new IllegalStateException("not opened");
+        }
+        if (!(sessionCallback instanceof BinarySessionCallback)) {
+            close(UNSUPPORTED_DATA_STATUS, "Binary messages not supported");
+            return;
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Session " + id + " received binary message: " + message);
+        }
+
+        ServiceMetrics metrics = config.getMetrics();
+        metrics.increment(ServiceMetrics.Counter.MESSAGES_RECEIVED);
+        metrics.add(ServiceMetrics.Counter.BYTES_RECEIVED, message.readableBytes());
+
+        ((BinarySessionCallback) sessionCallback).onMessage(this, message);
+    }
+
     @Override
     public void exceptionCaught(Throwable exception) {
         if (LOGGER.isDebugEnabled())
             LOGGER.debug("Session " + id + " exceptionCaught:", exception);
 
-        boolean closed = state.compareAndSet(State.OPEN, State.CLOSED) || state.compareAndSet(State.CLOSING, State.CLOSED);
-        boolean terminated = closed || state.compareAndSet(State.CONNECTING, State.CLOSED);
+        boolean closed = STATE.compareAndSet(this, State.OPEN, State.CLOSED) || STATE.compareAndSet(this, State.CLOSING, State.CLOSED);
+        boolean terminated = closed || STATE.compareAndSet(this, State.CONNECTING, State.CLOSED);
 
         if (terminated) {
-            disposer.run();
+            config.getDisposer().dispose(this);
             tryCancelTimeout();
             sessionCallback.onError(this, exception);
         }
@@ -164,23 +358,119 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
 
     @Override
     public void send(String message) {
-        if (state.get() != State.OPEN) {
-            throw new IllegalStateException("not opened");
+        send(PreparedMessage.wrap(message));
+    }
+
+    @Override
+    public void send(ChannelBuffer message) {
+        if (state == State.OPEN && !binarySupported) {
+            throw new UnsupportedOperationException("Session " + id + " cannot send binary messages");
+        }
+        send(PreparedMessage.wrap(message));
+    }
+
+    @Override
+    public void send(byte[] message) {
+        send(ChannelBuffers.wrappedBuffer(message));
+    }
+
+    @Override
+    public void send(PreparedMessage message) {
+        switch (offer(message)) {
+            case SKIPPED:
+                throw new IllegalStateException("not opened");
+            case REJECTED:
+                throw new Session.QueueFull("Session " + id + " outbound queue is full");
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Sends a message without failing when the session is not open or its
+     * queue is full.
+     *
+     * @param message
+     * @return whether the message was written, queued, skipped or dropped by
+     *         the overflow policy. Binary messages are skipped by the
+     *         sessions which cannot send them.
+     */
+    public Delivery offer(PreparedMessage message) {
+        if(message == null) {
+            throw new NullPointerException("message");
+        }
+        if (state != State.OPEN || message.isBinary() && !binarySupported) {
+            return Delivery.SKIPPED;
         }
 
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Session " + id + " sending message: " + message);
         }
 
-        synchronized (queue) {
-            queue.add(message);
+        // published before the message is queued, so that the drain taking
+        // the message reads it
+        long sendTime = 0;
+        if (sendsUntilSample > 0 && --sendsUntilSample == 0) {
+            sendTime = nextSampleTime();
+            if (sendTime != 0) {
+                sendTime = receiver == null ? sendTime | 1 : sendTime & ~1L;
+                sampledSendTime = sendTime;
+            }
+        }
+
+        Delivery overflow;
+        overflow = tryEnqueue(message);
+        updateWritability();
+        if (overflow != null) {
+            if (sendTime != 0) {
+                SAMPLED_SEND_TIME.compareAndSet(this, sendTime, 0);
+            }
+            if (overflow == Delivery.DROPPED && config.getOverflowPolicy() == OverflowPolicy.CLOSE) {
+                close(config.getOverflowCloseStatus(), config.getOverflowCloseReason());
+            }
+            return overflow;
         }
 
         Receiver currentChannel;
-        currentChannel = receiver.get();
+        currentChannel = receiver;
+
+        if(currentChannel == null || corks > 0) {
+            return Delivery.QUEUED;
+        }
+        if(lingerFlush != null) {
+            if(LINGER_FLUSH_SCHEDULED.compareAndSet(this, 0, 1)) {
+                config.getScheduledExecutor().schedule(lingerFlush, config.getFlushLingerNanos(), TimeUnit.NANOSECONDS);
+            }
+            return Delivery.QUEUED;
+        }
+        if(tryFlush(currentChannel)) {
+            return Delivery.DELIVERED;
+        }
+        return Delivery.QUEUED;
+    }
+
+    @Override
+    public void cork() {
+        CORKS.incrementAndGet(this);
+    }
+
+    @Override
+    public void uncork() {
+        int remaining;
+        do {
+            remaining = corks;
+            if(remaining == 0) {
+                throw new IllegalStateException("not corked");
+            }
+        } while(!CORKS.compareAndSet(this, remaining, remaining - 1));
+
+        if(remaining == 1) {
+            Receiver currentReceiver;
+            currentReceiver = receiver;
 
-        if(currentChannel != null) {
-            tryFlush(currentChannel);
+            if(currentReceiver != null) {
+                tryFlush(currentReceiver);
+            }
         }
     }
 
@@ -191,24 +481,89 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
 
     @Override
     public void close(int status, String reason) {
-        if (state.compareAndSet(State.OPEN, State.CLOSING)) {
+        if (STATE.compareAndSet(this, State.OPEN, State.CLOSING)) {
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("Session " + id + " server initiated close, closing...");
 
-            closeStatus = status;
+            // the reason is published first, closeStatus tells the flushing thread both are set
             closeReason = reason;
+            closeStatus = status;
 
             Receiver currentReceiver;
-            currentReceiver = receiver.get();
+            currentReceiver = receiver;
 
             if(currentReceiver != null)  {
-                if(tryFlush(currentReceiver) && !currentReceiver.isClosed()) {
-                    tryClose(currentReceiver);
-                }
+                tryFlush(currentReceiver);
             }
         }
     }
 
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the receiver connected to the session, or null
+     */
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * @return the number of messages waiting in the queue
+     */
+    public int getQueuedMessages() {
+        return queuedMessages;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return the number of messages sent while the queue was full
+     */
+    public long getQueueOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Sends a heartbeat frame if nothing was written to the receiver during
+     * the heartbeat delay, less the given jitter.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @param jitterNanos spreads the heartbeats of sessions written to at the same time
+     * @return true if a heartbeat was sent
+     */
+    public boolean heartbeatIfIdle(long now, long jitterNanos) {
+        Receiver currentReceiver;
+        currentReceiver = receiver;
+        if (currentReceiver == null || currentReceiver.isClosed() || state != State.OPEN) {
+            return false;
+        }
+        // frames are pending anyway
+        if (!currentReceiver.isWritable()) {
+            return false;
+        }
+        if (now - lastWriteTime + jitterNanos < config.getHeartbeatDelayNanos()) {
+            return false;
+        }
+
+        lastWriteTime = now;
+        if (!currentReceiver.doHeartbeat()) {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Session " + id + " cannot write heartbeat to " + currentReceiver);
+            return false;
+        }
+        config.getMetrics().increment(ServiceMetrics.Counter.HEARTBEATS);
+        return true;
+    }
+
     @Override
     public SocketAddress getLocalAddress() {
         return localAddress;
@@ -219,44 +574,313 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
         return remoteAddress;
     }
 
+    /**
+     * Drains the queue into the receiver unless another thread is already
+     * doing it, in which case the messages are left to that thread. The
+     * queue is checked again after the flag is released so that no message
+     * enqueued meanwhile is left behind. Nothing is flushed while the
+     * session is corked, unless it is closing.
+     *
+     * @return false if the receiver did not take the messages, is not
+     *         writable or the session is corked
+     */
     private boolean tryFlush(Receiver receiver) {
-        boolean flushed;
+        boolean flushed = true;
 
-        synchronized (queue) {
-            String[] flushableMessages;
-            flushableMessages = queue.toArray(new String[queue.size()]);
+        while (true) {
+            if (corks > 0 && !isCloseRequested()) {
+                // uncork() flushes once the last cork is removed
+                return false;
+            }
+            if (!FLUSHING.compareAndSet(this, 0, 1)) {
+                break;
+            }
 
-            if(flushableMessages.length > 0) {
-                tryCancelHeartbeat();
+            boolean receiverWritable;
+            try {
+                receiverWritable = receiver.isWritable();
+                flushed = receiverWritable && drain(receiver);
+            } finally {
+                flushing = 0;
+            }
 
-                flushed = receiver.doWrite(flushableMessages);
-                if(flushed) {
-                    queue.clear();
+            if (!receiverWritable) {
+                // writabilityChanged() may have been called before the flag was released
+                if (receiver.isWritable() && isFlushNeeded()) {
+                    continue;
                 }
-                if(flushed && !receiver.isClosed()) {
-                    scheduleHeartbeat(receiver);
+                break;
+            }
+            if (!flushed || receiver.isClosed() || !isFlushNeeded()) {
+                break;
+            }
+        }
+
+        return flushed;
+    }
+
+    private boolean isFlushNeeded() {
+        ConcurrentLinkedQueue<PreparedMessage> currentQueue = queue;
+        return (currentQueue != null && !currentQueue.isEmpty()) || isCloseRequested();
+    }
+
+    private boolean isCloseRequested() {
+        return state == State.CLOSING && closeStatus != NO_CLOSE_STATUS;
+    }
+
+    private ConcurrentLinkedQueue<PreparedMessage> getOrCreateQueue() {
+        ConcurrentLinkedQueue<PreparedMessage> currentQueue = queue;
+        if (currentQueue == null) {
+            QUEUE.compareAndSet(this, null, new ConcurrentLinkedQueue<PreparedMessage>());
+            currentQueue = queue;
+        }
+        return currentQueue;
+    }
+
+    /**
+     * Must be called by the thread holding the flushing flag.
+     */
+    private boolean drain(Receiver receiver) {
+        ConcurrentLinkedQueue<PreparedMessage> currentQueue = queue;
+        PreparedMessage[] flushableMessages;
+        flushableMessages = pendingBatch;
+        long sendTime = 0;
+        if (flushableMessages == null) {
+            // read before polling, so that the sampled message is in the batch
+            sendTime = sampledSendTime;
+            flushableMessages = poll(currentQueue);
+        }
+
+        if (flushableMessages.length > 0) {
+            LatencySample sample = null;
+            if (sendTime != 0) {
+                sample = startSample(receiver, sendTime);
+            }
+
+            if (!receiver.doWrite(flushableMessages)) {
+                if (sample != null) {
+                    receiver.setWriteListener(null);
                 }
+                pendingBatch = flushableMessages;
+                return false;
+            }
+            if (sample != null) {
+                sample.flushed();
+            }
+            pendingBatch = null;
+            lastWriteTime = System.nanoTime();
+
+            long flushedBytes = 0;
+            for (PreparedMessage message : flushableMessages) {
+                flushedBytes += message.getSize();
+            }
+            QUEUED_MESSAGES.addAndGet(this, -flushableMessages.length);
+            QUEUED_BYTES.addAndGet(this, -flushedBytes);
+            updateWritability();
+
+            ServiceMetrics metrics = config.getMetrics();
+            metrics.add(ServiceMetrics.Counter.MESSAGES_SENT, flushableMessages.length);
+            metrics.add(ServiceMetrics.Counter.BYTES_SENT, flushedBytes);
+        }
+
+        if (isCloseRequested() && (currentQueue == null || currentQueue.isEmpty())
+                && !receiver.isClosed()) {
+            tryClose(receiver);
+        }
+
+        return true;
+    }
+
+    /**
+     * Kept out of {@link #offer(PreparedMessage)}, as are the other sampling
+     * methods out of the flush, so that the sampling does not weigh on their
+     * compilation.
+     *
+     * @return the time of the send, or 0 if a message is already sampled
+     */
+    private long nextSampleTime() {
+        sendsUntilSample = config.getMetrics().getLatencySampleInterval();
+        return sampledSendTime == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Must be called by the thread holding the flushing flag.
+     *
+     * @return the sample, listening to the write of the batch, or null if
+     *         the receiver does not report its transport
+     */
+    private LatencySample startSample(Receiver receiver, long sendTime) {
+        sampledSendTime = 0;
+        TransportType transport = receiver.getTransportType();
+        if (transport == null) {
+            return null;
+        }
+        LatencySample sample;
+        sample = new LatencySample(config.getMetrics(), transport, sendTime, System.nanoTime());
+        receiver.setWriteListener(sample);
+        return sample;
+    }
+
+    /**
+     * Takes the messages queued so far, producers keep adding meanwhile.
+     * The batch is sized for the messages counted, fewer may be in the
+     * queue yet.
+     */
+    private PreparedMessage[] poll(ConcurrentLinkedQueue<PreparedMessage> currentQueue) {
+        int limit = queuedMessages;
+        if (currentQueue == null || limit <= 0) {
+            return NO_MESSAGES;
+        }
+
+        PreparedMessage[] batch;
+        batch = new PreparedMessage[limit];
+        int count = 0;
+        PreparedMessage message;
+        while (count < limit && (message = currentQueue.poll()) != null) {
+            batch[count++] = message;
+        }
+        if (count == 0) {
+            return NO_MESSAGES;
+        }
+        return count == limit ? batch : Arrays.copyOf(batch, count);
+    }
+
+    /**
+     * Notifies the callback when the queued bytes crossed a water mark. The
+     * state is checked again under the lock, as the queue may have been
+     * drained or filled meanwhile. The callback is called outside the lock,
+     * by one thread at a time which goes on until it has notified the last
+     * state, so that the notifications keep their order.
+     */
+    private void updateWritability() {
+        long highWaterMark = config.getHighWaterMark();
+        if (highWaterMark == Long.MAX_VALUE || !(sessionCallback instanceof WritabilitySessionCallback)) {
+            return;
+        }
+        long lowWaterMark = config.getLowWaterMark();
+        long bytes = queuedBytes;
+        if (writable ? bytes <= highWaterMark : bytes >= lowWaterMark) {
+            return;
+        }
 
+        synchronized (this) {
+            bytes = queuedBytes;
+            if (writable && bytes > highWaterMark) {
+                writable = false;
+            } else if (!writable && bytes < lowWaterMark) {
+                writable = true;
             } else {
-                flushed = true;
+                return;
             }
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Session " + id + " " + (writable ? "writable" : "unwritable") + " with " + bytes + " queued bytes");
+
+            if (notifyingWritability) {
+                // the notifying thread gives the new state once done
+                return;
+            }
+            notifyingWritability = true;
         }
 
-        return flushed;
+        boolean notified = false;
+        try {
+            while (true) {
+                boolean state;
+                synchronized (this) {
+                    if (notifiedWritable == writable) {
+                        notifyingWritability = false;
+                        notified = true;
+                        return;
+                    }
+                    state = writable;
+                    notifiedWritable = state;
+                }
+                ((WritabilitySessionCallback) sessionCallback).onWritabilityChanged(this, state);
+            }
+        } finally {
+            if (!notified) {
+                synchronized (this) {
+                    notifyingWritability = false;
+                }
+            }
+        }
     }
 
+    /**
+     * Reserves room for the message in the queue before adding it. Under
+     * contention the byte limit may be exceeded by the messages being
+     * enqueued concurrently. With {@link OverflowPolicy#DROP_OLDEST} the new
+     * message is dropped too when no queued message is left to drop.
+     *
+     * @return null if the message was queued, the outcome of the overflow otherwise
+     */
+    private Delivery tryEnqueue(PreparedMessage message) {
+        ConcurrentLinkedQueue<PreparedMessage> currentQueue = getOrCreateQueue();
+        int size = message.getSize();
+        int maxQueuedMessages = config.getMaxQueuedMessages();
+        long maxQueuedBytes = config.getMaxQueuedBytes();
+        OverflowPolicy overflowPolicy = config.getOverflowPolicy();
+        boolean overflowed = false;
+
+        while (true) {
+            int count = queuedMessages;
+            if (count < maxQueuedMessages && queuedBytes + size <= maxQueuedBytes) {
+                if (QUEUED_MESSAGES.compareAndSet(this, count, count + 1)) {
+                    break;
+                }
+                continue;
+            }
+
+            if (!overflowed) {
+                overflowed = true;
+                OVERFLOW_COUNT.incrementAndGet(this);
+                config.getOverflowCount().incrementAndGet();
+
+                if (LOGGER.isDebugEnabled())
+                    LOGGER.debug("Session " + id + " outbound queue overflow: " + overflowPolicy);
+
+                if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+                    return overflowPolicy == OverflowPolicy.REJECT ? Delivery.REJECTED : Delivery.DROPPED;
+                }
+                if (size > maxQueuedBytes) {
+                    // dropping the queue would not make room for it
+                    return Delivery.DROPPED;
+                }
+            }
+
+            PreparedMessage oldest;
+            oldest = currentQueue.poll();
+            if (oldest == null) {
+                // nothing left to drop, the queued messages are being flushed
+                return Delivery.DROPPED;
+            }
+            QUEUED_MESSAGES.decrementAndGet(this);
+            QUEUED_BYTES.addAndGet(this, -oldest.getSize());
+            // the sampled message may be the dropped one
+            sampledSendTime = 0;
+        }
+
+        QUEUED_BYTES.addAndGet(this, size);
+        currentQueue.add(message);
+        return null;
+    }
+
+    /**
+     * Must be called by the thread holding the flushing flag.
+     */
     private boolean tryClose(Receiver receiver) {
-        if(state.get() != State.CLOSING) {
+        if(state != State.CLOSING) {
             throw new IllegalStateException("not closing");
         }
 
         boolean closed;
 
-        if(receiver.doClose(closeStatus, closeReason) && state.compareAndSet(State.CLOSING, State.CLOSED)) {
+        if(receiver.doClose(closeStatus, closeReason) && STATE.compareAndSet(this, State.CLOSING, State.CLOSED)) {
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("Session " + id + " closed.");
 
-            disposer.run();
+            config.getDisposer().dispose(this);
             sessionCallback.onClose(this);
             closed = true;
         } else {
@@ -267,57 +891,116 @@ public final class SimpleSessionHandler implements SessionHandler, Session {
     }
 
     private void scheduleTimeout() {
-        if (timeoutFuture != null) {
+        if (timeout != null) {
             tryCancelTimeout();
         }
 
-        timeoutFuture = scheduledExecutor.schedule(new Runnable() {
-
-            @Override
-            public void run() {
-                if (state.compareAndSet(State.OPEN, State.CLOSED) || state.compareAndSet(State.CLOSING, State.CLOSED)) {
-                    if (LOGGER.isDebugEnabled())
-                        LOGGER.debug("Session " + id + " timed-out: closed.");
+        Timer timer;
+        timer = config.getTimer(id);
+        timeout = timer.newTimeout(this, config.getTimeoutDelay(), TimeUnit.MILLISECONDS);
+    }
 
-                    disposer.run();
-                    sessionCallback.onClose(SimpleSessionHandler.this);
-                } else {
-                    throw new IllegalStateException("already closed");
-                }
-            }
+    /**
+     * Times the session out, called by the timer once the session had no
+     * receiver during the timeout delay.
+     */
+    @Override
+    public void run(Timeout timeout) {
+        if (STATE.compareAndSet(this, State.OPEN, State.CLOSED) || STATE.compareAndSet(this, State.CLOSING, State.CLOSED)) {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Session " + id + " timed-out: closed.");
 
-        }, timeoutDelay, TimeUnit.MILLISECONDS);
+            config.getMetrics().increment(ServiceMetrics.Counter.TIMEOUTS);
+            config.getDisposer().dispose(this);
+            sessionCallback.onClose(this);
+        } else {
+            throw new IllegalStateException("already closed");
+        }
     }
 
     private void tryCancelTimeout() {
-        if (timeoutFuture != null) {
-            timeoutFuture.cancel(false);
-            timeoutFuture = null;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
         }
     }
 
-    private void scheduleHeartbeat(final Receiver channel) {
-        if (heartbeatFuture != null) {
-            throw new IllegalStateException("heartbeat is already scheduled");
+    /**
+     * Heartbeats of a session created without a service, checked as often as
+     * the service would and cancelled once the session is closed.
+     */
+    private static final class StandaloneHeartbeat implements SessionConfig.Disposer, Runnable {
+
+        private static final int CHECKS_PER_DELAY = 10;
+
+        private final Runnable                disposer;
+        private volatile SimpleSessionHandler session;
+        private volatile ScheduledFuture<?>   future;
+
+        StandaloneHeartbeat(Runnable disposer) {
+            this.disposer = disposer;
+        }
+
+        void start(SimpleSessionHandler session) {
+            SessionConfig config = session.config;
+            long period = Math.max(TimeUnit.MILLISECONDS.toNanos(1), config.getHeartbeatDelayNanos() / CHECKS_PER_DELAY);
+            this.session = session;
+            this.future = config.getScheduledExecutor().scheduleWithFixedDelay(this, period, period, TimeUnit.NANOSECONDS);
         }
 
-        heartbeatFuture = scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+            try {
+                session.heartbeatIfIdle(System.nanoTime(), 0);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Heartbeat to " + session + " failed", e);
+            }
+        }
 
-            @Override
-            public void run() {
-                if (!channel.doHeartbeat()) {
-                    throw new IllegalStateException("cannot write heartbeat");
-                }
+        @Override
+        public void dispose(SimpleSessionHandler session) {
+            ScheduledFuture<?> currentFuture = future;
+            if (currentFuture != null) {
+                currentFuture.cancel(false);
+            }
+            if (disposer != null) {
+                disposer.run();
             }
+        }
 
-        }, hreatbeatDelay, hreatbeatDelay, TimeUnit.MILLISECONDS);
     }
 
-    private void tryCancelHeartbeat() {
-        if (heartbeatFuture != null) {
-            heartbeatFuture.cancel(false);
-            heartbeatFuture = null;
+    /**
+     * Records the latencies of a sampled message once its batch is flushed,
+     * and once the frame is written.
+     */
+    private static final class LatencySample implements ChannelFutureListener {
+
+        private final ServiceMetrics metrics;
+        private final TransportType  transport;
+        /** The lowest bit is set when no receiver was connected */
+        private final long           sendTime;
+        private final long           flushTime;
+
+        LatencySample(ServiceMetrics metrics, TransportType transport, long sendTime, long flushTime) {
+            this.metrics = metrics;
+            this.transport = transport;
+            this.sendTime = sendTime;
+            this.flushTime = flushTime;
         }
+
+        void flushed() {
+            metrics.recordLatency((sendTime & 1) != 0 ? ServiceMetrics.Latency.POLL_WAIT : ServiceMetrics.Latency.ENQUEUE_TO_FLUSH,
+                    transport, flushTime - sendTime);
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                metrics.recordLatency(ServiceMetrics.Latency.FLUSH_TO_WRITE, transport, System.nanoTime() - flushTime);
+            }
+        }
+
     }
 
 }
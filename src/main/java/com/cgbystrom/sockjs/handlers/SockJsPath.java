@@ -0,0 +1,157 @@
+package com.cgbystrom.sockjs.handlers;
+
+import com.cgbystrom.sockjs.transports.TransportType;
+
+/**
+ * The part of a request URI following the URL of its service, parsed in a
+ * single pass. Only the session id is copied out of the URI, the other
+ * kinds of path are shared constants.
+ */
+final class SockJsPath {
+
+    enum Kind {
+
+        /** The service URL itself, with or without a trailing slash */
+        WELCOME,
+
+        /** <code>/info</code> */
+        INFO,
+
+        /** <code>/iframe.html</code>, with an optional version */
+        IFRAME,
+
+        /** <code>/websocket</code>, a websocket without SockJS framing */
+        RAW_WEBSOCKET,
+
+        /** <code>/server/session/transport</code> */
+        SESSION,
+
+        NOT_FOUND
+
+    }
+
+    static final SockJsPath WELCOME = new SockJsPath(Kind.WELCOME, null, null);
+    static final SockJsPath INFO = new SockJsPath(Kind.INFO, null, null);
+    static final SockJsPath IFRAME = new SockJsPath(Kind.IFRAME, null, null);
+    static final SockJsPath RAW_WEBSOCKET = new SockJsPath(Kind.RAW_WEBSOCKET, null, null);
+    static final SockJsPath NOT_FOUND = new SockJsPath(Kind.NOT_FOUND, null, null);
+
+    private final Kind          kind;
+    private final String        sessionId;
+    private final TransportType transport;
+
+    private SockJsPath(Kind kind, String sessionId, TransportType transport) {
+        this.kind = kind;
+        this.sessionId = sessionId;
+        this.transport = transport;
+    }
+
+    /**
+     * @param start index of the URI following the URL of the service
+     */
+    static SockJsPath parse(String uri, int start) {
+        int end = uri.indexOf('?', start);
+        if(end < 0) {
+            end = uri.length();
+        }
+
+        if(start == end || (start + 1 == end && uri.charAt(start) == '/')) {
+            return WELCOME;
+        }
+        if(uri.charAt(start) != '/') {
+            return NOT_FOUND;
+        }
+
+        // first segment, the server id unless the path is a single segment
+        int firstStart = start + 1;
+        int firstEnd = uri.indexOf('/', firstStart);
+        if(firstEnd < 0 || firstEnd >= end) {
+            if(matches(uri, firstStart, end, "info")) {
+                return INFO;
+            } else if(matches(uri, firstStart, end, "websocket")) {
+                return RAW_WEBSOCKET;
+            } else if(isIframe(uri, firstStart, end)) {
+                return IFRAME;
+            }
+            return NOT_FOUND;
+        }
+
+        // neither the server id nor the session id may be empty or contain a dot
+        int sessionStart = firstEnd + 1;
+        int sessionEnd = segmentEnd(uri, sessionStart, end);
+        if(firstEnd == firstStart || segmentEnd(uri, firstStart, end) != firstEnd
+                || sessionEnd <= sessionStart || sessionEnd == end) {
+            return NOT_FOUND;
+        }
+        int transportStart = sessionEnd + 1;
+
+        TransportType transport;
+        transport = TransportType.forPath(uri, transportStart, end);
+        if(transport == null) {
+            return NOT_FOUND;
+        }
+        return new SockJsPath(Kind.SESSION, uri.substring(sessionStart, sessionEnd), transport);
+    }
+
+    /**
+     * @return the index of the slash ending the segment starting at the
+     *         given index, or -1 if the segment contains a dot
+     */
+    private static int segmentEnd(String uri, int start, int end) {
+        for(int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if(c == '/') {
+                return i;
+            } else if(c == '.') {
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return true if the segment is <code>iframe[0-9a-z._-]*.html</code>
+     */
+    private static boolean isIframe(String uri, int start, int end) {
+        int versionEnd = end - ".html".length();
+        if(versionEnd < start + "iframe".length() || !uri.startsWith("iframe", start)
+                || !uri.startsWith(".html", versionEnd)) {
+            return false;
+        }
+        for(int i = start + "iframe".length(); i < versionEnd; i++) {
+            char c = uri.charAt(i);
+            if(!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && c != '.' && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(String uri, int start, int end, String segment) {
+        return end - start == segment.length() && uri.regionMatches(start, segment, 0, segment.length());
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the session id, or null unless the kind is SESSION
+     */
+    String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return the transport, or null unless the kind is SESSION
+     */
+    TransportType getTransport() {
+        return transport;
+    }
+
+    @Override
+    public String toString() {
+        return "SockJsPath [kind=" + kind + ", sessionId=" + sessionId + ", transport=" + transport + "]";
+    }
+
+}
@@ -6,15 +6,17 @@ package com.cgbystrom.sockjs.handlers;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 
 import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -29,127 +31,172 @@ import com.cgbystrom.sockjs.transports.HtmlFileTransport;
 import com.cgbystrom.sockjs.transports.JsonpPollingTransport;
 import com.cgbystrom.sockjs.transports.JsonpSendTransport;
 import com.cgbystrom.sockjs.transports.RawWebSocketTransport;
+import com.cgbystrom.sockjs.transports.TransportType;
 import com.cgbystrom.sockjs.transports.WebSocketTransport;
 import com.cgbystrom.sockjs.transports.XhrPollingTransport;
 import com.cgbystrom.sockjs.transports.XhrSendTransport;
 import com.cgbystrom.sockjs.transports.XhrStreamingTransport;
 
+/**
+ * Handles the requests of a service end to end, without changing the
+ * pipeline except to upgrade websockets and to decode chunked bodies. The
+ * pages and the HTTP transports keep no state between requests, so one
+ * instance serves all the channels.
+ */
+@Sharable
 public class TransportRouterHandler extends SimpleChannelHandler {
 
-    private static final Pattern SERVER_SESSION = Pattern.compile("^/([^/.]+)/([^/.]+)/([^?.]+)");
     private static final Random RANDOM = new Random();
 
-    private final Service service;
+    private static final ChannelBuffer WELCOME = ChannelBuffers.unmodifiableBuffer(
+            ChannelBuffers.copiedBuffer("Welcome to SockJS!\n", CharsetUtil.UTF_8));
+
+    private static final AbstractTransport XHR_SEND = new XhrSendTransport();
+    private static final AbstractTransport JSONP_SEND = new JsonpSendTransport();
+    private static final AbstractTransport XHR_STREAMING = new XhrStreamingTransport();
+    private static final AbstractTransport XHR_POLLING = new XhrPollingTransport();
+    private static final AbstractTransport JSONP_POLLING = new JsonpPollingTransport();
+    private static final AbstractTransport HTMLFILE = new HtmlFileTransport();
+    private static final AbstractTransport EVENTSOURCE = new EventSourceTransport();
+
+    private final Service    service;
+    private final String     url;
+    private final InfoPage   infoPage;
+    private final IframePage iframePage;
 
     public TransportRouterHandler(Service service) {
         if(service == null) {
             throw new NullPointerException("service");
         }
         this.service = service;
+        this.url = ServiceTrie.canonicalUrl(service.getUrl());
+        this.infoPage = new InfoPage(service);
+        this.iframePage = new IframePage(service.getJavascriptLibraryUrl());
+    }
+
+    public Service getService() {
+        return service;
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        HttpRequest request = (HttpRequest) event.getMessage();
-        String requestUriSuffix = request.getUri().replaceFirst(service.getUrl(), "");
+        if(!(event.getMessage() instanceof HttpRequest)) {
+            // the chunks of a body, for the handler the transport added
+            context.sendUpstream(event);
+            return;
+        }
+        route(context, (HttpRequest) event.getMessage());
+    }
+
+    /**
+     * Handles a request, a websocket request is passed to the handler added
+     * after the one of the given context.
+     */
+    public void route(ChannelHandlerContext context, HttpRequest request) throws Exception {
+        Channel channel = context.getChannel();
+        String uri = request.getUri();
+
+        SockJsPath path;
+        path = uri.startsWith(url) ? SockJsPath.parse(uri, url.length()) : SockJsPath.NOT_FOUND;
 
-        if (requestUriSuffix.equals("") || requestUriSuffix.equals("/")) {
+        switch (path.getKind()) {
+        case WELCOME:
             HttpResponse response;
             response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
             response.setHeader(CONTENT_TYPE, AbstractTransport.CONTENT_TYPE_PLAIN);
-            response.setContent(ChannelBuffers.copiedBuffer("Welcome to SockJS!\n", CharsetUtil.UTF_8));
-            event.getChannel().write(response);
+            response.setContent(WELCOME.duplicate());
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, WELCOME.readableBytes());
+            channel.write(response);
+            break;
 
-        } else if (requestUriSuffix.startsWith("/iframe")) {
-            context.getPipeline().addLast("sockjs-iframe", new IframePage(service.getJavascriptLibraryUrl()));
+        case IFRAME:
+            iframePage.handle(channel, request);
+            break;
 
-        } else if (requestUriSuffix.startsWith("/info")) {
-            context.getPipeline().addLast("sockjs-nocache", new NoCacheHandler());
-            context.getPipeline().addLast("sockjs-info", new InfoPage(service));
+        case INFO:
+            infoPage.handle(channel, request);
+            break;
 
-        } else if (requestUriSuffix.startsWith("/websocket")) {
+        case RAW_WEBSOCKET:
             SessionHandler newSession;
             newSession = service.forceCreateSession("rawwebsocket-" + RANDOM.nextLong());
             context.getPipeline().addLast("sockjs-websocket",
-                    new RawWebSocketTransport(newSession));
-
-        } else {
-            if (!handleSession(context, event, requestUriSuffix)) {
-                HttpResponse response;
-                response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.NOT_FOUND);
-                response.setContent(ChannelBuffers.copiedBuffer("Not found", CharsetUtil.UTF_8));
-                event.getChannel().write(response);
-                return;
-            }
-        }
+                    new RawWebSocketTransport(newSession, service.getWebSocketCompression(), service.getRequestSizeLimit()));
+            Channels.fireMessageReceived(context, request);
+            break;
+
+        case SESSION:
+            handleSession(context, request, path.getTransport(), path.getSessionId());
+            break;
 
-        super.messageReceived(context, event);
+        default:
+            writeNotFound(channel, request);
+        }
     }
 
-    private boolean handleSession(ChannelHandlerContext context, MessageEvent event, String path)
+    private void handleSession(ChannelHandlerContext context, HttpRequest request, TransportType transport, String sessionId)
             throws Exception {
-        Matcher m = SERVER_SESSION.matcher(path);
+        switch (transport) {
+        case XHR_SEND:
+            handle(context.getChannel(), request, XHR_SEND, service.getSession(sessionId)); // Expect an existing session
+            break;
 
-        if (!m.find()) {
-            return false;
-        }
+        case JSONP_SEND:
+            handle(context.getChannel(), request, JSONP_SEND, service.getSession(sessionId)); // Expect an existing session
+            break;
 
-        String sessionId = m.group(2);
-        String transport = m.group(3);
+        case XHR_STREAMING:
+            handle(context.getChannel(), request, XHR_STREAMING, service.getOrCreateSession(sessionId));
+            break;
 
-        ChannelPipeline pipeline;
-        pipeline = context.getPipeline();
+        case XHR:
+            handle(context.getChannel(), request, XHR_POLLING, service.getOrCreateSession(sessionId));
+            break;
 
-        if(service.isJsessionidEnabled() && !transport.equals("websocket")) {
-            pipeline.addLast("sockjs-cookie", new JsessionidCookieHandler());
-        }
+        case JSONP:
+            handle(context.getChannel(), request, JSONP_POLLING, service.getOrCreateSession(sessionId));
+            break;
 
-        if(!transport.equals("websocket")) {
-            pipeline.addLast("sockjs-nocache", new NoCacheHandler());
-        }
+        case HTMLFILE:
+            handle(context.getChannel(), request, HTMLFILE, service.getOrCreateSession(sessionId));
+            break;
+
+        case EVENTSOURCE:
+            handle(context.getChannel(), request, EVENTSOURCE, service.getOrCreateSession(sessionId));
+            break;
+
+        case WEBSOCKET:
+            context.getPipeline().addLast("sockjs-websocket",
+                    new WebSocketTransport(service.forceCreateSession(sessionId), service.getWebSocketCompression(),
+                            service.getRequestSizeLimit()));
+            Channels.fireMessageReceived(context, request);
+            break;
 
-        if (transport.equals("xhr_send")) {
-            pipeline.addLast("sockjs-xhr-send",
-                    new XhrSendTransport(service.getSession(sessionId))); // Expect an existing session
-
-        } else if (transport.equals("jsonp_send")) {
-            pipeline.addLast("sockjs-jsonp-send",
-                    new JsonpSendTransport(service.getSession(sessionId))); // Expect an existing session
-
-        } else if (transport.equals("xhr_streaming")) {
-            pipeline.addLast("sockjs-xhr-streaming",
-                    new XhrStreamingTransport(
-                            service.getOrCreateSession(sessionId), service.getResponseSizeLimit()));
-
-        } else if (transport.equals("xhr")) {
-            pipeline.addLast("sockjs-xhr-polling",
-                    new XhrPollingTransport(
-                            service.getOrCreateSession(sessionId)));
-
-        } else if (transport.equals("jsonp")) {
-            pipeline.addLast("sockjs-jsonp-polling",
-                    new JsonpPollingTransport(
-                            service.getOrCreateSession(sessionId)));
-
-        } else if (transport.equals("htmlfile")) {
-            pipeline.addLast("sockjs-htmlfile-polling",
-                    new HtmlFileTransport(
-                            service.getOrCreateSession(sessionId), service.getResponseSizeLimit()));
-
-        } else if (transport.equals("eventsource")) {
-            pipeline.addLast("sockjs-eventsource",
-                    new EventSourceTransport(
-                            service.getOrCreateSession(sessionId), service.getResponseSizeLimit()));
-
-        } else if (transport.equals("websocket")) {
-            pipeline.addLast("sockjs-websocket",
-                    new WebSocketTransport(service.forceCreateSession(sessionId)));
-
-        } else {
-            return false;
+        default:
+            writeNotFound(context.getChannel(), request);
         }
+    }
+
+    private void writeNotFound(Channel channel, HttpRequest request) {
+        ChannelBuffer buffer;
+        buffer = ChannelBuffers.copiedBuffer("Not found", CharsetUtil.UTF_8);
+
+        HttpResponse response;
+        response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.NOT_FOUND);
+        response.setContent(buffer);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, buffer.readableBytes());
+        channel.write(response);
+    }
 
-        return true;
+    private void handle(Channel channel, HttpRequest request, AbstractTransport transport, SessionHandler sessionHandler) {
+        try {
+            transport.handle(channel, request, service, sessionHandler);
+        } catch (Exception e) {
+            sessionHandler.exceptionCaught(e);
+            if(channel.isOpen()) {
+                channel.close();
+            }
+        }
     }
 
 }
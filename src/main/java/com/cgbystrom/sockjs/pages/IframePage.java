@@ -7,6 +7,8 @@ import java.util.Formatter;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
@@ -15,24 +17,31 @@ import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.jboss.netty.util.CharsetUtil;
 
+import com.cgbystrom.sockjs.handlers.CacheHeaders;
+
+/**
+ * The iframe page of a service. The page only depends on the URL of the
+ * SockJS client library, so its body and ETag are computed once and the
+ * body is shared by all the responses.
+ */
+@Sharable
 public class IframePage extends SimpleChannelHandler {
 
-    private final String content;
-    private final String etag;
+    private final ChannelBuffer content;
+    private final String        etag;
 
     public IframePage(String url) {
         if(url == null || url.isEmpty()) {
             throw new IllegalArgumentException("invalid url");
         }
 
-        content = "<!DOCTYPE html>\n"
+        String page = "<!DOCTYPE html>\n"
                 + "<html>\n"
                 + "<head>\n"
-                + "  <meta http-equiv=\"X-UA-Compatible\" contentBuffer=\"IE=edge\" />\n"
-                + "  <meta http-equiv=\"Content-Type\" contentBuffer=\"text/html; charset=UTF-8\" />\n"
+                + "  <meta http-equiv=\"X-UA-Compatible\" content=\"IE=edge\" />\n"
+                + "  <meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n"
                 + "  <script>\n"
                 + "    document.domain = document.domain;\n"
                 + "    _sockjs_onload = function(){SockJS.bootstrap_iframe();};\n"
@@ -45,43 +54,45 @@ public class IframePage extends SimpleChannelHandler {
                 + "</body>\n"
                 + "</html>";
 
-        etag = "\"" + generateMd5(content) + "\"";
+        content = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(page, CharsetUtil.UTF_8));
+        etag = "\"" + generateMd5(page) + "\"";
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        HttpRequest request = (HttpRequest) event.getMessage();
-
-        QueryStringDecoder requestQueryDecoder = new QueryStringDecoder(request.getUri());
-        String path = requestQueryDecoder.getPath();
-
-        if (!path.matches(".*/iframe[0-9-.a-z_]*.html")) {
-            throw new IllegalStateException("invalid iframe uri");
-        }
-
-        ChannelBuffer contentBuffer;
-        contentBuffer = ChannelBuffers.copiedBuffer(content, CharsetUtil.UTF_8);
+        handle(context.getChannel(), (HttpRequest) event.getMessage());
+    }
 
+    /**
+     * Writes the page, or 304 Not Modified if the request has an
+     * If-None-Match header matching its ETag. The path of the request is
+     * not checked, the router only passes the iframe URLs.
+     */
+    public void handle(Channel channel, HttpRequest request) throws Exception {
         HttpResponse response;
         response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
-        response.setHeader(HttpHeaders.Names.SET_COOKIE, "JSESSIONID=dummy; path=/");
         response.setHeader(HttpHeaders.Names.ETAG, etag);
+        CacheHeaders.setCacheable(response);
 
-        if (request.containsHeader(HttpHeaders.Names.IF_NONE_MATCH)) {
+        if (isNotModified(request.getHeader(HttpHeaders.Names.IF_NONE_MATCH))) {
             response.setStatus(HttpResponseStatus.NOT_MODIFIED);
-            response.removeHeader(HttpHeaders.Names.CONTENT_TYPE);
         } else {
             response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/html; charset=UTF-8");
-            response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=31536000, public");
-            response.setHeader(HttpHeaders.Names.EXPIRES, "FIXME"); // FIXME:
-            // Fix this
-            response.removeHeader(HttpHeaders.Names.SET_COOKIE);
-            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, contentBuffer.readableBytes());
-            response.setContent(contentBuffer);
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
+            response.setContent(content.duplicate());
         }
 
-        context.getChannel().write(response);
+        channel.write(response);
+    }
 
+    /**
+     * @param ifNoneMatch a list of entity tags, weak or not, or "*"
+     */
+    private boolean isNotModified(String ifNoneMatch) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+        return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag);
     }
 
     private static String generateMd5(String value) {
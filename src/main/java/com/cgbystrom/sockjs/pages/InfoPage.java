@@ -4,6 +4,8 @@ import java.util.Random;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
@@ -15,49 +17,76 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.util.CharsetUtil;
 
 import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.handlers.NoCacheHandler;
 
+/**
+ * The info page of a service. Only the entropy changes between two
+ * responses, the rest of the body is formatted once.
+ */
+@Sharable
 public class InfoPage extends SimpleChannelHandler {
 
     private static final Random RANDOM = new Random();
 
-    private final Service service;
+    private static final int    MAX_ENTROPY_LENGTH = String.valueOf(Integer.MAX_VALUE).length();
+
+    private final byte[] prefix;
 
     public InfoPage(Service service) {
-        this.service = service;
+        if(service == null) {
+            throw new NullPointerException("service");
+        }
+        StringBuilder sb = new StringBuilder(100);
+        sb.append("{");
+        sb.append("\"websocket\": ");
+        sb.append(service.isWebSocketEnabled());
+        sb.append(", ");
+        sb.append("\"origins\": [\"*:*\"], ");
+        sb.append("\"cookie_needed\": ");
+        sb.append(service.isJsessionidEnabled());
+        sb.append(", ");
+        sb.append("\"entropy\": ");
+        prefix = sb.toString().getBytes(CharsetUtil.UTF_8);
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        HttpRequest request;
-        request = (HttpRequest) event.getMessage();
+        handle(context.getChannel(), (HttpRequest) event.getMessage());
+    }
 
+    public void handle(Channel channel, HttpRequest request) throws Exception {
         ChannelBuffer infoBuffer;
-        infoBuffer = formatInfoForService(service);
+        infoBuffer = formatInfo(RANDOM.nextInt(Integer.MAX_VALUE) + 1);
 
         HttpResponse response;
         response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
         response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
-        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, NoCacheHandler.CACHE_CONTROL);
         response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, infoBuffer.readableBytes());
         response.setContent(infoBuffer);
 
-        context.getChannel().write(response);
+        channel.write(response);
     }
 
-    private ChannelBuffer formatInfoForService(Service service) {
-        StringBuilder sb = new StringBuilder(100);
-        sb.append("{");
-        sb.append("\"websocket\": ");
-        sb.append(service.isWebSocketEnabled());
-        sb.append(", ");
-        sb.append("\"origins\": [\"*:*\"], ");
-        sb.append("\"cookie_needed\": ");
-        sb.append(service.isJsessionidEnabled());
-        sb.append(", ");
-        sb.append("\"entropy\": ");
-        sb.append(RANDOM.nextInt(Integer.MAX_VALUE) + 1);
-        sb.append("}");
-        return ChannelBuffers.copiedBuffer(sb.toString(), CharsetUtil.UTF_8);
+    private ChannelBuffer formatInfo(int entropy) {
+        ChannelBuffer buffer;
+        buffer = ChannelBuffers.buffer(prefix.length + MAX_ENTROPY_LENGTH + 1);
+        buffer.writeBytes(prefix);
+
+        int start = buffer.writerIndex();
+        do {
+            buffer.writeByte('0' + entropy % 10);
+            entropy /= 10;
+        } while(entropy > 0);
+        // the digits were written from the least significant one
+        for(int i = start, j = buffer.writerIndex() - 1; i < j; i++, j--) {
+            byte digit = buffer.getByte(i);
+            buffer.setByte(i, buffer.getByte(j));
+            buffer.setByte(j, digit);
+        }
+
+        buffer.writeByte('}');
+        return buffer;
     }
 
 }
@@ -6,43 +6,55 @@ import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 
 
 public abstract class AbstractPollingTransport extends AbstractReceiverTransport {
 
-    public AbstractPollingTransport(SessionHandler sessionHandler) {
-        super(sessionHandler);
-    }
-
-    public abstract class SingleResponseReceiver extends ResponseReceiver {
-
-        private final HttpResponse httpResponse;
-
-        public SingleResponseReceiver(Channel aChannel, HttpResponse httpResponse) {
-            super(aChannel);
-            if(httpResponse == null) {
-                throw new NullPointerException("httpResponse");
+    /**
+     * Receiver of a poll, answered by a single response. The response is
+     * only created once there is a frame to send, a pending poll keeps the
+     * few values it is made of.
+     */
+    public static abstract class SingleResponseReceiver extends ResponseReceiver {
+
+        private final String  contentType;
+        private final String  cookie;
+        private final boolean keepAliveEnabled;
+
+        /**
+         * @param cookie the cookie to set on the response, or null
+         */
+        public SingleResponseReceiver(SessionHandler sessionHandler, Channel aChannel, String contentType, String cookie,
+                                      FrameEncoder frameEncoder, boolean keepAliveEnabled) {
+            super(sessionHandler, aChannel, frameEncoder);
+            if(contentType == null) {
+                throw new NullPointerException("contentType");
             }
-            this.httpResponse = httpResponse;
+            this.contentType = contentType;
+            this.cookie = cookie;
+            this.keepAliveEnabled = keepAliveEnabled;
         }
 
         @Override
-        protected synchronized boolean doSend(String frame) {
+        protected synchronized boolean doSend(ChannelBuffer frame) {
             boolean closed = isClosed();
 
             if(!closed) {
                 ChannelBuffer contentBuffer;
                 contentBuffer = formatFrame(frame);
 
+                HttpResponse httpResponse;
+                httpResponse = createResponse(contentType, keepAliveEnabled, cookie, HttpResponseStatus.OK);
                 httpResponse.setHeader(HttpHeaders.Names.CONTENT_LENGTH, contentBuffer.readableBytes());
                 httpResponse.setContent(contentBuffer);
 
                 ChannelFuture writeFuture;
-                writeFuture = getChannel().write(httpResponse);
+                writeFuture = write(httpResponse);
 
-                if(!isKeepAliveEnabled()) {
+                if(!keepAliveEnabled) {
                     writeFuture.addListener(ChannelFutureListener.CLOSE);
                 }
 
@@ -52,7 +64,12 @@ public abstract class AbstractPollingTransport extends AbstractReceiverTransport
             return !closed;
         }
 
-        protected abstract ChannelBuffer formatFrame(String frame);
+        /**
+         * Hook for content around the encoded frame, which is returned as is by default.
+         */
+        protected ChannelBuffer formatFrame(ChannelBuffer frame) {
+            return frame;
+        }
 
     }
 
@@ -1,84 +1,148 @@
 package com.cgbystrom.sockjs.transports;
 
 import java.net.SocketAddress;
-import java.util.concurrent.atomic.AtomicReference;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 
+import com.cgbystrom.sockjs.PreparedMessage;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 import com.cgbystrom.sockjs.handlers.SessionHandler.Receiver;
-import com.fasterxml.jackson.core.io.JsonStringEncoder;
 
 
 public abstract class AbstractReceiverTransport extends AbstractTransport {
 
-    private final AtomicReference<Receiver> receiver;
-
-    public AbstractReceiverTransport(SessionHandler sessionHandler) {
-        super(sessionHandler);
-        this.receiver = new AtomicReference<Receiver>();
-    }
-
-    @Override
-    public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
-        Receiver previousReceiver;
-        previousReceiver = receiver.getAndSet(null);
-        if(previousReceiver != null) {
-            getSessionHandler().unregisterReceiver(previousReceiver);
+    /**
+     * @return the receiver registered for the channel, attached to it until
+     *         the receiver is unregistered, or null
+     */
+    public static GenericReceiver getReceiver(Channel channel) {
+        Object attachment;
+        attachment = channel.getAttachment();
+        if(attachment instanceof GenericReceiver) {
+            return (GenericReceiver) attachment;
         }
+        return null;
     }
 
-    protected void registerReceiver(Receiver newReceiver) throws IllegalStateException {
-        if(receiver.compareAndSet(null, newReceiver)) {
-            getSessionHandler().registerReceiver(newReceiver);
-        } else {
-            throw new IllegalStateException("already registered");
-        }
-    }
+    public static abstract class GenericReceiver implements Receiver {
 
-    protected void unregisterReceiver() throws IllegalStateException {
-        Receiver previousReceiver;
-        previousReceiver = receiver.getAndSet(null);
-        if(previousReceiver != null) {
-            getSessionHandler().unregisterReceiver(previousReceiver);
-        } else {
-            throw new IllegalStateException("not registered");
-        }
-    }
+        private final SessionHandler sessionHandler;
+        private final Channel        channel;
 
-    public abstract class GenericReceiver implements Receiver {
+        private boolean              registered = false;
+        private boolean              closed = false;
+        /** Only set and taken by the thread flushing the session */
+        private ChannelFutureListener writeListener;
 
-        private final Channel channel;
-
-        private boolean closed = false;
-
-        public GenericReceiver(Channel channel) {
+        public GenericReceiver(SessionHandler sessionHandler, Channel channel) {
+            if(sessionHandler == null) {
+                throw new NullPointerException("sessionHandler");
+            }
             if(channel == null) {
                 throw new NullPointerException("channel");
             }
+            this.sessionHandler = sessionHandler;
             this.channel = channel;
         }
 
+        /**
+         * Registers this receiver with its session and attaches it to its
+         * channel, so that the closing and the writability changes of the
+         * channel are reported to the session.
+         */
+        public void register() throws IllegalStateException {
+            synchronized (this) {
+                if(registered) {
+                    throw new IllegalStateException("already registered");
+                }
+                registered = true;
+            }
+            channel.setAttachment(this);
+            sessionHandler.registerReceiver(this);
+        }
+
+        /**
+         * Unregisters this receiver from its session, once the response is
+         * complete or the channel is closed.
+         */
+        public void unregister() {
+            synchronized (this) {
+                if(!registered) {
+                    return;
+                }
+                registered = false;
+            }
+            if(channel.getAttachment() == this) {
+                channel.setAttachment(null);
+            }
+            sessionHandler.unregisterReceiver(this);
+        }
+
+        public void writabilityChanged() {
+            if(isRegistered()) {
+                sessionHandler.writabilityChanged(this);
+            }
+        }
+
         protected synchronized boolean setClosed() {
             if(!closed) {
                 closed = true;
-                unregisterReceiver();
+                unregister();
                 return true;
             }
             return false;
         }
 
+        public SessionHandler getSessionHandler() {
+            return sessionHandler;
+        }
+
+        @Override
+        public void setWriteListener(ChannelFutureListener listener) {
+            writeListener = listener;
+        }
+
         protected Channel getChannel() {
             return channel;
         }
 
+        /**
+         * Writes a message frame to the channel, adding the write listener
+         * set by the session if any.
+         */
+        protected ChannelFuture write(Object frame) {
+            ChannelFuture writeFuture;
+            writeFuture = channel.write(frame);
+            ChannelFutureListener listener = writeListener;
+            if(listener != null) {
+                writeListener = null;
+                writeFuture.addListener(listener);
+            }
+            return writeFuture;
+        }
+
+        public synchronized boolean isRegistered() {
+            return registered;
+        }
+
         @Override
         public synchronized boolean isClosed() {
             return closed;
         }
 
+        @Override
+        public boolean isWritable() {
+            return channel.isWritable();
+        }
+
+        @Override
+        public boolean isBinarySupported() {
+            return false;
+        }
+
         @Override
         public SocketAddress getLocalAddress() {
             return channel.getLocalAddress();
@@ -89,6 +153,11 @@ public abstract class AbstractReceiverTransport extends AbstractTransport {
             return channel.getRemoteAddress();
         }
 
+        @Override
+        public void setReadable(boolean readable) {
+            channel.setReadable(readable);
+        }
+
         @Override
         public String toString() {
             return "Receiver " + channel;
@@ -96,59 +165,42 @@ public abstract class AbstractReceiverTransport extends AbstractTransport {
 
     }
 
-    public abstract class ResponseReceiver extends GenericReceiver {
+    public static abstract class ResponseReceiver extends GenericReceiver {
+
+        private final FrameEncoder frameEncoder;
 
-        public ResponseReceiver(Channel channel) {
-            super(channel);
+        public ResponseReceiver(SessionHandler sessionHandler, Channel channel, FrameEncoder frameEncoder) {
+            super(sessionHandler, channel);
+            if(frameEncoder == null) {
+                throw new NullPointerException("frameEncoder");
+            }
+            this.frameEncoder = frameEncoder;
         }
 
         @Override
         public boolean doOpen() {
-            return doSend("o");
+            return doSend(frameEncoder.encodeOpenFrame());
         }
 
         @Override
-        public boolean doWrite(String[] messages) {
-            StringBuilder frameBuilder;
-            frameBuilder = new StringBuilder();
-            frameBuilder.append('a');
-            frameBuilder.append('[');
-            for(String message : messages) {
-                if(messages[0] != message) {
-                    frameBuilder.append(',');
-                }
-                frameBuilder.append('"');
-                frameBuilder.append(new JsonStringEncoder().quoteAsString(message));
-                frameBuilder.append('"');
-            }
-            frameBuilder.append(']');
-
-            return doSend(frameBuilder.toString());
+        public boolean doWrite(PreparedMessage[] messages) {
+            return doSend(frameEncoder.encodeMessageFrame(messages));
         }
 
         @Override
         public boolean doHeartbeat() {
-            return doSend("h");
+            return doSend(frameEncoder.encodeHeartbeatFrame());
         }
 
         @Override
         public boolean doClose(int status, String reason) {
-            StringBuilder frameBuilder;
-            frameBuilder = new StringBuilder();
-            frameBuilder.append('c');
-            frameBuilder.append('[');
-            frameBuilder.append(status);
-            frameBuilder.append(',');
-            frameBuilder.append('"');
-            frameBuilder.append(new JsonStringEncoder().quoteAsString(reason));
-            frameBuilder.append('"');
-            frameBuilder.append(']');
-
-            return doSend(frameBuilder.toString()) && setClosed();
-
+            return doSend(frameEncoder.encodeCloseFrame(status, reason)) && setClosed();
         }
 
-        protected abstract boolean doSend(String frame);
+        /**
+         * @param frame the encoded frame, including the transport prefix and suffix
+         */
+        protected abstract boolean doSend(ChannelBuffer frame);
 
     }
 
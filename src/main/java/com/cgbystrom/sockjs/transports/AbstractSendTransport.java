@@ -1,34 +1,51 @@
 package com.cgbystrom.sockjs.transports;
 
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
 
-import java.util.List;
-
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.QueryStringDecoder;
-import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 
+import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 
+/**
+ * Passes the messages of the body of a request to its session as they are
+ * decoded by a {@link MessageArrayDecoder}. The body of a chunked request
+ * is decoded chunk by chunk by a handler added to the end of the pipeline
+ * until the last chunk, so that the pipeline needs no
+ * <code>HttpChunkAggregator</code>.
+ */
 public abstract class AbstractSendTransport extends AbstractTransport {
 
-    public AbstractSendTransport(SessionHandler sessionHandler) {
-        super(sessionHandler);
+    private final HttpResponseStatus successStatus;
+
+    /**
+     * @param successStatus status of the response once the messages are
+     *        delivered to the session
+     */
+    public AbstractSendTransport(HttpResponseStatus successStatus) {
+        if(successStatus == null) {
+            throw new NullPointerException("successStatus");
+        }
+        this.successStatus = successStatus;
     }
 
     @Override
-    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        super.messageReceived(context, event);
-
-        HttpRequest request = (HttpRequest) event.getMessage();
-
-        if (request.getContent().readableBytes() == 0) {
-            respondAndClose(event.getChannel(), INTERNAL_SERVER_ERROR, "Payload expected.");
+    public void handle(Channel channel, HttpRequest request, Service service, SessionHandler sessionHandler) throws Exception {
+        if (!request.isChunked() && request.getContent().readableBytes() == 0) {
+            respondAndClose(channel, request, service, INTERNAL_SERVER_ERROR, "Payload expected.");
             return;
         }
 
@@ -37,33 +54,96 @@ public abstract class AbstractSendTransport extends AbstractTransport {
             contentTypeHeader = AbstractTransport.CONTENT_TYPE_PLAIN;
         }
 
-        String decodedContent;
-        if (AbstractTransport.CONTENT_TYPE_FORM.equals(contentTypeHeader)) {
-            QueryStringDecoder decoder = new QueryStringDecoder("?" + request.getContent().toString(CharsetUtil.UTF_8));
-            List<String> d = decoder.getParameters().get("d");
-            if (d == null) {
-                respondAndClose(event.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, "Payload expected.");
-                return;
+        MessageArrayDecoder decoder;
+        decoder = new MessageArrayDecoder(sessionHandler, AbstractTransport.CONTENT_TYPE_FORM.equals(contentTypeHeader),
+                service.getMessageSizeLimit(), service.getRequestSizeLimit());
+
+        if (request.isChunked()) {
+            if (HttpHeaders.is100ContinueExpected(request)) {
+                channel.write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
             }
-            decodedContent = d.get(0);
-        } else {
-            decodedContent = request.getContent().toString(CharsetUtil.UTF_8);
+            channel.getPipeline().addLast("sockjs-send", new ChunkedBodyHandler(request, service, sessionHandler, decoder));
+            return;
         }
 
-        if (decodedContent.length() == 0) {
-            respondAndClose(event.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, "Payload expected.");
+        try {
+            decoder.decode(request.getContent());
+        } catch (TooLongFrameException e) {
+            respondAndClose(channel, request, service, REQUEST_ENTITY_TOO_LARGE, e.getMessage());
             return;
         }
+        complete(channel, request, service, decoder);
+    }
+
+    private void complete(Channel channel, HttpRequest request, Service service, MessageArrayDecoder decoder) throws Exception {
+        if (!decoder.finish()) {
+            respondAndClose(channel, request, service, INTERNAL_SERVER_ERROR, "Payload expected.");
+            return;
+        }
+
+        ChannelFuture writeFuture;
+        writeFuture = respond(channel, request, service, successStatus);
+
+        if(!isKeepAliveEnabled(request)) {
+            writeFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Decodes the chunks of the body of a request, then removes itself.
+     * Failures are handled as the router handles the failures of the
+     * transports.
+     */
+    private final class ChunkedBodyHandler extends SimpleChannelUpstreamHandler {
+
+        private final HttpRequest         request;
+        private final Service             service;
+        private final SessionHandler      sessionHandler;
+        private final MessageArrayDecoder decoder;
 
-        String[] decodedMessageArray;
-        decodedMessageArray = TransportUtils.decodeMessage(decodedContent);
-        for(String message : decodedMessageArray) {
-            getSessionHandler().messageReceived(message);
+        /** Set once the body is refused, the chunks left are then skipped */
+        private boolean                   refused;
+
+        public ChunkedBodyHandler(HttpRequest request, Service service, SessionHandler sessionHandler, MessageArrayDecoder decoder) {
+            this.request = request;
+            this.service = service;
+            this.sessionHandler = sessionHandler;
+            this.decoder = decoder;
         }
 
-        if(!isKeepAliveEnabled()) {
-            event.getFuture().addListener(ChannelFutureListener.CLOSE);
+        @Override
+        public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
+            if (!(event.getMessage() instanceof HttpChunk)) {
+                context.sendUpstream(event);
+                return;
+            }
+
+            HttpChunk chunk = (HttpChunk) event.getMessage();
+            if (chunk.isLast()) {
+                context.getPipeline().remove(this);
+            }
+            if (refused) {
+                return;
+            }
+
+            Channel channel = context.getChannel();
+            try {
+                decoder.decode(chunk.getContent());
+                if (chunk.isLast()) {
+                    complete(channel, request, service, decoder);
+                }
+            } catch (TooLongFrameException e) {
+                refused = true;
+                respondAndClose(channel, request, service, REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+            } catch (Exception e) {
+                refused = true;
+                sessionHandler.exceptionCaught(e);
+                if(channel.isOpen()) {
+                    channel.close();
+                }
+            }
         }
+
     }
 
 }
@@ -7,49 +7,101 @@ import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
+import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 
 /**
  * Base class for streaming transports
  *
  * Handles HTTP chunking and response size limiting for browser "garbage collection".
+ * When the service compresses the streaming responses and the client accepts
+ * gzip, the chunks are compressed by a {@link GzipChunkEncoder} per response.
  */
 public abstract class AbstractStreamingTransport extends AbstractReceiverTransport {
 
-    public AbstractStreamingTransport(SessionHandler sessionHandler) {
-        super(sessionHandler);
-    }
-
     @Override
-    protected HttpResponse createResponse(Channel channel, String contentType) {
-        HttpResponse response = super.createResponse(channel, contentType);
+    protected HttpResponse createResponse(HttpRequest request, Service service, String contentType) {
+        HttpResponse response = super.createResponse(request, service, contentType);
         response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
         return response;
     }
 
-    public abstract class AbstractStreamingReceiver extends ResponseReceiver {
+    /**
+     * Sets the Content-Encoding of a response which is compressed.
+     *
+     * @return the encoder of the chunks of the response, null if they are
+     *         not compressed
+     */
+    protected GzipChunkEncoder createEncoder(HttpRequest request, Service service, HttpResponse response) {
+        StreamingCompression compression = service.getStreamingCompression();
+        if(compression == null) {
+            return null;
+        }
+        GzipChunkEncoder encoder = compression.newEncoder(request);
+        if(encoder != null) {
+            response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+        }
+        return encoder;
+    }
+
+    /**
+     * @param encoder the encoder of the response, null if it is not compressed
+     */
+    protected static ChannelFuture writeChunk(Channel channel, GzipChunkEncoder encoder, ChannelBuffer content) {
+        return channel.write(new DefaultHttpChunk(encoder != null ? encoder.encode(content) : content));
+    }
+
+    public static class StreamingReceiver extends ResponseReceiver {
+
+        private final TransportType transportType;
+        private final long          responseSizeLimit;
+        private final boolean       keepAliveEnabled;
+        /** Null if the response is not compressed */
+        private final GzipChunkEncoder encoder;
 
-        private final long responseSizeLimit;
+        private long                responseSize;
 
-        private long responseSize;
+        public StreamingReceiver(SessionHandler sessionHandler, Channel channel, TransportType transportType, long responseSizeLimit,
+                                 FrameEncoder frameEncoder, boolean keepAliveEnabled) {
+            this(sessionHandler, channel, transportType, responseSizeLimit, frameEncoder, keepAliveEnabled, null);
+        }
 
-        public AbstractStreamingReceiver(Channel channel, long responseSizeLimit) {
-            super(channel);
+        /**
+         * @param encoder the encoder of the response, null if it is not
+         *        compressed. The size limit then applies to the compressed
+         *        bytes.
+         */
+        public StreamingReceiver(SessionHandler sessionHandler, Channel channel, TransportType transportType, long responseSizeLimit,
+                                 FrameEncoder frameEncoder, boolean keepAliveEnabled, GzipChunkEncoder encoder) {
+            super(sessionHandler, channel, frameEncoder);
+            if(transportType == null) {
+                throw new NullPointerException("transportType");
+            }
+            this.transportType = transportType;
             this.responseSizeLimit = responseSizeLimit;
+            this.keepAliveEnabled = keepAliveEnabled;
+            this.encoder = encoder;
+        }
+
+        @Override
+        public TransportType getTransportType() {
+            return transportType;
         }
 
         @Override
-        protected synchronized boolean doSend(String frame) {
+        protected synchronized boolean doSend(ChannelBuffer frame) {
             boolean closed = isClosed();
 
             if(!closed) {
-                ChannelBuffer frameBuffer = formatFrame(frame);
-                HttpChunk frameChunk = new DefaultHttpChunk(frameBuffer);
-                getChannel().write(frameChunk);
+                ChannelBuffer content = encoder != null ? encoder.encode(frame) : frame;
+                int frameSize = content.readableBytes();
+                HttpChunk frameChunk = new DefaultHttpChunk(content);
+                write(frameChunk);
 
-                if((responseSize = responseSize + frame.length()) > responseSizeLimit) {
+                if((responseSize = responseSize + frameSize) > responseSizeLimit) {
                     setClosed();
                 }
             }
@@ -61,17 +113,30 @@ public abstract class AbstractStreamingTransport extends AbstractReceiverTranspo
         protected boolean setClosed() {
             boolean closing = super.setClosed();
             if(closing) {
+                if(encoder != null) {
+                    writeTrailer();
+                }
+
                 ChannelFuture writeFuture;
                 writeFuture = getChannel().write(HttpChunk.LAST_CHUNK);
 
-                if(!isKeepAliveEnabled()) {
+                if(!keepAliveEnabled) {
                     writeFuture.addListener(ChannelFutureListener.CLOSE);
                 }
             }
             return closing;
         }
 
-        protected abstract ChannelBuffer formatFrame(String frame);
+        /**
+         * Sends the end of the compressed stream once closed, under the lock
+         * of the sends so that it follows the last frame.
+         */
+        private synchronized void writeTrailer() {
+            ChannelBuffer trailer = encoder.finish();
+            if(trailer.readable()) {
+                getChannel().write(new DefaultHttpChunk(trailer));
+            }
+        }
 
     }
 
@@ -3,11 +3,8 @@ package com.cgbystrom.sockjs.transports;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -16,92 +13,101 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.util.CharsetUtil;
 
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.handlers.JsessionidCookieHandler;
+import com.cgbystrom.sockjs.handlers.NoCacheHandler;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 
-public abstract class AbstractTransport extends SimpleChannelHandler {
+/**
+ * Base class for the HTTP transports.
+ *
+ * A transport is shared by all the requests, and keeps no state of its own:
+ * whatever must outlive the request is held by the receiver it registers
+ * with the session.
+ */
+public abstract class AbstractTransport {
 
     public static final String CONTENT_TYPE_JAVASCRIPT = "application/javascript; charset=UTF-8";
     public static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
     public static final String CONTENT_TYPE_PLAIN = "text/plain; charset=UTF-8";
     public static final String CONTENT_TYPE_HTML = "text/html; charset=UTF-8";
 
-    private final SessionHandler sessionHandler;
+    /**
+     * Handles a request for the given session, exceptions are reported to
+     * the session by the caller.
+     */
+    public abstract void handle(Channel channel, HttpRequest request, Service service, SessionHandler sessionHandler) throws Exception;
 
-    private Boolean isKeepAliveEnabled = null;
-
-    public AbstractTransport(SessionHandler sessionHandler) {
-        if(sessionHandler == null) {
-            throw new NullPointerException("sessionHandler");
-        }
-        this.sessionHandler = sessionHandler;
-    }
-
-    @Override
-    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        HttpRequest request = (HttpRequest) event.getMessage();
-
-        isKeepAliveEnabled = request.getHeaders(HttpHeaders.Names.CONNECTION).isEmpty()
+    public static boolean isKeepAliveEnabled(HttpRequest request) {
+        return request.getHeaders(HttpHeaders.Names.CONNECTION).isEmpty()
                 || !request.getHeaders(HttpHeaders.Names.CONNECTION).contains(HttpHeaders.Values.CLOSE);
     }
 
-    @Override
-    public void exceptionCaught(ChannelHandlerContext context, ExceptionEvent event) throws Exception {
-        getSessionHandler().exceptionCaught(event.getCause());
-        if(event.getChannel().isOpen()) {
-            event.getChannel().close();
-        }
-    }
-
-    protected SessionHandler getSessionHandler() {
-        return sessionHandler;
-    }
-
-    public boolean isKeepAliveEnabled() {
-        if(isKeepAliveEnabled == null) {
-            throw new NullPointerException("isKeepAliveEnabled not initialized");
-        }
-        return isKeepAliveEnabled;
+    /**
+     * @return a response which must not be cached, with the JSESSIONID cookie
+     *         if the service needs it
+     */
+    protected HttpResponse createResponse(HttpRequest request, Service service, String contentType, HttpResponseStatus status) {
+        return createResponse(contentType, isKeepAliveEnabled(request), getCookie(request, service), status);
     }
 
-    protected HttpResponse createResponse(Channel channel, String contentType, HttpResponseStatus status) {
+    /**
+     * Creates a response from what was kept of the request, so that a
+     * pending poll does not hold a response until it is written.
+     *
+     * @param cookie the cookie to set, or null
+     */
+    protected static HttpResponse createResponse(String contentType, boolean keepAliveEnabled, String cookie, HttpResponseStatus status) {
         HttpResponse response;
         response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
         response.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType);
-        response.setHeader(HttpHeaders.Names.CONNECTION,  isKeepAliveEnabled() ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+        response.setHeader(HttpHeaders.Names.CONNECTION,  keepAliveEnabled ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, NoCacheHandler.CACHE_CONTROL);
+        if(cookie != null) {
+            response.setHeader(HttpHeaders.Names.SET_COOKIE, cookie);
+        }
 
         return response;
     }
 
-    protected HttpResponse createResponse(Channel channel, String contentType) {
-        return createResponse(channel, contentType, HttpResponseStatus.OK);
+    /**
+     * @return the JSESSIONID cookie to set on the responses, or null if the
+     *         service does not need it
+     */
+    protected static String getCookie(HttpRequest request, Service service) {
+        return service.isJsessionidEnabled() ? JsessionidCookieHandler.formatCookie(request) : null;
+    }
+
+    protected HttpResponse createResponse(HttpRequest request, Service service, String contentType) {
+        return createResponse(request, service, contentType, HttpResponseStatus.OK);
     }
 
-    protected void respond(Channel channel, HttpResponseStatus status, String message) throws Exception {
+    protected ChannelFuture respond(Channel channel, HttpRequest request, Service service, HttpResponseStatus status, String message) throws Exception {
         ChannelBuffer buffer;
         buffer = ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8);
 
         HttpResponse response;
-        response = createResponse(channel, AbstractTransport.CONTENT_TYPE_PLAIN, status);
+        response = createResponse(request, service, AbstractTransport.CONTENT_TYPE_PLAIN, status);
         response.setContent(buffer);
         response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, buffer.readableBytes());
 
-        channel.write(response);
+        return channel.write(response);
     }
 
-    protected void respond(Channel channel, HttpResponseStatus status) throws Exception {
+    protected ChannelFuture respond(Channel channel, HttpRequest request, Service service, HttpResponseStatus status) throws Exception {
         HttpResponse response;
-        response = createResponse(channel, AbstractTransport.CONTENT_TYPE_PLAIN, status);
+        response = createResponse(request, service, AbstractTransport.CONTENT_TYPE_PLAIN, status);
         response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, 0);
 
-        channel.write(response);
+        return channel.write(response);
     }
 
-    protected void respondAndClose(Channel channel, HttpResponseStatus status, String message) throws Exception {
+    protected void respondAndClose(Channel channel, HttpRequest request, Service service, HttpResponseStatus status, String message) throws Exception {
         ChannelBuffer buffer;
         buffer = ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8);
 
         HttpResponse response;
-        response = createResponse(channel, AbstractTransport.CONTENT_TYPE_PLAIN, status);
+        response = createResponse(request, service, AbstractTransport.CONTENT_TYPE_PLAIN, status);
         response.setContent(buffer);
         response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, buffer.readableBytes());
         response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
@@ -109,4 +115,4 @@ public abstract class AbstractTransport extends SimpleChannelHandler {
         channel.write(response).addListener(ChannelFutureListener.CLOSE);
     }
 
-}
\ No newline at end of file
+}
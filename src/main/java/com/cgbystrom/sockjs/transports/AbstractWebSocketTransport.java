@@ -1,45 +1,111 @@
 package com.cgbystrom.sockjs.transports;
 
 import static org.jboss.netty.handler.codec.http.HttpMethod.GET;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpHeaders.Values;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketHandshakeException;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.CharsetUtil;
 
 import com.cgbystrom.sockjs.handlers.PreflightHandler;
 import com.cgbystrom.sockjs.handlers.ServiceRouterHandler;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
-import com.cgbystrom.sockjs.handlers.TransportRouterHandler;
+import com.cgbystrom.sockjs.transports.AbstractReceiverTransport.GenericReceiver;
 
-public abstract class AbstractWebSocketTransport extends AbstractReceiverTransport {
+/**
+ * Handler of a websocket, left in the pipeline of its channel once the
+ * request is upgraded, unlike the HTTP transports. The handshaker is not
+ * kept once the request is upgraded, closing frames are echoed directly.
+ *
+ * When the service compresses the websockets and the client offers the
+ * permessage-deflate extension, a {@link PerMessageDeflateHandler} is added
+ * in front of the transport once the request is upgraded.
+ *
+ * The messages received in several frames are gathered up to the payload
+ * limit before they are passed on. The websocket is closed with 1009 once a
+ * message goes over the limit, and with 1003 on a binary message unless
+ * the transport accepts them.
+ */
+public abstract class AbstractWebSocketTransport extends SimpleChannelHandler {
 
-    private WebSocketServerHandshaker handshaker;
+    private static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+
+    static final int UNSUPPORTED_DATA_STATUS = 1003;
+    static final int MESSAGE_TOO_BIG_STATUS = 1009;
+
+    private final SessionHandler    sessionHandler;
+    private final PerMessageDeflate perMessageDeflate;
+    private final long              maxFramePayloadLength;
+    /** Extension accepted by the handshake, until it is added to the handshake response */
+    private String                  extensionResponse;
+    /** Message whose last frame is not received yet, only used by the I/O thread */
+    private FragmentedMessage       fragmentedMessage;
+    /** True once the websocket is closed for a message too big, the frames still received are dropped */
+    private boolean                 discarding;
 
     protected abstract void webSocketReady(Channel channel);
 
     protected abstract void textWebSocketFrameReceived(ChannelHandlerContext context, MessageEvent event, TextWebSocketFrame textWebSocketFrame) throws Exception;
 
+    /**
+     * Closes the websocket with 1003 on a binary message unless overridden.
+     */
+    protected void binaryWebSocketFrameReceived(ChannelHandlerContext context, MessageEvent event, BinaryWebSocketFrame binaryWebSocketFrame) throws Exception {
+        closeWebSocket(context.getChannel(), UNSUPPORTED_DATA_STATUS, "Binary messages not supported");
+    }
+
     public AbstractWebSocketTransport(SessionHandler sessionHandler) {
-        super(sessionHandler);
+        this(sessionHandler, null);
+    }
+
+    /**
+     * @param perMessageDeflate settings of the compression, null to refuse it
+     */
+    public AbstractWebSocketTransport(SessionHandler sessionHandler, PerMessageDeflate perMessageDeflate) {
+        this(sessionHandler, perMessageDeflate, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param perMessageDeflate settings of the compression, null to refuse it
+     * @param maxFramePayloadLength bytes of the payload of a received frame
+     *        at most, once decompressed
+     */
+    public AbstractWebSocketTransport(SessionHandler sessionHandler, PerMessageDeflate perMessageDeflate, long maxFramePayloadLength) {
+        if(sessionHandler == null) {
+            throw new NullPointerException("sessionHandler");
+        }
+        this.sessionHandler = sessionHandler;
+        this.perMessageDeflate = perMessageDeflate;
+        this.maxFramePayloadLength = maxFramePayloadLength;
     }
 
     @Override
@@ -54,16 +120,59 @@ public abstract class AbstractWebSocketTransport extends AbstractReceiverTranspo
         }
     }
 
+    /**
+     * Adds the accepted extension to the handshake response, which the
+     * handshaker writes itself.
+     */
+    @Override
+    public void writeRequested(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        if(extensionResponse != null && event.getMessage() instanceof HttpResponse) {
+            ((HttpResponse) event.getMessage()).setHeader(SEC_WEBSOCKET_EXTENSIONS, extensionResponse);
+            extensionResponse = null;
+        }
+        super.writeRequested(context, event);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext context, ExceptionEvent event) throws Exception {
         if (event.getCause() instanceof WebSocketHandshakeException) {
             if (event.getCause().getMessage().contains("missing upgrade")) {
-                respondAndClose(event.getChannel(), HttpResponseStatus.BAD_REQUEST,
-                        "Can \"Upgrade\" only to \"WebSocket\".");
+                respondAndClose(event.getChannel(), BAD_REQUEST, "Can \"Upgrade\" only to \"WebSocket\".");
             }
         } else {
-            super.exceptionCaught(context, event);
+            sessionHandler.exceptionCaught(event.getCause());
+            if(event.getChannel().isOpen()) {
+                event.getChannel().close();
+            }
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        GenericReceiver receiver;
+        receiver = AbstractReceiverTransport.getReceiver(event.getChannel());
+        if(receiver != null) {
+            receiver.unregister();
+        }
+        super.channelClosed(context, event);
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        GenericReceiver receiver;
+        receiver = AbstractReceiverTransport.getReceiver(event.getChannel());
+        if(receiver != null) {
+            receiver.writabilityChanged();
         }
+        super.channelInterestChanged(context, event);
+    }
+
+    protected SessionHandler getSessionHandler() {
+        return sessionHandler;
+    }
+
+    protected void registerReceiver(GenericReceiver receiver) throws IllegalStateException {
+        receiver.register();
     }
 
     private void handleHttpRequest(final ChannelHandlerContext context, MessageEvent event, HttpRequest request) throws Exception {
@@ -89,21 +198,38 @@ public abstract class AbstractWebSocketTransport extends AbstractReceiverTranspo
             request.setHeader(HttpHeaders.Names.SEC_WEBSOCKET_VERSION, "8");
         }
 
-        // Handshake
+        // Compression, only defined for the version 13
+        final PerMessageDeflateHandler deflateHandler;
+        if(perMessageDeflate != null && "13".equals(request.getHeader(HttpHeaders.Names.SEC_WEBSOCKET_VERSION))) {
+            deflateHandler = perMessageDeflate.negotiate(request.getHeaders(SEC_WEBSOCKET_EXTENSIONS), maxFramePayloadLength);
+        } else {
+            deflateHandler = null;
+        }
+
+        // Handshake, the frames may have the reserved bit of the compression if it was accepted
         String websocketUri = formatWebSocketLocation(event.getChannel(), request);
-        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(websocketUri, null, false);
+        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(websocketUri, null, deflateHandler != null,
+                maxFramePayloadLength);
 
+        final WebSocketServerHandshaker handshaker;
         handshaker = wsFactory.newHandshaker(request);
         if (handshaker == null) {
             wsFactory.sendUnsupportedWebSocketVersionResponse(context.getChannel());
         } else {
+            if(deflateHandler != null) {
+                extensionResponse = deflateHandler.getExtensionResponse();
+            }
             handshaker.handshake(context.getChannel(), request).addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
                     if (future.isSuccess()) {
                         context.getPipeline().remove(ServiceRouterHandler.class);
-                        context.getPipeline().remove(TransportRouterHandler.class);
                         context.getPipeline().remove(PreflightHandler.class);
+                        if(deflateHandler != null) {
+                            context.getPipeline().get(WebSocket13FrameDecoder.class).replace("sockjs-websocket-decoder",
+                                    new PerMessageDeflateFrameDecoder(handshaker.getMaxFramePayloadLength()));
+                            context.getPipeline().addBefore(context.getName(), "sockjs-permessage-deflate", deflateHandler);
+                        }
 
                         webSocketReady(future.getChannel());
                     }
@@ -113,13 +239,47 @@ public abstract class AbstractWebSocketTransport extends AbstractReceiverTranspo
     }
 
     private void handleWebSocketFrame(ChannelHandlerContext context, MessageEvent event, WebSocketFrame frame) throws Exception {
+        if (discarding) {
+            return;
+        }
+
         // Check for closing frame
         if (frame instanceof CloseWebSocketFrame) {
-            handshaker.close(context.getChannel(), (CloseWebSocketFrame) frame);
+            context.getChannel().write(frame).addListener(ChannelFutureListener.CLOSE);
             return;
         } else if (frame instanceof PingWebSocketFrame) {
             context.getChannel().write(new PongWebSocketFrame(frame.getBinaryData()));
             return;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return;
+        }
+
+        // Gather the fragments of a message, the decoder checks their order
+        try {
+            if (frame instanceof ContinuationWebSocketFrame) {
+                if (fragmentedMessage == null) {
+                    throw new UnsupportedOperationException("Continuation frame outside a fragmented message");
+                }
+                fragmentedMessage.append(frame.getBinaryData());
+                if (!frame.isFinalFragment()) {
+                    return;
+                }
+                frame = fragmentedMessage.toFrame();
+                fragmentedMessage = null;
+            } else if (!frame.isFinalFragment()) {
+                fragmentedMessage = new FragmentedMessage(frame, maxFramePayloadLength);
+                return;
+            }
+        } catch (TooLongFrameException e) {
+            fragmentedMessage = null;
+            discarding = true;
+            closeWebSocket(context.getChannel(), MESSAGE_TOO_BIG_STATUS, "Message too big");
+            return;
+        }
+
+        if (frame instanceof BinaryWebSocketFrame) {
+            binaryWebSocketFrameReceived(context, event, (BinaryWebSocketFrame) frame);
+            return;
         } else if (!(frame instanceof TextWebSocketFrame)) {
             throw new UnsupportedOperationException(String.format("%s frame types not supported", frame.getClass()
                     .getName()));
@@ -130,6 +290,24 @@ public abstract class AbstractWebSocketTransport extends AbstractReceiverTranspo
         textWebSocketFrameReceived(context, event, textWebSocketFrame);
     }
 
+    static void closeWebSocket(Channel channel, int status, String reason) {
+        channel.write(new CloseWebSocketFrame(status, reason)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void respondAndClose(Channel channel, HttpResponseStatus status, String message) {
+        ChannelBuffer buffer;
+        buffer = ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8);
+
+        DefaultHttpResponse response;
+        response = new DefaultHttpResponse(HTTP_1_1, status);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, AbstractTransport.CONTENT_TYPE_PLAIN);
+        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, buffer.readableBytes());
+        response.setHeader(HttpHeaders.Names.CONNECTION, Values.CLOSE);
+        response.setContent(buffer);
+
+        channel.write(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
     private String formatWebSocketLocation(Channel channel, HttpRequest request) {
         boolean isSslEnabled = channel.getPipeline().get(SslHandler.class) != null;
         return isSslEnabled ? "wss://" : "ws://" + request.getHeader(HttpHeaders.Names.HOST) + request.getUri();
@@ -0,0 +1,57 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Payload of a message received in several frames, gathered until its last
+ * frame arrives. The payloads of the frames are copied into a single buffer,
+ * bounded by the payload limit of the websocket.
+ */
+final class FragmentedMessage {
+
+    private static final int MIN_CAPACITY = 256;
+
+    private final WebSocketFrame firstFrame;
+    private final long           maxPayloadLength;
+    private final ChannelBuffer  payload;
+
+    /**
+     * @param firstFrame the text or binary frame starting the message
+     * @throws TooLongFrameException if the frame is already over the limit
+     */
+    FragmentedMessage(WebSocketFrame firstFrame, long maxPayloadLength) throws TooLongFrameException {
+        ChannelBuffer firstPayload = firstFrame.getBinaryData();
+        this.firstFrame = firstFrame;
+        this.maxPayloadLength = maxPayloadLength;
+        this.payload = ChannelBuffers.dynamicBuffer((int) Math.min(Math.max(2L * firstPayload.readableBytes(), MIN_CAPACITY),
+                maxPayloadLength));
+        append(firstPayload);
+    }
+
+    /**
+     * @throws TooLongFrameException if the message goes over the limit
+     */
+    void append(ChannelBuffer fragment) throws TooLongFrameException {
+        if((long) payload.readableBytes() + fragment.readableBytes() > maxPayloadLength) {
+            throw new TooLongFrameException("Max message length of " + maxPayloadLength + " has been exceeded.");
+        }
+        payload.writeBytes(fragment, fragment.readerIndex(), fragment.readableBytes());
+    }
+
+    /**
+     * @return the whole message in a single final frame, of the type and the
+     *         reserved bits of the first frame
+     */
+    WebSocketFrame toFrame() {
+        if(firstFrame instanceof TextWebSocketFrame) {
+            return new TextWebSocketFrame(true, firstFrame.getRsv(), payload);
+        }
+        return new BinaryWebSocketFrame(true, firstFrame.getRsv(), payload);
+    }
+
+}
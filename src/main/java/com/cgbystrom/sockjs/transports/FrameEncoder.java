@@ -0,0 +1,324 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+
+/**
+ * Encodes SockJS frames straight into {@link ChannelBuffer}s.
+ *
+ * An encoder is created once per transport with the bytes surrounding every
+ * frame on the wire, e.g. <code>data: </code> and <code>\r\n\r\n</code> for
+ * EventSource. Messages are JSON escaped and UTF-8 encoded in a single pass
+ * into a right-sized buffer, while the open, heartbeat and the close frames
+ * sent by the library itself are encoded once and duplicated on each write.
+ *
+ * Transports embedding the frame in a JavaScript string literal (jsonp and
+ * htmlfile) create a <code>quoted</code> encoder, which escapes the frame a
+ * second time. The output is byte for byte what escaping the frame with
+ * Jackson's <code>JsonStringEncoder</code> produced.
+ *
+ * The content of {@link PreparedMessage}s is not escaped again, it is spliced
+ * into a composite frame.
+ */
+public final class FrameEncoder {
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(CharsetUtil.US_ASCII);
+
+    /** First level escape for each ASCII character, 0 when it is written as is */
+    private static final byte[] ASCII_ESCAPES = new byte[128];
+    static {
+        for(int c = 0; c < 0x20; c++) {
+            ASCII_ESCAPES[c] = 'u';
+        }
+        ASCII_ESCAPES['\b'] = 'b';
+        ASCII_ESCAPES['\t'] = 't';
+        ASCII_ESCAPES['\n'] = 'n';
+        ASCII_ESCAPES['\f'] = 'f';
+        ASCII_ESCAPES['\r'] = 'r';
+        ASCII_ESCAPES['"'] = '"';
+        ASCII_ESCAPES['\\'] = '\\';
+    }
+
+    private static final int    NORMAL_CLOSURE_STATUS = 1000;
+    private static final String NORMAL_CLOSURE_REASON = "Normal closure";
+    private static final int    ANOTHER_CONNECTION_STATUS = 2010;
+    private static final String ANOTHER_CONNECTION_REASON = "Another connection still open";
+
+    private static final FrameEncoder PLAIN_ENCODER = new FrameEncoder("", "", false);
+    private static final FrameEncoder QUOTED_ENCODER = new FrameEncoder("", "", true);
+
+    private final byte[]        prefix;
+    private final byte[]        suffix;
+    private final boolean       quoted;
+    private final byte[]        asciiLengths;
+    private final ChannelBuffer openFrame;
+    private final ChannelBuffer heartbeatFrame;
+    private final ChannelBuffer normalClosureFrame;
+    private final ChannelBuffer anotherConnectionFrame;
+
+    /**
+     * @param prefix written before each frame
+     * @param suffix written after each frame
+     * @param quoted true if the frame is embedded in a JavaScript string
+     */
+    public FrameEncoder(String prefix, String suffix, boolean quoted) {
+        if(prefix == null) {
+            throw new NullPointerException("prefix");
+        }
+        if(suffix == null) {
+            throw new NullPointerException("suffix");
+        }
+
+        this.prefix = prefix.getBytes(CharsetUtil.UTF_8);
+        this.suffix = suffix.getBytes(CharsetUtil.UTF_8);
+        this.quoted = quoted;
+
+        this.asciiLengths = new byte[128];
+        for(int c = 0; c < 128; c++) {
+            switch(ASCII_ESCAPES[c]) {
+                case 0:    asciiLengths[c] = 1; break;
+                case 'u':  asciiLengths[c] = (byte) (quoted ? 7 : 6); break;
+                case '"':
+                case '\\': asciiLengths[c] = (byte) (quoted ? 4 : 2); break;
+                default:   asciiLengths[c] = (byte) (quoted ? 3 : 2); break;
+            }
+        }
+
+        this.openFrame = preEncode(ChannelBuffers.wrappedBuffer(encodeControlFrame('o')));
+        this.heartbeatFrame = preEncode(ChannelBuffers.wrappedBuffer(encodeControlFrame('h')));
+        this.normalClosureFrame = preEncode(encodeCloseFrame(NORMAL_CLOSURE_STATUS, NORMAL_CLOSURE_REASON));
+        this.anotherConnectionFrame = preEncode(encodeCloseFrame(ANOTHER_CONNECTION_STATUS, ANOTHER_CONNECTION_REASON));
+    }
+
+    /**
+     * @return the <code>o</code> frame
+     */
+    public ChannelBuffer encodeOpenFrame() {
+        return openFrame.duplicate();
+    }
+
+    /**
+     * @return the <code>h</code> frame
+     */
+    public ChannelBuffer encodeHeartbeatFrame() {
+        return heartbeatFrame.duplicate();
+    }
+
+    /**
+     * @return the <code>c[status,"reason"]</code> frame
+     */
+    public ChannelBuffer encodeCloseFrame(int status, String reason) {
+        if(normalClosureFrame != null && status == NORMAL_CLOSURE_STATUS && NORMAL_CLOSURE_REASON.equals(reason)) {
+            return normalClosureFrame.duplicate();
+        }
+        if(anotherConnectionFrame != null && status == ANOTHER_CONNECTION_STATUS && ANOTHER_CONNECTION_REASON.equals(reason)) {
+            return anotherConnectionFrame.duplicate();
+        }
+
+        byte[] statusBytes;
+        statusBytes = Integer.toString(status).getBytes(CharsetUtil.US_ASCII);
+
+        byte[] frame;
+        frame = new byte[prefix.length + 3 + statusBytes.length + 2 * quoteLength() + encodedLength(reason) + 1 + suffix.length];
+
+        int index;
+        index = put(frame, 0, prefix);
+        frame[index++] = 'c';
+        frame[index++] = '[';
+        index = put(frame, index, statusBytes);
+        frame[index++] = ',';
+        index = putQuote(frame, index);
+        index = encode(frame, index, reason);
+        index = putQuote(frame, index);
+        frame[index++] = ']';
+        put(frame, index, suffix);
+
+        return ChannelBuffers.wrappedBuffer(frame);
+    }
+
+    /**
+     * @return the <code>a["message",...]</code> frame
+     */
+    public ChannelBuffer encodeMessageFrame(PreparedMessage[] messages) {
+        int preparedCount = 0;
+
+        int length;
+        length = prefix.length + 2 + 1 + suffix.length;
+        for(PreparedMessage message : messages) {
+            if(message.isPrepared()) {
+                preparedCount++;
+            } else {
+                length += encodedLength(message.getMessage());
+            }
+        }
+        length += messages.length * 2 * quoteLength();
+        if(messages.length > 1) {
+            length += messages.length - 1;
+        }
+
+        byte[] frame;
+        frame = new byte[length];
+
+        ChannelBuffer[] parts;
+        parts = preparedCount > 0 ? new ChannelBuffer[2 * preparedCount + 1] : null;
+        int partCount = 0;
+        int partStart = 0;
+
+        int index;
+        index = put(frame, 0, prefix);
+        frame[index++] = 'a';
+        frame[index++] = '[';
+        for(int i = 0; i < messages.length; i++) {
+            if(i > 0) {
+                frame[index++] = ',';
+            }
+            index = putQuote(frame, index);
+            if(messages[i].isPrepared()) {
+                parts[partCount++] = ChannelBuffers.wrappedBuffer(frame, partStart, index - partStart);
+                parts[partCount++] = quoted ? messages[i].getQuotedContent() : messages[i].getContent();
+                partStart = index;
+            } else {
+                index = encode(frame, index, messages[i].getMessage());
+            }
+            index = putQuote(frame, index);
+        }
+        frame[index++] = ']';
+        put(frame, index, suffix);
+
+        if(parts == null) {
+            return ChannelBuffers.wrappedBuffer(frame);
+        }
+
+        parts[partCount] = ChannelBuffers.wrappedBuffer(frame, partStart, length - partStart);
+        return ChannelBuffers.wrappedBuffer(parts);
+    }
+
+    /**
+     * @param quoted true to escape the message again for a JavaScript string
+     * @return the read-only escaped message, without the surrounding quotes
+     */
+    public static ChannelBuffer escape(String message, boolean quoted) {
+        FrameEncoder encoder;
+        encoder = quoted ? QUOTED_ENCODER : PLAIN_ENCODER;
+
+        byte[] content;
+        content = new byte[encoder.encodedLength(message)];
+        encoder.encode(content, 0, message);
+
+        return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(content));
+    }
+
+    /**
+     * @return the number of bytes of the message once JSON escaped and UTF-8
+     *         encoded, the size the queues and the metrics count it for
+     */
+    public static int escapedLength(String message) {
+        return PLAIN_ENCODER.encodedLength(message);
+    }
+
+    private byte[] encodeControlFrame(char type) {
+        byte[] frame;
+        frame = new byte[prefix.length + 1 + suffix.length];
+        frame[put(frame, 0, prefix)] = (byte) type;
+        put(frame, prefix.length + 1, suffix);
+        return frame;
+    }
+
+    private int quoteLength() {
+        return quoted ? 2 : 1;
+    }
+
+    private int putQuote(byte[] frame, int index) {
+        if(quoted) {
+            frame[index++] = '\\';
+        }
+        frame[index++] = '"';
+        return index;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #encode(byte[], int, String)}
+     */
+    private int encodedLength(String value) {
+        int length = 0;
+        for(int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                length += asciiLengths[c];
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                length += 3;
+            } else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // unpaired surrogate, replaced like String.getBytes() does
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    private int encode(byte[] frame, int index, String value) {
+        for(int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                byte escape = ASCII_ESCAPES[c];
+                if(escape == 0) {
+                    frame[index++] = (byte) c;
+                } else {
+                    index = putEscaped(frame, index, '\\');
+                    index = putEscaped(frame, index, escape);
+                    if(escape == 'u') {
+                        frame[index++] = '0';
+                        frame[index++] = '0';
+                        frame[index++] = HEX_DIGITS[c >> 4];
+                        frame[index++] = HEX_DIGITS[c & 0xF];
+                    }
+                }
+            } else if(c < 0x800) {
+                frame[index++] = (byte) (0xC0 | (c >> 6));
+                frame[index++] = (byte) (0x80 | (c & 0x3F));
+            } else if(c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                frame[index++] = (byte) (0xE0 | (c >> 12));
+                frame[index++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[index++] = (byte) (0x80 | (c & 0x3F));
+            } else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                frame[index++] = (byte) (0xF0 | (codePoint >> 18));
+                frame[index++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                frame[index++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                frame[index++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                frame[index++] = '?';
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes a byte of a first level escape sequence, escaping it again for
+     * quoted encoders.
+     */
+    private int putEscaped(byte[] frame, int index, int b) {
+        if(quoted && (b == '\\' || b == '"')) {
+            frame[index++] = '\\';
+        }
+        frame[index++] = (byte) b;
+        return index;
+    }
+
+    private static int put(byte[] frame, int index, byte[] bytes) {
+        System.arraycopy(bytes, 0, frame, index, bytes.length);
+        return index + bytes.length;
+    }
+
+    private static ChannelBuffer preEncode(ChannelBuffer frame) {
+        return ChannelBuffers.unmodifiableBuffer(frame);
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+
+/**
+ * Compressor of the chunks of a streaming response, created by
+ * {@link StreamingCompression}. Each chunk is sync flushed, so that the
+ * client can decompress a frame as soon as it receives its chunk.
+ *
+ * An encoder is not thread safe, the receiver of the response uses it under
+ * its lock.
+ */
+public final class GzipChunkEncoder {
+
+    private final EncoderEmbedder<ChannelBuffer> encoder;
+
+    GzipChunkEncoder(int compressionLevel, int windowBits) {
+        encoder = new EncoderEmbedder<ChannelBuffer>(TransportUtils.newZlibEncoder(ZlibWrapper.GZIP, compressionLevel, windowBits));
+    }
+
+    /**
+     * @param content left untouched, it may be shared with other responses
+     * @return the compressed content
+     */
+    public ChannelBuffer encode(ChannelBuffer content) {
+        encoder.offer(content.duplicate());
+        return encoder.poll();
+    }
+
+    /**
+     * @return the end of the compressed stream, to send before the last chunk
+     */
+    public ChannelBuffer finish() {
+        encoder.finish();
+
+        ChannelBuffer trailer;
+        trailer = ChannelBuffers.EMPTY_BUFFER;
+        ChannelBuffer product;
+        while((product = encoder.poll()) != null) {
+            trailer = ChannelBuffers.wrappedBuffer(trailer, product);
+        }
+        return trailer;
+    }
+
+}
@@ -1,22 +1,17 @@
 package com.cgbystrom.sockjs.transports;
 
-import java.util.List;
+import java.util.Arrays;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.jboss.netty.util.CharsetUtil;
 
+import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
-import com.fasterxml.jackson.core.io.JsonStringEncoder;
 
 public class HtmlFileTransport extends AbstractStreamingTransport {
 
@@ -33,73 +28,50 @@ public class HtmlFileTransport extends AbstractStreamingTransport {
             "    function p(d) {c.message(d);};\n" +
             "    window.onload = function() {c.stop();};\n" +
             "  </script>").getBytes(CharsetUtil.UTF_8);
-    private static final byte[] PREFIX = "<script>\np(\"".getBytes(CharsetUtil.UTF_8);
-    private static final byte[] POSTFIX = "\");\n</script>\r\n".getBytes(CharsetUtil.UTF_8);
 
-    private final int responseSizeLimit;
-
-    public HtmlFileTransport(SessionHandler sessionHandler, int responseSizeLimit) {
-        super(sessionHandler);
-        this.responseSizeLimit = responseSizeLimit;
+    // Safari needs at least 1024 bytes to parse the website. Relevant:
+    //   http://code.google.com/p/browsersec/wiki/Part2#Survey_of_content_sniffing_behaviors
+    private static final int HEADER_LENGTH = 1024 + 20;
+
+    // Opera needs one more new line at the start.
+    private static final byte[] PADDING;
+    static {
+        PADDING = new byte[HEADER_LENGTH + 4];
+        Arrays.fill(PADDING, (byte) ' ');
+        PADDING[HEADER_LENGTH] = '\r';
+        PADDING[HEADER_LENGTH + 1] = '\n';
+        PADDING[HEADER_LENGTH + 2] = '\r';
+        PADDING[HEADER_LENGTH + 3] = '\n';
     }
 
-    @Override
-    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        super.messageReceived(context, event);
-
-        HttpRequest request = (HttpRequest) event.getMessage();
-        QueryStringDecoder requestUriDecoder = new QueryStringDecoder(request.getUri());
+    static final FrameEncoder FRAME_ENCODER = new FrameEncoder("<script>\np(\"", "\");\n</script>\r\n", true);
 
-        List<String> c = requestUriDecoder.getParameters().get("c");
-        if (c == null) {
-            respondAndClose(event.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, "\"callback\" parameter required.");
+    @Override
+    public void handle(Channel channel, HttpRequest request, Service service, SessionHandler sessionHandler) throws Exception {
+        String callback = TransportUtils.getCallbackParameter(request.getUri());
+        if (callback == null) {
+            respondAndClose(channel, request, service, HttpResponseStatus.INTERNAL_SERVER_ERROR, "\"callback\" parameter required.");
             return;
         }
 
-        String callback = c.get(0);
+        byte[] callbackBytes = callback.getBytes(CharsetUtil.UTF_8);
+        int padding = Math.max(0, HEADER_LENGTH - HEADER_PART1.length - callbackBytes.length - HEADER_PART2.length);
 
-        ChannelBuffer header = ChannelBuffers.wrappedBuffer(
-                HEADER_PART1,
-                callback.getBytes(CharsetUtil.UTF_8),
-                HEADER_PART2);
-
-        // Safari needs at least 1024 bytes to parse the website. Relevant:
-        //   http://code.google.com/p/browsersec/wiki/Part2#Survey_of_content_sniffing_behaviors
-        int spaces = 1024 - header.readableBytes();
-        ChannelBuffer paddedHeader = ChannelBuffers.buffer(1024 + 50);
-
-        paddedHeader.writeBytes(header);
-        for (int i = 0; i < spaces + 20; i++) {
-            paddedHeader.writeByte(' ');
-        }
-        paddedHeader.writeByte('\r');
-        paddedHeader.writeByte('\n');
-        // Opera needs one more new line at the start.
-        paddedHeader.writeByte('\r');
-        paddedHeader.writeByte('\n');
+        ChannelBuffer paddedHeader = ChannelBuffers.wrappedBuffer(
+                ChannelBuffers.wrappedBuffer(HEADER_PART1),
+                ChannelBuffers.wrappedBuffer(callbackBytes),
+                ChannelBuffers.wrappedBuffer(HEADER_PART2),
+                ChannelBuffers.wrappedBuffer(PADDING, HEADER_LENGTH - padding, padding + 4));
 
         HttpResponse response;
-        response = createResponse(context.getChannel(), CONTENT_TYPE_HTML);
+        response = createResponse(request, service, CONTENT_TYPE_HTML);
 
-        Channels.write(context, Channels.succeededFuture(event.getChannel()), response);
-        Channels.write(context, Channels.succeededFuture(event.getChannel()), new DefaultHttpChunk(paddedHeader));
+        GzipChunkEncoder encoder;
+        encoder = createEncoder(request, service, response);
 
-        registerReceiver(new HtmlFileResponseReceiver(context.getChannel(), responseSizeLimit));
-    }
-
-    private class HtmlFileResponseReceiver extends AbstractStreamingReceiver {
-
-        public HtmlFileResponseReceiver(Channel channel, int responseSizeLimit) {
-            super(channel, responseSizeLimit);
-        }
-
-        @Override
-        protected ChannelBuffer formatFrame(String frame) {
-            return ChannelBuffers.wrappedBuffer(
-                    PREFIX,
-                    new JsonStringEncoder().quoteAsUTF8(frame),
-                    POSTFIX);
-        }
+        channel.write(response);
+        writeChunk(channel, encoder, paddedHeader);
 
+        new StreamingReceiver(sessionHandler, channel, TransportType.HTMLFILE, service.getResponseSizeLimit(), FRAME_ENCODER, isKeepAliveEnabled(request), encoder).register();
     }
 }
\ No newline at end of file
@@ -0,0 +1,418 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+import com.cgbystrom.sockjs.handlers.SessionHandler;
+
+/**
+ * Incremental decoder of the body of a send request, a JSON array of strings
+ * or a single JSON string, form encoded in the <code>d</code> parameter or
+ * not. The body is read from its buffers as they arrive and each message is
+ * passed to the session as soon as its closing quote is read, only the
+ * message being decoded is held in memory. The runs of ASCII characters
+ * without escapes, the bulk of most messages, are copied in one go.
+ *
+ * Only strings are accepted in the array, as sent by the SockJS clients.
+ * Malformed UTF-8 sequences are replaced, as by
+ * {@link String#String(byte[], String)}. The size of a message is the
+ * number of bytes of its escaped content in the body once form decoded,
+ * the unit of {@link com.cgbystrom.sockjs.PreparedMessage#getSize()}.
+ */
+final class MessageArrayDecoder {
+
+    private enum State {
+        /** Before the array or the string */
+        START,
+        /** After the opening bracket */
+        ARRAY_START,
+        /** After a comma */
+        VALUE,
+        STRING,
+        ESCAPE,
+        UNICODE_ESCAPE,
+        /** After a string of the array */
+        AFTER_VALUE,
+        /** After the array or the string, only whitespace may follow */
+        END
+    }
+
+    private enum FormState {
+        NAME, DATA, SKIPPED
+    }
+
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private static final int INITIAL_MESSAGE_CAPACITY = 64;
+
+    private final SessionHandler sessionHandler;
+    private final boolean        form;
+    private final int            maxMessageSize;
+    private final int            maxRequestSize;
+
+    /** Characters of the message being decoded */
+    private char[]               message = new char[INITIAL_MESSAGE_CAPACITY];
+    private int                  messageLength;
+    /** Bytes of the message being decoded, never fewer than its characters */
+    private int                  messageSize;
+    private State                state = State.START;
+    private boolean              array;
+    private long                 requestSize;
+
+    /** Continuation bytes expected by the UTF-8 sequence being decoded */
+    private int                  utf8Remaining;
+    private int                  codePoint;
+    private int                  minCodePoint;
+    private int                  unicodeDigits;
+
+    private FormState            formState = FormState.NAME;
+    private int                  nameLength;
+    private boolean              dataName;
+    private boolean              dataFound;
+    /** Hexadecimal digits of the percent escape being decoded, 0 if none */
+    private int                  percentDigits;
+    private int                  percentValue;
+
+    /**
+     * @param form true if the body is form encoded
+     * @param maxMessageSize bytes of a message at most
+     * @param maxRequestSize bytes of the body at most
+     */
+    MessageArrayDecoder(SessionHandler sessionHandler, boolean form, int maxMessageSize, int maxRequestSize) {
+        if(sessionHandler == null) {
+            throw new NullPointerException("sessionHandler");
+        }
+        this.sessionHandler = sessionHandler;
+        this.form = form;
+        this.maxMessageSize = maxMessageSize;
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Decodes the next part of the body, without consuming it.
+     *
+     * @throws TooLongFrameException if the body or a message is over its
+     *         limit, the messages decoded so far were passed to the session
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    public void decode(ChannelBuffer content) throws TooLongFrameException {
+        int length = content.readableBytes();
+        requestSize += length;
+        if(requestSize > maxRequestSize) {
+            throw new TooLongFrameException("Request larger than " + maxRequestSize + " bytes.");
+        }
+
+        int index = content.readerIndex();
+        int end = index + length;
+        if(form) {
+            for(; index < end; index++) {
+                decodeForm(content.getByte(index) & 0xFF);
+            }
+        } else {
+            while(index < end) {
+                if(state == State.STRING && utf8Remaining == 0) {
+                    index = decodeAscii(content, index, end);
+                    if(index == end) {
+                        break;
+                    }
+                }
+                countAndDecodeJson(content.getByte(index++) & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * @return false if the body holds no payload
+     * @throws IllegalArgumentException if the body ends within the payload
+     */
+    public boolean finish() {
+        if(state == State.START && percentDigits == 0) {
+            return false;
+        }
+        if(state != State.END || percentDigits != 0) {
+            throw new IllegalArgumentException("Unexpected end of content");
+        }
+        return true;
+    }
+
+    private void decodeForm(int b) throws TooLongFrameException {
+        switch(formState) {
+        case NAME:
+            if(b == '=') {
+                if(dataName && nameLength == 1 && !dataFound) {
+                    dataFound = true;
+                    formState = FormState.DATA;
+                } else {
+                    formState = FormState.SKIPPED;
+                }
+                nameLength = 0;
+            } else if(b == '&' || b == ';') {
+                nameLength = 0;
+            } else {
+                dataName = nameLength == 0 && b == 'd';
+                nameLength++;
+            }
+            break;
+
+        case SKIPPED:
+            if(b == '&' || b == ';') {
+                formState = FormState.NAME;
+            }
+            break;
+
+        default:
+            if(percentDigits > 0) {
+                int digit = Character.digit(b, 16);
+                if(digit < 0) {
+                    throw new IllegalArgumentException("Invalid hex digit in the payload: " + (char) b);
+                }
+                percentValue = percentValue << 4 | digit;
+                if(++percentDigits == 3) {
+                    percentDigits = 0;
+                    countAndDecodeJson(percentValue);
+                }
+            } else if(b == '%') {
+                percentDigits = 1;
+                percentValue = 0;
+            } else if(b == '&' || b == ';') {
+                formState = FormState.NAME;
+            } else {
+                countAndDecodeJson(b == '+' ? ' ' : b);
+            }
+        }
+    }
+
+    private void countAndDecodeJson(int b) throws TooLongFrameException {
+        // all the bytes of a string but its closing quote
+        if(state == State.STRING ? b != '"' || utf8Remaining > 0 : state == State.ESCAPE || state == State.UNICODE_ESCAPE) {
+            countMessageBytes(1);
+        }
+        decodeJson(b);
+    }
+
+    private void decodeJson(int b) {
+        switch(state) {
+        case STRING:
+            if(utf8Remaining > 0) {
+                continueUtf8(b);
+            } else if(b == '"') {
+                String decoded = new String(message, 0, messageLength);
+                messageLength = 0;
+                messageSize = 0;
+                state = array ? State.AFTER_VALUE : State.END;
+                sessionHandler.messageReceived(decoded);
+            } else if(b == '\\') {
+                state = State.ESCAPE;
+            } else if(b < 0x20) {
+                throw new IllegalArgumentException("Illegal control character in a message: " + b);
+            } else if(b < 0x80) {
+                append((char) b);
+            } else {
+                startUtf8(b);
+            }
+            break;
+
+        case ESCAPE:
+            state = State.STRING;
+            switch(b) {
+            case '"':
+            case '\\':
+            case '/':
+                append((char) b);
+                break;
+            case 'b':
+                append('\b');
+                break;
+            case 'f':
+                append('\f');
+                break;
+            case 'n':
+                append('\n');
+                break;
+            case 'r':
+                append('\r');
+                break;
+            case 't':
+                append('\t');
+                break;
+            case 'u':
+                state = State.UNICODE_ESCAPE;
+                unicodeDigits = 0;
+                codePoint = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unrecognized escape in a message: \\" + (char) b);
+            }
+            break;
+
+        case UNICODE_ESCAPE:
+            int digit = Character.digit(b, 16);
+            if(digit < 0) {
+                throw new IllegalArgumentException("Invalid hex digit in a message: " + (char) b);
+            }
+            codePoint = codePoint << 4 | digit;
+            if(++unicodeDigits == 4) {
+                // the halves of a surrogate pair are escaped one by one
+                state = State.STRING;
+                append((char) codePoint);
+            }
+            break;
+
+        default:
+            decodeStructure(b);
+        }
+    }
+
+    private void decodeStructure(int b) {
+        if(b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+            return;
+        }
+
+        switch(state) {
+        case START:
+            if(b == '[') {
+                array = true;
+                state = State.ARRAY_START;
+                return;
+            }
+            if(b == '"') {
+                state = State.STRING;
+                return;
+            }
+            break;
+
+        case ARRAY_START:
+            if(b == '"') {
+                state = State.STRING;
+                return;
+            }
+            if(b == ']') {
+                state = State.END;
+                return;
+            }
+            break;
+
+        case VALUE:
+            if(b == '"') {
+                state = State.STRING;
+                return;
+            }
+            break;
+
+        case AFTER_VALUE:
+            if(b == ',') {
+                state = State.VALUE;
+                return;
+            }
+            if(b == ']') {
+                state = State.END;
+                return;
+            }
+            break;
+
+        default:
+            break;
+        }
+        throw new IllegalArgumentException("Unexpected character in the payload: " + (char) b);
+    }
+
+    private void startUtf8(int b) {
+        if(b >= 0xC2 && b <= 0xDF) {
+            utf8Remaining = 1;
+            codePoint = b & 0x1F;
+            minCodePoint = 0x80;
+        } else if(b >= 0xE0 && b <= 0xEF) {
+            utf8Remaining = 2;
+            codePoint = b & 0x0F;
+            minCodePoint = 0x800;
+        } else if(b >= 0xF0 && b <= 0xF4) {
+            utf8Remaining = 3;
+            codePoint = b & 0x07;
+            minCodePoint = 0x10000;
+        } else {
+            append(REPLACEMENT_CHARACTER);
+        }
+    }
+
+    private void continueUtf8(int b) {
+        if((b & 0xC0) != 0x80) {
+            // the sequence is cut short, the byte starts the next character
+            utf8Remaining = 0;
+            append(REPLACEMENT_CHARACTER);
+            decodeJson(b);
+            return;
+        }
+
+        codePoint = codePoint << 6 | b & 0x3F;
+        if(--utf8Remaining > 0) {
+            return;
+        }
+        if(codePoint < minCodePoint || codePoint > Character.MAX_CODE_POINT
+                || codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            append(REPLACEMENT_CHARACTER);
+        } else if(codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            int supplementary = codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            append((char) (Character.MIN_HIGH_SURROGATE + (supplementary >>> 10)));
+            append((char) (Character.MIN_LOW_SURROGATE + (supplementary & 0x3FF)));
+        } else {
+            append((char) codePoint);
+        }
+    }
+
+    /**
+     * Copies the characters of a string up to the first one which is not
+     * printable ASCII, a quote or a backslash.
+     *
+     * @return the index of the first byte left
+     */
+    private int decodeAscii(ChannelBuffer content, int index, int end) throws TooLongFrameException {
+        int runEnd = index;
+        byte b;
+        // the bytes above 0x7F are negative
+        while(runEnd < end && (b = content.getByte(runEnd)) >= 0x20 && b != '"' && b != '\\') {
+            runEnd++;
+        }
+
+        int count = runEnd - index;
+        countMessageBytes(count);
+        ensureCapacity(count);
+        if(content.hasArray()) {
+            byte[] array = content.array();
+            int offset = content.arrayOffset();
+            for(int i = index; i < runEnd; i++) {
+                message[messageLength++] = (char) array[offset + i];
+            }
+        } else {
+            for(int i = index; i < runEnd; i++) {
+                message[messageLength++] = (char) content.getByte(i);
+            }
+        }
+        return runEnd;
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        message[messageLength++] = c;
+    }
+
+    private void countMessageBytes(int count) throws TooLongFrameException {
+        messageSize += count;
+        if(messageSize > maxMessageSize) {
+            throw new TooLongFrameException("Message larger than " + maxMessageSize + " bytes.");
+        }
+    }
+
+    /**
+     * The message is bounded by {@link #countMessageBytes(int)}, as it has
+     * fewer characters than bytes.
+     */
+    private void ensureCapacity(int count) {
+        int length = messageLength + count;
+        if(length > message.length) {
+            message = Arrays.copyOf(message, Math.max(length, message.length * 2));
+        }
+    }
+
+}
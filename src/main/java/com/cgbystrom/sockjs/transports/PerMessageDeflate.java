@@ -0,0 +1,193 @@
+package com.cgbystrom.sockjs.transports;
+
+/**
+ * Settings of the permessage-deflate extension of the websockets (RFC 7692),
+ * shared by the websockets of a service, and negotiation of the extension
+ * from the offers of a handshake.
+ *
+ * With the context takeover the compressor of a websocket keeps its window
+ * from a message to the next one, which compresses similar messages much
+ * better, but keeps about 2^(windowBits + 3) bytes, and at least 20 KB, per
+ * websocket once it compressed a message, and about 40 KB more once it
+ * received a compressed message. Without it, the messages are compressed
+ * by a compressor shared by the websockets of a thread, and the client is
+ * asked not to keep its window either.
+ */
+public final class PerMessageDeflate {
+
+    static final String EXTENSION = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    /** Smallest window of the compressor, zlib does not write raw deflate with 8 bits */
+    public static final int MIN_WINDOW_BITS = 9;
+
+    public static final int MAX_WINDOW_BITS = 15;
+
+    private final int     compressionLevel;
+    private final int     windowBits;
+    private final boolean contextTakeover;
+    private final int     minSize;
+
+    /**
+     * @param compressionLevel from 0 to 9, as for {@link java.util.zip.Deflater}
+     * @param windowBits size of the window of the compressors with the context
+     *        takeover, and the largest window the clients are asked to use, from
+     *        {@link #MIN_WINDOW_BITS} to {@link #MAX_WINDOW_BITS}
+     * @param contextTakeover true to keep the windows from a message to the next one
+     * @param minSize bytes below which the messages are sent uncompressed
+     */
+    public PerMessageDeflate(int compressionLevel, int windowBits, boolean contextTakeover, int minSize) {
+        if(compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+        }
+        if(windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("windowBits must be between " + MIN_WINDOW_BITS + " and " + MAX_WINDOW_BITS);
+        }
+        if(minSize < 1) {
+            throw new IllegalArgumentException("minSize must be positive");
+        }
+        this.compressionLevel = compressionLevel;
+        this.windowBits = windowBits;
+        this.contextTakeover = contextTakeover;
+        this.minSize = minSize;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getWindowBits() {
+        return windowBits;
+    }
+
+    public boolean isContextTakeover() {
+        return contextTakeover;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Accepts the first offer of the extension these settings can honour.
+     *
+     * @param offers the Sec-WebSocket-Extensions headers of the handshake request
+     * @param maxPayloadLength bytes of a received message at most, once
+     *        decompressed
+     * @return the handler of the accepted offer, null if none was accepted
+     */
+    PerMessageDeflateHandler negotiate(Iterable<String> offers, long maxPayloadLength) {
+        for(String header : offers) {
+            for(String offer : header.split(",")) {
+                PerMessageDeflateHandler handler;
+                handler = accept(offer.split(";"), maxPayloadLength);
+                if(handler != null) {
+                    return handler;
+                }
+            }
+        }
+        return null;
+    }
+
+    private PerMessageDeflateHandler accept(String[] offer, long maxPayloadLength) {
+        if(!offer[0].trim().equalsIgnoreCase(EXTENSION)) {
+            return null;
+        }
+
+        boolean serverNoContextTakeover = !contextTakeover;
+        boolean clientNoContextTakeover = !contextTakeover;
+        int serverWindowBits = windowBits;
+        int clientWindowBits = 0;
+        boolean serverWindowOffered = false;
+        boolean clientWindowOffered = false;
+        for(int i = 1; i < offer.length; i++) {
+            String parameter = offer[i].trim();
+            String value = null;
+            int separator = parameter.indexOf('=');
+            if(separator >= 0) {
+                value = unquote(parameter.substring(separator + 1).trim());
+                parameter = parameter.substring(0, separator).trim();
+            }
+
+            if(parameter.equalsIgnoreCase(SERVER_NO_CONTEXT_TAKEOVER) && value == null) {
+                serverNoContextTakeover = true;
+            } else if(parameter.equalsIgnoreCase(CLIENT_NO_CONTEXT_TAKEOVER) && value == null) {
+                clientNoContextTakeover = true;
+            } else if(parameter.equalsIgnoreCase(SERVER_MAX_WINDOW_BITS) && !serverWindowOffered) {
+                int bits = parseWindowBits(value);
+                if(bits < MIN_WINDOW_BITS) {
+                    return null;
+                }
+                serverWindowBits = Math.min(serverWindowBits, bits);
+                serverWindowOffered = true;
+            } else if(parameter.equalsIgnoreCase(CLIENT_MAX_WINDOW_BITS) && !clientWindowOffered) {
+                int bits = value == null ? MAX_WINDOW_BITS : parseWindowBits(value);
+                if(bits < 0) {
+                    return null;
+                }
+                clientWindowBits = Math.min(windowBits, bits);
+                clientWindowOffered = true;
+            } else {
+                return null;
+            }
+        }
+        // The shared compressors always use the largest window
+        if(serverNoContextTakeover && serverWindowBits < MAX_WINDOW_BITS && serverWindowOffered) {
+            return null;
+        }
+
+        StringBuilder response;
+        response = new StringBuilder(EXTENSION);
+        if(serverNoContextTakeover) {
+            response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if(clientNoContextTakeover) {
+            response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        if(serverWindowOffered) {
+            response.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverWindowBits);
+        }
+        if(clientWindowOffered && clientWindowBits < MAX_WINDOW_BITS) {
+            response.append("; ").append(CLIENT_MAX_WINDOW_BITS).append('=').append(clientWindowBits);
+        }
+
+        return new PerMessageDeflateHandler(response.toString(), compressionLevel, serverWindowBits,
+                serverNoContextTakeover, clientNoContextTakeover, minSize, maxPayloadLength);
+    }
+
+    /**
+     * @return the bits of a window parameter, -1 if it is not between 8 and 15
+     */
+    private static int parseWindowBits(String value) {
+        if(value == null || value.length() == 0 || value.length() > 2) {
+            return -1;
+        }
+        int bits = 0;
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            bits = bits * 10 + (c - '0');
+        }
+        return bits >= 8 && bits <= MAX_WINDOW_BITS ? bits : -1;
+    }
+
+    private static String unquote(String value) {
+        if(value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "PerMessageDeflate [compressionLevel=" + compressionLevel + ", windowBits=" + windowBits
+                + ", contextTakeover=" + contextTakeover + ", minSize=" + minSize + "]";
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+/**
+ * Decoder of the frames of a websocket client once permessage-deflate is
+ * negotiated, in place of the decoder of Netty which checks the UTF-8 of
+ * the text frames before they can be decompressed. The UTF-8 of the text
+ * frames is not checked, the messages are decoded as the other transports
+ * decode their bodies.
+ */
+final class PerMessageDeflateFrameDecoder extends FrameDecoder {
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /** RSV1 bit, the only one permessage-deflate defines */
+    private static final int RSV1 = 0x4;
+
+    private static final int MAX_CONTROL_PAYLOAD_LENGTH = 125;
+
+    private final long maxFramePayloadLength;
+
+    /** True between the first and the last frame of a fragmented message */
+    private boolean fragmented;
+
+    PerMessageDeflateFrameDecoder(long maxFramePayloadLength) {
+        this.maxFramePayloadLength = Math.min(maxFramePayloadLength, Integer.MAX_VALUE);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext context, Channel channel, ChannelBuffer buffer) throws Exception {
+        if(buffer.readableBytes() < 2) {
+            return null;
+        }
+
+        int index = buffer.readerIndex();
+        int b0 = buffer.getUnsignedByte(index);
+        int b1 = buffer.getUnsignedByte(index + 1);
+        boolean finalFragment = (b0 & 0x80) != 0;
+        int rsv = (b0 & 0x70) >> 4;
+        int opcode = b0 & 0x0F;
+        if((b1 & 0x80) == 0) {
+            throw new CorruptedFrameException("unmasked client to server frame");
+        }
+
+        int headerLength = 2;
+        long payloadLength = b1 & 0x7F;
+        if(payloadLength == 126) {
+            if(buffer.readableBytes() < 4) {
+                return null;
+            }
+            payloadLength = buffer.getUnsignedShort(index + 2);
+            headerLength = 4;
+        } else if(payloadLength == 127) {
+            if(buffer.readableBytes() < 10) {
+                return null;
+            }
+            payloadLength = buffer.getLong(index + 2);
+            headerLength = 10;
+        }
+        if(payloadLength < 0 || payloadLength > maxFramePayloadLength) {
+            throw new TooLongFrameException("Max frame length of " + maxFramePayloadLength + " has been exceeded.");
+        }
+
+        checkFrame(finalFragment, rsv, opcode, payloadLength);
+
+        int length = (int) payloadLength;
+        if(buffer.readableBytes() < headerLength + 4 + length) {
+            return null;
+        }
+        byte[] mask = new byte[4];
+        buffer.getBytes(index + headerLength, mask);
+        buffer.skipBytes(headerLength + 4);
+
+        ChannelBuffer payload;
+        payload = ChannelBuffers.buffer(length);
+        buffer.readBytes(payload);
+        byte[] bytes = payload.array();
+        for(int i = 0; i < length; i++) {
+            bytes[i] ^= mask[i & 3];
+        }
+
+        if(opcode == OPCODE_TEXT || opcode == OPCODE_BINARY || opcode == OPCODE_CONTINUATION) {
+            fragmented = !finalFragment;
+        }
+        switch(opcode) {
+        case OPCODE_TEXT:
+            return new TextWebSocketFrame(finalFragment, rsv, payload);
+        case OPCODE_BINARY:
+            return new BinaryWebSocketFrame(finalFragment, rsv, payload);
+        case OPCODE_CONTINUATION:
+            return new ContinuationWebSocketFrame(finalFragment, rsv, payload);
+        case OPCODE_CLOSE:
+            return new CloseWebSocketFrame(finalFragment, rsv, payload);
+        case OPCODE_PING:
+            return new PingWebSocketFrame(finalFragment, rsv, payload);
+        default:
+            return new PongWebSocketFrame(finalFragment, rsv, payload);
+        }
+    }
+
+    private void checkFrame(boolean finalFragment, int rsv, int opcode, long payloadLength) throws CorruptedFrameException {
+        if(opcode == OPCODE_CLOSE || opcode == OPCODE_PING || opcode == OPCODE_PONG) {
+            if(!finalFragment) {
+                throw new CorruptedFrameException("fragmented control frame");
+            }
+            if(payloadLength > MAX_CONTROL_PAYLOAD_LENGTH) {
+                throw new CorruptedFrameException("control frame with payload length > 125 octets");
+            }
+            if(rsv != 0) {
+                throw new CorruptedFrameException("RSV != 0 on a control frame");
+            }
+        } else if(opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+            if(fragmented) {
+                throw new CorruptedFrameException("received non-continuation data frame while inside fragmented message");
+            }
+            if((rsv & ~RSV1) != 0) {
+                throw new CorruptedFrameException("RSV other than RSV1 set: " + rsv);
+            }
+        } else if(opcode == OPCODE_CONTINUATION) {
+            if(!fragmented) {
+                throw new CorruptedFrameException("received continuation data frame outside fragmented message");
+            }
+            if(rsv != 0) {
+                throw new CorruptedFrameException("RSV != 0 on a continuation frame");
+            }
+        } else {
+            throw new CorruptedFrameException("reserved opcode " + opcode);
+        }
+    }
+
+}
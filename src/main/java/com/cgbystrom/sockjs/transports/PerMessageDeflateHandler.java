@@ -0,0 +1,289 @@
+package com.cgbystrom.sockjs.transports;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Compresses the messages written to a websocket and decompresses the
+ * compressed messages it receives, as negotiated by
+ * {@link PerMessageDeflate}. Added in front of the transport once the
+ * handshake is done.
+ *
+ * With the context takeover a message is compressed with a sync flush by
+ * the zlib encoder of the websocket, as the deflater of Java 6 cannot sync
+ * flush, and the 4 bytes of the empty block ending the flush are dropped.
+ * Without it the shared deflater is finished and reset for each message,
+ * the message then ends with a final block and a 0 byte standing for the
+ * empty block, as allowed by section 7.2.3.4 of the RFC.
+ *
+ * Only the first frame of a compressed message has the RSV1 bit, the
+ * payloads of its frames are gathered and decompressed with its last one.
+ * A received message is refused, closing the websocket with 1009, once
+ * gathered or decompressed beyond the payload limit of the frames, so that
+ * a small frame cannot inflate without bound.
+ */
+final class PerMessageDeflateHandler extends SimpleChannelHandler {
+
+    /** RSV1 bit of the frames, as given by {@link WebSocketFrame#getRsv()} */
+    private static final int RSV1 = 0x4;
+
+    /** Empty block ending the sync flush, dropped from the compressed messages */
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Deflaters by compression level */
+    private static final ThreadLocal<Deflater[]> SHARED_DEFLATERS = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[10];
+        }
+    };
+
+    private static final ThreadLocal<Inflater> SHARED_INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private final String  extensionResponse;
+    private final int     compressionLevel;
+    private final int     windowBits;
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    private final int     minSize;
+    private final long    maxPayloadLength;
+
+    /** Compressor of the context takeover, created by the first compressed message */
+    private EncoderEmbedder<ChannelBuffer> encoder;
+    /** Decompressor of the context takeover of the client, only used by the I/O thread */
+    private Inflater                       inflater;
+    /** Compressed message whose last frame is not received yet, only used by the I/O thread */
+    private FragmentedMessage              compressedMessage;
+    /** True once the websocket is closed for a message too big, the frames still received are dropped */
+    private boolean                        discarding;
+
+    PerMessageDeflateHandler(String extensionResponse, int compressionLevel, int windowBits,
+                             boolean serverNoContextTakeover, boolean clientNoContextTakeover, int minSize,
+                             long maxPayloadLength) {
+        this.extensionResponse = extensionResponse;
+        this.compressionLevel = compressionLevel;
+        this.windowBits = windowBits;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.minSize = minSize;
+        this.maxPayloadLength = Math.min(maxPayloadLength, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * @return the Sec-WebSocket-Extensions header of the handshake response
+     */
+    String getExtensionResponse() {
+        return extensionResponse;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        if(discarding) {
+            return;
+        }
+
+        Object message = event.getMessage();
+        WebSocketFrame frame;
+        ChannelBuffer payload;
+        try {
+            if(message instanceof ContinuationWebSocketFrame && compressedMessage != null) {
+                frame = (WebSocketFrame) message;
+                compressedMessage.append(frame.getBinaryData());
+                if(!frame.isFinalFragment()) {
+                    return;
+                }
+                frame = compressedMessage.toFrame();
+                compressedMessage = null;
+            } else if(!(message instanceof TextWebSocketFrame || message instanceof BinaryWebSocketFrame)
+                    || (((WebSocketFrame) message).getRsv() & RSV1) == 0) {
+                // the continuation frames of an uncompressed message are gathered by the transport
+                context.sendUpstream(event);
+                return;
+            } else {
+                frame = (WebSocketFrame) message;
+                if(!frame.isFinalFragment()) {
+                    compressedMessage = new FragmentedMessage(frame, maxPayloadLength);
+                    return;
+                }
+            }
+            payload = inflate(frame.getBinaryData());
+        } catch(TooLongFrameException e) {
+            compressedMessage = null;
+            discarding = true;
+            AbstractWebSocketTransport.closeWebSocket(context.getChannel(), AbstractWebSocketTransport.MESSAGE_TOO_BIG_STATUS,
+                    "Message too big");
+            return;
+        }
+
+        WebSocketFrame inflatedFrame;
+        if(frame instanceof TextWebSocketFrame) {
+            inflatedFrame = new TextWebSocketFrame(true, frame.getRsv() & ~RSV1, payload);
+        } else {
+            inflatedFrame = new BinaryWebSocketFrame(true, frame.getRsv() & ~RSV1, payload);
+        }
+        Channels.fireMessageReceived(context, inflatedFrame, event.getRemoteAddress());
+    }
+
+    /**
+     * The frames are compressed and passed on under the lock of the handler,
+     * so that they reach the wire in the order of their compression.
+     */
+    @Override
+    public synchronized void writeRequested(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        Object message = event.getMessage();
+        if(!(message instanceof TextWebSocketFrame || message instanceof BinaryWebSocketFrame)) {
+            context.sendDownstream(event);
+            return;
+        }
+
+        WebSocketFrame frame = (WebSocketFrame) message;
+        ChannelBuffer payload = frame.getBinaryData();
+        if(!frame.isFinalFragment() || frame.getRsv() != 0 || payload.readableBytes() < minSize) {
+            context.sendDownstream(event);
+            return;
+        }
+
+        ChannelBuffer compressed;
+        compressed = serverNoContextTakeover ? deflateAlone(payload) : deflate(payload);
+
+        WebSocketFrame compressedFrame;
+        if(frame instanceof TextWebSocketFrame) {
+            compressedFrame = new TextWebSocketFrame(true, RSV1, compressed);
+        } else {
+            compressedFrame = new BinaryWebSocketFrame(true, RSV1, compressed);
+        }
+        Channels.write(context, event.getFuture(), compressedFrame, event.getRemoteAddress());
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        if(inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        synchronized(this) {
+            encoder = null;
+        }
+        super.channelClosed(context, event);
+    }
+
+    private ChannelBuffer deflate(ChannelBuffer payload) {
+        if(encoder == null) {
+            encoder = new EncoderEmbedder<ChannelBuffer>(TransportUtils.newZlibEncoder(ZlibWrapper.NONE, compressionLevel, windowBits));
+        }
+        // The payload may be the buffer of a prepared message written to other websockets
+        encoder.offer(payload.duplicate());
+
+        ChannelBuffer compressed;
+        compressed = encoder.poll();
+        return compressed.slice(compressed.readerIndex(), compressed.readableBytes() - TAIL.length);
+    }
+
+    private ChannelBuffer deflateAlone(ChannelBuffer payload) {
+        Deflater[] deflaters = SHARED_DEFLATERS.get();
+        Deflater deflater = deflaters[compressionLevel];
+        if(deflater == null) {
+            deflater = new Deflater(compressionLevel, true);
+            deflaters[compressionLevel] = deflater;
+        }
+
+        int length = payload.readableBytes();
+        if(payload.hasArray()) {
+            deflater.setInput(payload.array(), payload.arrayOffset() + payload.readerIndex(), length);
+        } else {
+            byte[] input = new byte[length];
+            payload.getBytes(payload.readerIndex(), input);
+            deflater.setInput(input);
+        }
+        deflater.finish();
+
+        ChannelBuffer compressed;
+        compressed = ChannelBuffers.dynamicBuffer(length / 2 + 64);
+        try {
+            while(!deflater.finished()) {
+                if(!compressed.writable()) {
+                    compressed.ensureWritableBytes(compressed.capacity());
+                }
+                int written = deflater.deflate(compressed.array(), compressed.arrayOffset() + compressed.writerIndex(),
+                        compressed.writableBytes());
+                compressed.writerIndex(compressed.writerIndex() + written);
+            }
+        } finally {
+            deflater.reset();
+            deflater.setInput(EMPTY);
+        }
+        compressed.writeByte(0);
+        return compressed;
+    }
+
+    private ChannelBuffer inflate(ChannelBuffer payload) throws DataFormatException, TooLongFrameException {
+        Inflater decompressor;
+        if(clientNoContextTakeover) {
+            decompressor = SHARED_INFLATER.get();
+        } else {
+            if(inflater == null) {
+                inflater = new Inflater(true);
+            }
+            decompressor = inflater;
+        }
+
+        int length = payload.readableBytes();
+        byte[] input = new byte[length + TAIL.length];
+        payload.getBytes(payload.readerIndex(), input, 0, length);
+        System.arraycopy(TAIL, 0, input, length, TAIL.length);
+        decompressor.setInput(input);
+
+        ChannelBuffer inflated;
+        inflated = ChannelBuffers.dynamicBuffer((int) Math.min(input.length * 2L, maxPayloadLength + 1));
+        boolean tooLong = false;
+        try {
+            while(!decompressor.finished() && !decompressor.needsInput()) {
+                if(!inflated.writable()) {
+                    // one byte over the limit is enough to refuse the message
+                    inflated.ensureWritableBytes((int) Math.min(inflated.capacity(), maxPayloadLength + 1 - inflated.writerIndex()));
+                }
+                int read = decompressor.inflate(inflated.array(), inflated.arrayOffset() + inflated.writerIndex(),
+                        inflated.writableBytes());
+                if(read == 0 && decompressor.needsDictionary()) {
+                    throw new DataFormatException("Preset dictionaries not supported");
+                }
+                inflated.writerIndex(inflated.writerIndex() + read);
+                if(inflated.writerIndex() > maxPayloadLength) {
+                    tooLong = true;
+                    throw new TooLongFrameException("Max frame length of " + maxPayloadLength + " has been exceeded.");
+                }
+            }
+        } finally {
+            // A final block ends the context of the client, whatever it
+            // negotiated, and a refused message leaves it incomplete
+            if(clientNoContextTakeover || decompressor.finished() || tooLong) {
+                decompressor.reset();
+            }
+        }
+        return inflated;
+    }
+
+}
@@ -6,9 +6,13 @@ import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 
+import com.cgbystrom.sockjs.PreparedMessage;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
+import com.cgbystrom.sockjs.transports.AbstractReceiverTransport.GenericReceiver;
 
 public class RawWebSocketTransport extends AbstractWebSocketTransport {
 
@@ -16,9 +20,17 @@ public class RawWebSocketTransport extends AbstractWebSocketTransport {
         super(sessionHandler);
     }
 
+    public RawWebSocketTransport(SessionHandler sessionHandler, PerMessageDeflate perMessageDeflate) {
+        super(sessionHandler, perMessageDeflate);
+    }
+
+    public RawWebSocketTransport(SessionHandler sessionHandler, PerMessageDeflate perMessageDeflate, long maxFramePayloadLength) {
+        super(sessionHandler, perMessageDeflate, maxFramePayloadLength);
+    }
+
     @Override
     protected void webSocketReady(Channel channel) {
-        registerReceiver(new RawWebSocketReceiver(channel));
+        registerReceiver(new RawWebSocketReceiver(getSessionHandler(), channel));
     }
 
     @Override
@@ -28,26 +40,50 @@ public class RawWebSocketTransport extends AbstractWebSocketTransport {
         getSessionHandler().messageReceived(message);
     }
 
-    private final class RawWebSocketReceiver extends GenericReceiver {
+    @Override
+    protected void binaryWebSocketFrameReceived(ChannelHandlerContext context, MessageEvent event,
+                                                BinaryWebSocketFrame binaryWebSocketFrame) {
+        getSessionHandler().messageReceived(binaryWebSocketFrame.getBinaryData());
+    }
+
+    private static final class RawWebSocketReceiver extends GenericReceiver {
 
         private ChannelFuture lastWriteFuture;
 
-        public RawWebSocketReceiver(Channel channel) {
-            super(channel);
+        public RawWebSocketReceiver(SessionHandler sessionHandler, Channel channel) {
+            super(sessionHandler, channel);
             lastWriteFuture = Channels.succeededFuture(channel);
         }
 
+        @Override
+        public TransportType getTransportType() {
+            return TransportType.WEBSOCKET;
+        }
+
+        @Override
+        public boolean isBinarySupported() {
+            return true;
+        }
+
         @Override
         public boolean doOpen() {
             return false;
         }
 
         @Override
-        public boolean doWrite(String[] messages) {
-            for(String message : messages) {
-                TextWebSocketFrame textWebSocketFrame;
-                textWebSocketFrame = new TextWebSocketFrame(message);
-                lastWriteFuture = getChannel().write(textWebSocketFrame);
+        public boolean doWrite(PreparedMessage[] messages) {
+            for(int i = 0; i < messages.length; i++) {
+                PreparedMessage message = messages[i];
+                WebSocketFrame frame;
+                if(message.isBinary()) {
+                    frame = new BinaryWebSocketFrame(message.getBinaryContent());
+                } else if(message.isPrepared()) {
+                    frame = new TextWebSocketFrame(message.getRawContent());
+                } else {
+                    frame = new TextWebSocketFrame(message.getMessage());
+                }
+                // the write listener goes to the last frame of the batch
+                lastWriteFuture = i == messages.length - 1 ? write(frame) : getChannel().write(frame);
             }
             return !isClosed();
         }
@@ -59,10 +95,29 @@ public class RawWebSocketTransport extends AbstractWebSocketTransport {
 
         @Override
         public boolean doClose(int aStatus, String aReason) {
-            lastWriteFuture.addListener(ChannelFutureListener.CLOSE);
+            if(isSendable(aStatus)) {
+                final int status = aStatus;
+                final String reason = aReason;
+                lastWriteFuture.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        closeWebSocket(getChannel(), status, reason);
+                    }
+                });
+            } else {
+                lastWriteFuture.addListener(ChannelFutureListener.CLOSE);
+            }
             return !isClosed();
         }
 
+        /**
+         * @return true if the status may be sent in a close frame (RFC 6455
+         *         section 7.4), the SockJS statuses such as 2010 may not
+         */
+        private static boolean isSendable(int status) {
+            return status >= 1000 && status <= 1003 || status >= 1007 && status <= 1011 || status >= 3000 && status <= 4999;
+        }
+
     }
 
 }
@@ -0,0 +1,88 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Settings of the gzip compression of the streaming responses, shared by
+ * the responses of a service. Each compressed response keeps its own
+ * {@link GzipChunkEncoder}, of about 2^(windowBits + 3) bytes and at least
+ * 20 KB, for as long as it streams.
+ */
+public final class StreamingCompression {
+
+    public static final int MIN_WINDOW_BITS = 9;
+
+    public static final int MAX_WINDOW_BITS = 15;
+
+    private static final String GZIP = "gzip";
+
+    private final int compressionLevel;
+    private final int windowBits;
+
+    /**
+     * @param compressionLevel from 0 to 9, as for {@link java.util.zip.Deflater}
+     * @param windowBits size of the window of the compressors, from
+     *        {@link #MIN_WINDOW_BITS} to {@link #MAX_WINDOW_BITS}
+     */
+    public StreamingCompression(int compressionLevel, int windowBits) {
+        if(compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+        }
+        if(windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("windowBits must be between " + MIN_WINDOW_BITS + " and " + MAX_WINDOW_BITS);
+        }
+        this.compressionLevel = compressionLevel;
+        this.windowBits = windowBits;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getWindowBits() {
+        return windowBits;
+    }
+
+    /**
+     * @return the encoder of the response to a request accepting gzip, null
+     *         if the request does not accept it
+     */
+    GzipChunkEncoder newEncoder(HttpRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+        if(acceptEncoding == null || !acceptsGzip(acceptEncoding)) {
+            return null;
+        }
+        return new GzipChunkEncoder(compressionLevel, windowBits);
+    }
+
+    /**
+     * @return true if gzip is listed without a zero quality
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        for(String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if(!parameters[0].trim().equalsIgnoreCase(GZIP)) {
+                continue;
+            }
+            for(int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if(parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch(NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingCompression [compressionLevel=" + compressionLevel + ", windowBits=" + windowBits + "]";
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.cgbystrom.sockjs.transports;
+
+/**
+ * The transports of the session URLs, <code>/server/session/transport</code>.
+ */
+public enum TransportType {
+
+    XHR("xhr"),
+
+    XHR_SEND("xhr_send"),
+
+    XHR_STREAMING("xhr_streaming"),
+
+    JSONP("jsonp"),
+
+    JSONP_SEND("jsonp_send"),
+
+    HTMLFILE("htmlfile"),
+
+    EVENTSOURCE("eventsource"),
+
+    WEBSOCKET("websocket");
+
+    private static final TransportType[] VALUES = values();
+
+    private final String path;
+
+    private TransportType(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return the last segment of the session URLs of this transport
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Looks up a transport by the characters of a URI between two indexes,
+     * without copying them.
+     *
+     * @return the transport, or null if none has this path
+     */
+    public static TransportType forPath(String uri, int start, int end) {
+        int length = end - start;
+        for(TransportType type : VALUES) {
+            if(type.path.length() == length && uri.regionMatches(start, type.path, 0, length)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+}
@@ -9,6 +9,9 @@ import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.compression.ZlibEncoder;
+import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -18,6 +21,13 @@ public final class TransportUtils {
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+    /**
+     * Smallest memory level of the zlib encoders, with which the stored
+     * blocks of incompressible data still fit in the output buffer they
+     * allocate for each sync flush
+     */
+    private static final int MIN_ZLIB_MEMORY_LEVEL = 5;
+
     public static String[] decodeMessage(String content) throws JsonProcessingException, IOException {
         JsonNode jsonContent = OBJECT_MAPPER.readTree(content);
         String[] messagesArray;
@@ -35,6 +45,36 @@ public final class TransportUtils {
         return messagesArray;
     }
 
+    /**
+     * Reads the <code>c</code> parameter of the query of a URI, without
+     * decoding the other parameters.
+     *
+     * @return the decoded value, or null if the URI has no such parameter
+     */
+    public static String getCallbackParameter(String uri) {
+        int start = uri.indexOf('?') + 1;
+        if(start == 0) {
+            return null;
+        }
+
+        int length = uri.length();
+        while (start < length) {
+            int end = start;
+            while (end < length && uri.charAt(end) != '&' && uri.charAt(end) != ';') {
+                end++;
+            }
+            if(end - start >= 2 && uri.charAt(start) == 'c' && uri.charAt(start + 1) == '=') {
+                String value = uri.substring(start + 2, end);
+                if(value.indexOf('%') >= 0 || value.indexOf('+') >= 0) {
+                    value = QueryStringDecoder.decodeComponent(value);
+                }
+                return value;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
     public static ChannelBuffer generatePrelude(char c, int num, boolean appendNewline) {
         ChannelBuffer cb = ChannelBuffers.buffer(num + 1);
         for (int i = 0; i < num; i++) {
@@ -104,4 +144,13 @@ public final class TransportUtils {
         }
     }
 
+    /**
+     * Creates a zlib encoder which sync flushes each buffer it encodes, with
+     * a memory level following the window, so that it keeps about
+     * 2^(windowBits + 3) bytes and at least 20 KB.
+     */
+    static ZlibEncoder newZlibEncoder(ZlibWrapper wrapper, int compressionLevel, int windowBits) {
+        return new ZlibEncoder(wrapper, compressionLevel, windowBits, Math.max(MIN_ZLIB_MEMORY_LEVEL, windowBits - 7));
+    }
+
 }
@@ -1,24 +1,33 @@
 package com.cgbystrom.sockjs.transports;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 
 import com.cgbystrom.sockjs.handlers.SessionHandler;
+import com.cgbystrom.sockjs.transports.AbstractReceiverTransport.ResponseReceiver;
 
 public class WebSocketTransport extends AbstractWebSocketTransport {
 
+    static final FrameEncoder FRAME_ENCODER = new FrameEncoder("", "", false);
+
     public WebSocketTransport(SessionHandler sessionHandler) {
         super(sessionHandler);
     }
 
+    public WebSocketTransport(SessionHandler sessionHandler, PerMessageDeflate perMessageDeflate) {
+        super(sessionHandler, perMessageDeflate);
+    }
+
+    public WebSocketTransport(SessionHandler sessionHandler, PerMessageDeflate perMessageDeflate, long maxFramePayloadLength) {
+        super(sessionHandler, perMessageDeflate, maxFramePayloadLength);
+    }
+
     @Override
     protected void webSocketReady(Channel channel) {
-        registerReceiver(new WebSocketReceiver(channel));
+        registerReceiver(new WebSocketReceiver(getSessionHandler(), channel));
     }
 
     @Override
@@ -30,20 +39,22 @@ public class WebSocketTransport extends AbstractWebSocketTransport {
         }
     }
 
-    private final class WebSocketReceiver extends ResponseReceiver {
+    private static final class WebSocketReceiver extends ResponseReceiver {
 
-        private final ChannelFuture lastWriteFuture;
+        public WebSocketReceiver(SessionHandler sessionHandler, Channel channel) {
+            super(sessionHandler, channel, FRAME_ENCODER);
+        }
 
-        public WebSocketReceiver(Channel channel) {
-            super(channel);
-            lastWriteFuture = Channels.succeededFuture(channel);
+        @Override
+        public TransportType getTransportType() {
+            return TransportType.WEBSOCKET;
         }
 
         @Override
-        protected boolean doSend(String frame) {
+        protected boolean doSend(ChannelBuffer frame) {
             boolean closed = isClosed();
             if(!closed) {
-                getChannel().write(new TextWebSocketFrame(frame));
+                write(new TextWebSocketFrame(frame));
             }
             return !closed;
         }
@@ -52,7 +63,7 @@ public class WebSocketTransport extends AbstractWebSocketTransport {
         public boolean doClose(int status, String reason) {
             boolean didClose = super.doClose(status, reason);
             if(didClose) {
-                lastWriteFuture.addListener(ChannelFutureListener.CLOSE);
+                getChannel().close();
             }
             return didClose;
         }
@@ -1,40 +1,29 @@
 package com.cgbystrom.sockjs.transports;
 
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.handler.codec.http.HttpRequest;
 
+import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 
 public class XhrPollingTransport extends AbstractPollingTransport {
 
-    public XhrPollingTransport(SessionHandler sessionHandler) {
-        super(sessionHandler);
-    }
+    static final FrameEncoder FRAME_ENCODER = new FrameEncoder("", "\n", false);
 
     @Override
-    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        super.messageReceived(context, event);
-
-        HttpResponse response = createResponse(context.getChannel(), CONTENT_TYPE_JAVASCRIPT);
-        registerReceiver(new XhrResponseReceiver(context.getChannel(), response));
+    public void handle(Channel channel, HttpRequest request, Service service, SessionHandler sessionHandler) throws Exception {
+        new XhrResponseReceiver(sessionHandler, channel, getCookie(request, service), isKeepAliveEnabled(request)).register();
     }
 
-    private class XhrResponseReceiver extends SingleResponseReceiver {
+    private static class XhrResponseReceiver extends SingleResponseReceiver {
 
-        public XhrResponseReceiver(Channel aChannel, HttpResponse httpResponse) {
-            super(aChannel, httpResponse);
+        public XhrResponseReceiver(SessionHandler sessionHandler, Channel aChannel, String cookie, boolean keepAliveEnabled) {
+            super(sessionHandler, aChannel, CONTENT_TYPE_JAVASCRIPT, cookie, FRAME_ENCODER, keepAliveEnabled);
         }
 
         @Override
-        protected ChannelBuffer formatFrame(String frame) {
-            return ChannelBuffers.wrappedBuffer(
-                    ChannelBuffers.copiedBuffer(frame, CharsetUtil.UTF_8),
-                    ChannelBuffers.copiedBuffer("\n", CharsetUtil.UTF_8));
+        public TransportType getTransportType() {
+            return TransportType.XHR;
         }
 
     }
@@ -5,59 +5,35 @@ import java.util.Arrays;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.util.CharsetUtil;
 
+import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.handlers.SessionHandler;
 
 public class XhrStreamingTransport extends AbstractStreamingTransport {
 
-    private final static byte[] PRELUDE_FRAME;
+    private final static ChannelBuffer PRELUDE_FRAME;
     static {
-        char[] preludeChars = new char[2048];
-        Arrays.fill(preludeChars, 'h');
-        PRELUDE_FRAME = (String.valueOf(preludeChars) + "\n").getBytes(CharsetUtil.UTF_8);
+        byte[] prelude = new byte[2048 + 1];
+        Arrays.fill(prelude, (byte) 'h');
+        prelude[2048] = '\n';
+        PRELUDE_FRAME = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(prelude));
     }
 
-    private final int responseSizeLimit;
-
-    public XhrStreamingTransport(SessionHandler sessionHandler, int responseSizeLimit) {
-        super(sessionHandler);
-        this.responseSizeLimit = responseSizeLimit;
-    }
+    static final FrameEncoder FRAME_ENCODER = new FrameEncoder("", "\n", false);
 
     @Override
-    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
-        super.messageReceived(context, event);
-
-        HttpResponse response = createResponse(context.getChannel(), CONTENT_TYPE_JAVASCRIPT);
-        Channels.write(context, Channels.succeededFuture(event.getChannel()), response);
+    public void handle(Channel channel, HttpRequest request, Service service, SessionHandler sessionHandler) throws Exception {
+        HttpResponse response = createResponse(request, service, CONTENT_TYPE_JAVASCRIPT);
+        GzipChunkEncoder encoder = createEncoder(request, service, response);
+        channel.write(response);
 
         // IE requires 2KB prefix:
         // http://blogs.msdn.com/b/ieinternals/archive/2010/04/06/comet-streaming-in-internet-explorer-with-xmlhttprequest-and-xdomainrequest.aspx
-        DefaultHttpChunk message = new DefaultHttpChunk(ChannelBuffers.copiedBuffer(PRELUDE_FRAME));
-        Channels.write(context, Channels.succeededFuture(event.getChannel()), message);
-
-        registerReceiver(new XhrStreamingResponseReceiver(context.getChannel(), responseSizeLimit));
-    }
-
-    private class XhrStreamingResponseReceiver extends AbstractStreamingReceiver {
-
-        public XhrStreamingResponseReceiver(Channel channel, int responseSizeLimit) {
-            super(channel, responseSizeLimit);
-        }
-
-        @Override
-        protected ChannelBuffer formatFrame(String frame) {
-            return ChannelBuffers.wrappedBuffer(
-                    ChannelBuffers.copiedBuffer(frame, CharsetUtil.UTF_8),
-                    ChannelBuffers.copiedBuffer("\n", CharsetUtil.UTF_8));
-        }
+        writeChunk(channel, encoder, PRELUDE_FRAME.duplicate());
 
+        new StreamingReceiver(sessionHandler, channel, TransportType.XHR_STREAMING, service.getResponseSizeLimit(), FRAME_ENCODER, isKeepAliveEnabled(request), encoder).register();
     }
 
 }
\ No newline at end of file
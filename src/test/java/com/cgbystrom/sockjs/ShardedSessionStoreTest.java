@@ -0,0 +1,308 @@
+package com.cgbystrom.sockjs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cgbystrom.sockjs.handlers.SessionConfig;
+import com.cgbystrom.sockjs.handlers.SimpleSessionHandler;
+
+public class ShardedSessionStoreTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final SessionConfig            config   = new SessionConfig(executor, new ScheduledExecutorTimer(executor), 5000, 25000,
+                                                            new SessionConfig.Disposer() {
+
+                                                                @Override
+                                                                public void dispose(SimpleSessionHandler session) {
+                                                                }
+
+                                                            });
+
+    private final SessionStore.Factory     factory  = new SessionStore.Factory() {
+
+                                                        @Override
+                                                        public SimpleSessionHandler create(String sessionId) {
+                                                            return session(sessionId);
+                                                        }
+
+                                                    };
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void getOrCreate() {
+        ShardedSessionStore store = new ShardedSessionStore(4, 0);
+        assertNull(store.get("a"));
+
+        SimpleSessionHandler session = store.getOrCreate("a", factory);
+        assertEquals("a", session.getId());
+        assertSame(session, store.get("a"));
+        assertSame(session, store.getOrCreate("a", factory));
+        // an equal id which is not the same string
+        assertSame(session, store.get(new String("a")));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void rejectsFactoryCreatingAnotherSession() {
+        ShardedSessionStore store = new ShardedSessionStore(4, 0);
+        try {
+            store.getOrCreate("a", new SessionStore.Factory() {
+
+                @Override
+                public SimpleSessionHandler create(String sessionId) {
+                    return session("b");
+                }
+
+            });
+            fail();
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        assertNull(store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void concurrentGetOrCreateCallsTheFactoryOncePerId() throws Exception {
+        final ShardedSessionStore store = new ShardedSessionStore(2, 0);
+        final int ids = 2000;
+        final ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+        final SessionStore.Factory countingFactory = new SessionStore.Factory() {
+
+            @Override
+            public SimpleSessionHandler create(String sessionId) {
+                AtomicInteger count = calls.putIfAbsent(sessionId, new AtomicInteger(1));
+                if(count != null) {
+                    count.incrementAndGet();
+                }
+                return session(sessionId);
+            }
+
+        };
+
+        final int threadCount = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final SimpleSessionHandler[][] results = new SimpleSessionHandler[threadCount][ids];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for(int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < ids; i++) {
+                            // the threads go through the ids in different orders
+                            int id = (thread % 2 == 0 ? i : ids - 1 - i) + thread * ids / threadCount;
+                            id = id % ids;
+                            results[thread][id] = store.getOrCreate("s" + id, countingFactory);
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(ids, calls.size());
+        for(Map.Entry<String, AtomicInteger> entry : calls.entrySet()) {
+            assertEquals(entry.getKey(), 1, entry.getValue().get());
+        }
+        for(int i = 0; i < ids; i++) {
+            SimpleSessionHandler session = store.get("s" + i);
+            assertNotNull(session);
+            for(int t = 0; t < threadCount; t++) {
+                assertSame(session, results[t][i]);
+            }
+        }
+        assertEquals(ids, store.size());
+    }
+
+    @Test
+    public void removeAndReinsertThroughTombstones() {
+        // a single shard of 8 slots, so that the sessions share runs of slots
+        ShardedSessionStore store = new ShardedSessionStore(1, 0);
+        SimpleSessionHandler[] sessions = new SimpleSessionHandler[5];
+        for(int i = 0; i < sessions.length; i++) {
+            sessions[i] = store.getOrCreate("s" + i, factory);
+        }
+
+        for(int i = 0; i < sessions.length; i += 2) {
+            assertTrue(store.remove(sessions[i]));
+            assertFalse(store.remove(sessions[i]));
+        }
+        assertEquals(2, store.size());
+        for(int i = 0; i < sessions.length; i++) {
+            if(i % 2 == 0) {
+                assertNull(store.get("s" + i));
+            } else {
+                assertSame(sessions[i], store.get("s" + i));
+            }
+        }
+
+        for(int i = 0; i < sessions.length; i += 2) {
+            SimpleSessionHandler reinserted = store.getOrCreate("s" + i, factory);
+            assertNotSame(sessions[i], reinserted);
+            assertSame(reinserted, store.get("s" + i));
+            // the old session no longer owns its id
+            assertFalse(store.remove(sessions[i]));
+            assertSame(reinserted, store.get("s" + i));
+        }
+        assertEquals(5, store.size());
+        for(int i = 1; i < sessions.length; i += 2) {
+            assertSame(sessions[i], store.get("s" + i));
+        }
+    }
+
+    @Test
+    public void churnDoesNotFillTheShardWithTombstones() {
+        ShardedSessionStore store = new ShardedSessionStore(1, 0);
+        SimpleSessionHandler kept = store.getOrCreate("kept", factory);
+        for(int i = 0; i < 10000; i++) {
+            SimpleSessionHandler session = store.getOrCreate("churn" + i, factory);
+            assertSame(session, store.get("churn" + i));
+            assertTrue(store.remove(session));
+            assertNull(store.get("churn" + i));
+        }
+        assertSame(kept, store.get("kept"));
+        assertEquals(1, store.size());
+        assertEquals(1, count(store));
+    }
+
+    @Test
+    public void resize() {
+        ShardedSessionStore store = new ShardedSessionStore(2, 0);
+        int ids = 10000;
+        Set<SimpleSessionHandler> created = new HashSet<SimpleSessionHandler>();
+        for(int i = 0; i < ids; i++) {
+            created.add(store.getOrCreate("s" + i, factory));
+            assertEquals(i + 1, store.size());
+        }
+        for(int i = 0; i < ids; i++) {
+            assertEquals("s" + i, store.get("s" + i).getId());
+        }
+        assertEquals(created, iterate(store));
+
+        for(int i = 0; i < ids; i += 3) {
+            assertTrue(store.remove(store.get("s" + i)));
+        }
+        for(int i = 0; i < ids; i++) {
+            if(i % 3 == 0) {
+                assertNull(store.get("s" + i));
+            } else {
+                assertNotNull(store.get("s" + i));
+            }
+        }
+        assertEquals(ids - (ids + 2) / 3, store.size());
+        assertEquals(store.size(), count(store));
+    }
+
+    @Test
+    public void iterationDuringMutation() throws Exception {
+        final ShardedSessionStore store = new ShardedSessionStore(2, 0);
+        Set<SimpleSessionHandler> stable = new HashSet<SimpleSessionHandler>();
+        for(int i = 0; i < 100; i++) {
+            stable.add(store.getOrCreate("stable" + i, factory));
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread mutator = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    // grows the shards past several resizes then empties them
+                    for(int round = 0; round < 20; round++) {
+                        for(int i = 0; i < 2000; i++) {
+                            store.getOrCreate("churn" + i, factory);
+                        }
+                        for(int i = 0; i < 2000; i++) {
+                            store.remove(store.get("churn" + i));
+                        }
+                    }
+                } catch(Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+
+        };
+        mutator.start();
+
+        int iterations = 0;
+        do {
+            // each stable session is returned once, whatever the mutator does
+            Map<SimpleSessionHandler, Boolean> seen = new IdentityHashMap<SimpleSessionHandler, Boolean>();
+            for(SimpleSessionHandler session : store) {
+                assertNotNull(session);
+                if(session.getId().startsWith("stable")) {
+                    assertNull(session.getId(), seen.put(session, Boolean.TRUE));
+                }
+            }
+            assertEquals(stable, seen.keySet());
+            for(int i = 0; i < 100; i += 10) {
+                assertNotNull(store.get("stable" + i));
+            }
+            iterations++;
+        } while (done.getCount() > 0 || iterations < 10);
+        mutator.join();
+
+        assertNull(failure.get());
+        assertEquals(stable, iterate(store));
+        assertEquals(100, store.size());
+    }
+
+    private SimpleSessionHandler session(String id) {
+        return new SimpleSessionHandler(id, null, config);
+    }
+
+    private static Set<SimpleSessionHandler> iterate(SessionStore store) {
+        Set<SimpleSessionHandler> sessions = new HashSet<SimpleSessionHandler>();
+        for(SimpleSessionHandler session : store) {
+            assertTrue(session.getId(), sessions.add(session));
+        }
+        return sessions;
+    }
+
+    private static int count(SessionStore store) {
+        return iterate(store).size();
+    }
+
+}
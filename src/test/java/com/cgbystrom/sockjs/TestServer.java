@@ -11,7 +11,6 @@ import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
@@ -136,7 +135,6 @@ public class TestServer {
                 ChannelPipeline pipeline = pipeline();
 
                 pipeline.addLast("HttpRequestDecoder", new HttpRequestDecoder());
-                pipeline.addLast("HttpChunkAggregator", new HttpChunkAggregator(65536));
                 pipeline.addLast("HttpResponseEncoder", new HttpResponseEncoder());
                 pipeline.addLast("ReadIdleStateHandler", new IdleStateHandler(timer, 0, 0, 5));
                 pipeline.addLast("SockJsPreflight", new PreflightHandler());
@@ -0,0 +1,171 @@
+package com.cgbystrom.sockjs.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+import com.cgbystrom.sockjs.SessionCallback;
+import com.cgbystrom.sockjs.SessionCallbackFactory;
+
+public class ServiceTrieTest {
+
+    private final List<Service> built = new ArrayList<Service>();
+
+    @After
+    public void stopServices() {
+        for(Service service : built) {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void routesOverlappingPrefixesBySegment() {
+        Service echo = service("/echo");
+        Service echo2 = service("/echo2");
+        ServiceTrie trie = new ServiceTrie(Arrays.asList(echo, echo2));
+
+        assertRoutedTo(echo, trie, "/echo");
+        assertRoutedTo(echo, trie, "/echo/");
+        assertRoutedTo(echo, trie, "/echo/info");
+        assertRoutedTo(echo, trie, "/echo/000/abc/xhr?t=1");
+        assertRoutedTo(echo, trie, "/echo?t=1");
+        assertRoutedTo(echo, trie, "/echo#fragment");
+        assertRoutedTo(echo2, trie, "/echo2");
+        assertRoutedTo(echo2, trie, "/echo2/info");
+        assertRoutedTo(echo2, trie, "/echo2/echo/info");
+
+        assertNull(trie.lookup("/echo22/info"));
+        assertNull(trie.lookup("/ech/info"));
+        assertNull(trie.lookup("/ech"));
+        assertNull(trie.lookup("/"));
+        assertNull(trie.lookup(""));
+        assertNull(trie.lookup("/other/echo"));
+    }
+
+    @Test
+    public void routesToTheLongestUrl() {
+        Service root = service("/");
+        Service echo = service("/echo");
+        Service nested = service("/echo/nested/");
+        ServiceTrie trie = new ServiceTrie(Arrays.asList(nested, root, echo));
+
+        assertRoutedTo(root, trie, "");
+        assertRoutedTo(root, trie, "/info");
+        assertRoutedTo(root, trie, "/echo2/info");
+        assertRoutedTo(echo, trie, "/echo/info");
+        assertRoutedTo(echo, trie, "/echo/nest/info");
+        assertRoutedTo(nested, trie, "/echo/nested/info");
+        assertRoutedTo(nested, trie, "/echo/nested");
+    }
+
+    @Test
+    public void rejectsTheSameUrl() {
+        try {
+            new ServiceTrie(Arrays.asList(service("/echo"), service("echo/")));
+            fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        ServiceTrie trie = new ServiceTrie(Collections.singletonList(service("/echo")));
+        try {
+            trie.with(service("/echo"));
+            fail();
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void withCopiesTheTrie() {
+        Service echo = service("/echo");
+        Service echo2 = service("/echo2");
+        ServiceTrie trie = new ServiceTrie(Collections.singletonList(echo));
+        TransportRouterHandler router = trie.lookup("/echo/info");
+
+        ServiceTrie newTrie = trie.with(echo2);
+        assertNotSame(trie, newTrie);
+        assertEquals(Arrays.asList(echo, echo2), newTrie.getServices());
+        assertRoutedTo(echo, newTrie, "/echo/info");
+        assertRoutedTo(echo2, newTrie, "/echo2/info");
+
+        // the lookups under way keep the old trie as it was
+        assertEquals(Collections.singletonList(echo), trie.getServices());
+        assertSame(router, trie.lookup("/echo/info"));
+        assertNull(trie.lookup("/echo2/info"));
+    }
+
+    @Test
+    public void withoutCopiesTheTrie() {
+        Service echo = service("/echo");
+        Service echo2 = service("/echo2");
+        ServiceTrie trie = new ServiceTrie(Arrays.asList(echo, echo2));
+
+        ServiceTrie newTrie = trie.without(echo);
+        assertNotSame(trie, newTrie);
+        assertEquals(Collections.singletonList(echo2), newTrie.getServices());
+        assertNull(newTrie.lookup("/echo/info"));
+        assertRoutedTo(echo2, newTrie, "/echo2/info");
+
+        assertEquals(Arrays.asList(echo, echo2), trie.getServices());
+        assertRoutedTo(echo, trie, "/echo/info");
+
+        // removing again or an unknown service changes nothing
+        assertSame(newTrie, newTrie.without(echo));
+        assertSame(newTrie, newTrie.without(service("/echo2")));
+    }
+
+    @Test
+    public void servicesAreUnmodifiable() {
+        ServiceTrie trie = new ServiceTrie(Collections.singletonList(service("/echo")));
+        try {
+            trie.getServices().clear();
+            fail();
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void canonicalUrl() {
+        assertEquals("/echo", ServiceTrie.canonicalUrl("/echo"));
+        assertEquals("/echo", ServiceTrie.canonicalUrl("echo/"));
+        assertEquals("/echo/nested", ServiceTrie.canonicalUrl("//echo//nested/"));
+        assertEquals("", ServiceTrie.canonicalUrl("/"));
+    }
+
+    private Service service(String url) {
+        ServiceBuilder builder = new ServiceBuilder();
+        builder.setUrl(url);
+        builder.setFactory(new SessionCallbackFactory() {
+            @Override
+            public SessionCallback createSessionCallback(String id) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        Service service = builder.build();
+        built.add(service);
+        return service;
+    }
+
+    private static void assertRoutedTo(Service service, ServiceTrie trie, String uri) {
+        TransportRouterHandler router = trie.lookup(uri);
+        if(router == null) {
+            fail(uri + " not routed");
+        }
+        assertSame(uri, service, router.getService());
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.cgbystrom.sockjs.transports;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cgbystrom.sockjs.PreparedMessage;
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.ServiceBuilder;
+import com.cgbystrom.sockjs.SessionCallback;
+import com.cgbystrom.sockjs.SessionCallbackFactory;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Checks the frames against the ones built with Jackson's
+ * <code>JsonStringEncoder</code>, as the transports did before.
+ */
+public class FrameEncoderTest {
+
+    private static final String[] MESSAGES = {
+        "",
+        "plain ascii",
+        "\"quotes\" and \\backslashes\\ and /slashes/",
+        "\b\t\n\f\r\u0000\u0001\u001f\u007f",
+        "</script><script>alert(1)</script>",
+        "latin \u00e9\u00e8 and others \u20ac\u2028\u2029\ufeff\uffff",
+        "non-BMP \ud83d\ude00 \ud800\udc00 \udbff\udfff",
+    };
+
+    private static final String[] UNPAIRED_SURROGATES = {
+        "high \ud83d alone",
+        "low \ude00 alone",
+        "reversed \ude00\ud83d",
+        "at the end \ud83d",
+    };
+
+    private static Service service;
+
+    @BeforeClass
+    public static void buildService() {
+        ServiceBuilder builder = new ServiceBuilder();
+        builder.setUrl("/test");
+        builder.setFactory(new SessionCallbackFactory() {
+            @Override
+            public SessionCallback createSessionCallback(String id) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        service = builder.build();
+    }
+
+    @AfterClass
+    public static void stopService() {
+        service.stop();
+    }
+
+    @Test
+    public void escapesLikeJackson() throws Exception {
+        for(String message : MESSAGES) {
+            byte[] expected = jacksonQuote(message).getBytes("UTF-8");
+            assertArrayEquals(message, expected, bytes(FrameEncoder.escape(message, false)));
+            assertEquals(message, expected.length, FrameEncoder.escapedLength(message));
+            assertArrayEquals(message, jacksonQuote(jacksonQuote(message)).getBytes("UTF-8"),
+                    bytes(FrameEncoder.escape(message, true)));
+        }
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() throws Exception {
+        for(String message : UNPAIRED_SURROGATES) {
+            // as String.getBytes does
+            byte[] expected = jacksonQuote(message).getBytes("UTF-8");
+            assertArrayEquals(message, expected, bytes(FrameEncoder.escape(message, false)));
+            assertEquals(message, expected.length, FrameEncoder.escapedLength(message));
+            assertArrayEquals(message, jacksonQuote(jacksonQuote(message)).getBytes("UTF-8"),
+                    bytes(FrameEncoder.escape(message, true)));
+        }
+    }
+
+    @Test
+    public void encodesMessageFramesLikeJackson() throws Exception {
+        List<String> all = new ArrayList<String>();
+        for(String message : MESSAGES) {
+            all.add(message);
+        }
+        for(String message : UNPAIRED_SURROGATES) {
+            all.add(message);
+        }
+        String[] messages = all.toArray(new String[all.size()]);
+
+        for(int prepared = 0; prepared < 3; prepared++) {
+            PreparedMessage[] batch = new PreparedMessage[messages.length];
+            for(int i = 0; i < messages.length; i++) {
+                // none, every other one or all of them prepared
+                boolean isPrepared = prepared == 2 || prepared == 1 && i % 2 == 0;
+                batch[i] = isPrepared ? service.prepareMessage(messages[i]) : PreparedMessage.wrap(messages[i]);
+            }
+            String frame = jacksonFrame(messages);
+
+            // compared as bytes, the unpaired surrogates are replaced by '?'
+            assertFrame(frame + "\n", new FrameEncoder("", "\n", false).encodeMessageFrame(batch));
+            assertFrame("data: " + frame + "\r\n\r\n", new FrameEncoder("data: ", "\r\n\r\n", false).encodeMessageFrame(batch));
+            assertFrame("cb(\"" + jacksonQuote(frame) + "\");\r\n",
+                    new FrameEncoder("cb(\"", "\");\r\n", true).encodeMessageFrame(batch));
+        }
+    }
+
+    @Test
+    public void encodesSingleMessageFrames() throws Exception {
+        for(String message : MESSAGES) {
+            PreparedMessage[] batch = { service.prepareMessage(message) };
+            assertEquals(jacksonFrame(message) + "\n", string(new FrameEncoder("", "\n", false).encodeMessageFrame(batch)));
+            batch = new PreparedMessage[] { PreparedMessage.wrap(message) };
+            assertEquals(jacksonFrame(message) + "\n", string(new FrameEncoder("", "\n", false).encodeMessageFrame(batch)));
+        }
+    }
+
+    @Test
+    public void encodesControlFrames() throws Exception {
+        FrameEncoder encoder = new FrameEncoder("p", "s", false);
+        assertEquals("pos", string(encoder.encodeOpenFrame()));
+        assertEquals("phs", string(encoder.encodeHeartbeatFrame()));
+        assertEquals("pc[3000,\"Go \\\"away\\\"\"]s", string(encoder.encodeCloseFrame(3000, "Go \"away\"")));
+        assertEquals("pc[1000,\"\\u00e9\"]s".replace("\\u00e9", "\u00e9"), string(encoder.encodeCloseFrame(1000, "\u00e9")));
+
+        encoder = new FrameEncoder("p", "s", true);
+        assertEquals("pc[3000,\\\"Go \\\\\\\"away\\\\\\\"\\\"]s", string(encoder.encodeCloseFrame(3000, "Go \"away\"")));
+    }
+
+    private static String jacksonFrame(String... messages) {
+        StringBuilder frame = new StringBuilder("a[");
+        for(int i = 0; i < messages.length; i++) {
+            if(i > 0) {
+                frame.append(',');
+            }
+            frame.append('"').append(jacksonQuote(messages[i])).append('"');
+        }
+        return frame.append(']').toString();
+    }
+
+    private static String jacksonQuote(String text) {
+        return new String(new JsonStringEncoder().quoteAsString(text));
+    }
+
+    private static void assertFrame(String expected, ChannelBuffer frame) throws Exception {
+        assertArrayEquals(expected, expected.getBytes("UTF-8"), bytes(frame));
+    }
+
+    private static byte[] bytes(ChannelBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static String string(ChannelBuffer buffer) throws Exception {
+        return new String(bytes(buffer), "UTF-8");
+    }
+
+}
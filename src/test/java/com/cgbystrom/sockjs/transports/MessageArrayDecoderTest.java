@@ -0,0 +1,264 @@
+package com.cgbystrom.sockjs.transports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.junit.Test;
+
+import com.cgbystrom.sockjs.handlers.SessionHandler;
+
+public class MessageArrayDecoderTest {
+
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    @Test
+    public void decodesArrayAndSingleString() throws Exception {
+        assertEquals(Arrays.asList("a", "", "b c"), decode(false, "[\"a\", \"\" ,\"b c\"]"));
+        assertEquals(Arrays.asList("single"), decode(false, " \"single\"\r\n"));
+        assertEquals(Arrays.<String> asList(), decode(false, "[ ]"));
+    }
+
+    @Test
+    public void decodesEscapes() throws Exception {
+        assertEquals(Arrays.asList("\"\\/\b\f\n\r\t"), decode(false, "[\"\\\"\\\\\\/\\b\\f\\n\\r\\t\"]"));
+    }
+
+    @Test
+    public void decodesUnicodeEscapes() throws Exception {
+        assertEquals(Arrays.asList("\u00e9\u20ac\u0000"), decode(false, "[\"\\u00e9\\u20AC\\u0000\"]"));
+        // the halves of a surrogate pair are escaped one by one
+        assertEquals(Arrays.asList("\ud83d\ude00"), decode(false, "[\"\\ud83d\\ude00\"]"));
+    }
+
+    @Test
+    public void decodesUtf8() throws Exception {
+        String text = "a\u00e9\u20ac\ud83d\ude00z";
+        assertEquals(Arrays.asList(text), decode(false, "[\"" + text + "\"]"));
+    }
+
+    @Test
+    public void decodesUtf8SplitAcrossChunks() throws Exception {
+        String text = "\u00e9\u20ac\ud83d\ude00 and \\u00e9";
+        byte[] body = ("[\"" + text + "\"]").getBytes("UTF-8");
+        Recorder recorder = new Recorder();
+        MessageArrayDecoder decoder = new MessageArrayDecoder(recorder, false, NO_LIMIT, NO_LIMIT);
+        for(byte b : body) {
+            decoder.decode(ChannelBuffers.wrappedBuffer(new byte[] { b }));
+        }
+        assertTrue(decoder.finish());
+        assertEquals(Arrays.asList("\u00e9\u20ac\ud83d\ude00 and \u00e9"), recorder.messages);
+    }
+
+    @Test
+    public void replacesMalformedUtf8() throws Exception {
+        byte[] body = new byte[] { '[', '"', (byte) 0xC3, 'a', (byte) 0xFF, (byte) 0xED, (byte) 0xA0, (byte) 0x80, '"', ']' };
+        assertEquals(Arrays.asList("\ufffda\ufffd\ufffd"), decode(false, body));
+    }
+
+    @Test
+    public void decodesForm() throws Exception {
+        assertEquals(Arrays.asList("a b", "\u00e9&"), decode(true, "d=%5B%22a+b%22%2C%22%C3%A9%26%22%5D"));
+    }
+
+    @Test
+    public void decodesFormDataAmongOtherParameters() throws Exception {
+        assertEquals(Arrays.asList("x"), decode(true, "dd=1&c=%5B&d=%5B%22x%22%5D;e=2"));
+    }
+
+    @Test
+    public void decodesPercentEscapeSplitAcrossChunks() throws Exception {
+        Recorder recorder = new Recorder();
+        MessageArrayDecoder decoder = new MessageArrayDecoder(recorder, true, NO_LIMIT, NO_LIMIT);
+        decoder.decode(buffer("d=%5B%2"));
+        decoder.decode(buffer("2%C"));
+        decoder.decode(buffer("3%A9%22%5"));
+        decoder.decode(buffer("D"));
+        assertTrue(decoder.finish());
+        assertEquals(Arrays.asList("\u00e9"), recorder.messages);
+    }
+
+    @Test
+    public void passesMessagesAsSoonAsTheyAreComplete() throws Exception {
+        Recorder recorder = new Recorder();
+        MessageArrayDecoder decoder = new MessageArrayDecoder(recorder, false, NO_LIMIT, NO_LIMIT);
+        decoder.decode(buffer("[\"a\",\"b"));
+        assertEquals(Arrays.asList("a"), recorder.messages);
+        decoder.decode(buffer("\"]"));
+        assertEquals(Arrays.asList("a", "b"), recorder.messages);
+    }
+
+    @Test
+    public void rejectsMalformedBodies() throws Exception {
+        assertMalformed(false, "[\"a\" \"b\"]");
+        assertMalformed(false, "[1]");
+        assertMalformed(false, "[\"a\"] x");
+        assertMalformed(false, "[\"\\x\"]");
+        assertMalformed(false, "[\"\\u00g0\"]");
+        assertMalformed(false, "[\"a\nb\"]");
+        assertMalformed(true, "d=%5G");
+    }
+
+    @Test
+    public void enforcesMessageLimit() throws Exception {
+        // the size of a message counts the bytes of its escaped content
+        assertEquals(Arrays.asList("12345678"), decode(false, 8, NO_LIMIT, "[\"12345678\"]"));
+        assertEquals(Arrays.asList("\\\\\\\\"), decode(false, 8, NO_LIMIT, "[\"\\\\\\\\\\\\\\\\\"]"));
+        assertEquals(Arrays.asList("\u20ac\u20ac"), decode(false, 6, NO_LIMIT, "[\"\u20ac\u20ac\"]"));
+
+        Recorder recorder = new Recorder();
+        MessageArrayDecoder decoder = new MessageArrayDecoder(recorder, false, 8, NO_LIMIT);
+        try {
+            decoder.decode(buffer("[\"a\",\"\\u0041\\u0042\"]"));
+            fail();
+        } catch(TooLongFrameException e) {
+            assertEquals("Message larger than 8 bytes.", e.getMessage());
+        }
+        // the messages before the one going over are delivered
+        assertEquals(Arrays.asList("a"), recorder.messages);
+
+        assertTooLong(false, 6, NO_LIMIT, "[\"\u20ac\u20ac\u20ac\"]");
+    }
+
+    @Test
+    public void enforcesMessageLimitOnFormDecodedBytes() throws Exception {
+        // %22 is a single byte of the body once form decoded
+        assertEquals(Arrays.asList("abc"), decode(true, 3, NO_LIMIT, "d=%5B%22%61%62%63%22%5D"));
+        assertTooLong(true, 3, NO_LIMIT, "d=%5B%22abcd%22%5D");
+    }
+
+    @Test
+    public void enforcesRequestLimit() throws Exception {
+        String body = "[\"abc\"]";
+        assertEquals(Arrays.asList("abc"), decode(false, NO_LIMIT, body.length(), body));
+
+        MessageArrayDecoder decoder = new MessageArrayDecoder(new Recorder(), false, NO_LIMIT, body.length());
+        decoder.decode(buffer(body));
+        try {
+            decoder.decode(buffer(" "));
+            fail();
+        } catch(TooLongFrameException e) {
+            assertEquals("Request larger than 7 bytes.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void finishWithoutPayload() throws Exception {
+        assertFalse(new MessageArrayDecoder(new Recorder(), false, NO_LIMIT, NO_LIMIT).finish());
+
+        MessageArrayDecoder decoder = new MessageArrayDecoder(new Recorder(), false, NO_LIMIT, NO_LIMIT);
+        decoder.decode(buffer(" \r\n"));
+        assertFalse(decoder.finish());
+
+        decoder = new MessageArrayDecoder(new Recorder(), true, NO_LIMIT, NO_LIMIT);
+        decoder.decode(buffer("c=1&e="));
+        assertFalse(decoder.finish());
+    }
+
+    @Test
+    public void finishWithinPayload() throws Exception {
+        assertUnfinished(false, "[");
+        assertUnfinished(false, "[\"a\"");
+        assertUnfinished(false, "[\"a\",");
+        assertUnfinished(false, "[\"a\\");
+        assertUnfinished(false, "[\"\\u00");
+        assertUnfinished(true, "d=%5B%22a%22%5");
+        assertUnfinished(true, "d=%");
+    }
+
+    private static List<String> decode(boolean form, String body) throws Exception {
+        return decode(form, NO_LIMIT, NO_LIMIT, body);
+    }
+
+    private static List<String> decode(boolean form, byte[] body) throws Exception {
+        Recorder recorder = new Recorder();
+        MessageArrayDecoder decoder = new MessageArrayDecoder(recorder, form, NO_LIMIT, NO_LIMIT);
+        decoder.decode(ChannelBuffers.wrappedBuffer(body));
+        assertTrue(decoder.finish());
+        return recorder.messages;
+    }
+
+    private static List<String> decode(boolean form, int maxMessageSize, int maxRequestSize, String body) throws Exception {
+        Recorder recorder = new Recorder();
+        MessageArrayDecoder decoder = new MessageArrayDecoder(recorder, form, maxMessageSize, maxRequestSize);
+        decoder.decode(buffer(body));
+        assertTrue(decoder.finish());
+        return recorder.messages;
+    }
+
+    private static void assertMalformed(boolean form, String body) throws Exception {
+        try {
+            decode(form, body);
+            fail(body);
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertTooLong(boolean form, int maxMessageSize, int maxRequestSize, String body) throws Exception {
+        try {
+            decode(form, maxMessageSize, maxRequestSize, body);
+            fail(body);
+        } catch(TooLongFrameException e) {
+            // expected
+        }
+    }
+
+    private static void assertUnfinished(boolean form, String body) throws Exception {
+        MessageArrayDecoder decoder = new MessageArrayDecoder(new Recorder(), form, NO_LIMIT, NO_LIMIT);
+        decoder.decode(buffer(body));
+        try {
+            decoder.finish();
+            fail(body);
+        } catch(IllegalArgumentException e) {
+            assertEquals("Unexpected end of content", e.getMessage());
+        }
+    }
+
+    private static ChannelBuffer buffer(String body) throws UnsupportedEncodingException {
+        return ChannelBuffers.wrappedBuffer(body.getBytes("UTF-8"));
+    }
+
+    private static class Recorder implements SessionHandler {
+
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void registerReceiver(Receiver receiver) {
+        }
+
+        @Override
+        public void unregisterReceiver(Receiver receiver) {
+        }
+
+        @Override
+        public void writabilityChanged(Receiver receiver) {
+        }
+
+        @Override
+        public void messageReceived(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void messageReceived(ChannelBuffer message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void exceptionCaught(Throwable throwable) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}